@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.api;
+
+import java.util.List;
+
+import org.apache.sling.api.resource.Resource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Implemented by merged resources to access their children without merging all of them.
+ * Resources wrapped by a {@link org.apache.sling.api.resource.ResourceWrapper}, e.g. by a
+ * resource decorator, do not implement this interface, their children are accessed through
+ * the resource. Use the methods of {@link ResourceMergerUtil} instead of this interface.
+ *
+ * @since 1.3
+ */
+@ProviderType
+public interface MergedResourceChildren {
+
+    /**
+     * List a window of the children, only the children within the window are merged.
+     * @param offset The number of children to skip
+     * @param limit The maximum number of children to return
+     * @return The children or {@code null} if they can't be listed this way
+     */
+    @Nullable List<Resource> listChildren(int offset, int limit);
+
+    /**
+     * Get the names of the children without merging them.
+     * @return The names or {@code null} if they can't be listed this way
+     */
+    @Nullable List<String> getChildNames();
+
+    /**
+     * Visit this resource and its descendants depth-first.
+     * @param visitor The visitor
+     * @return {@code false} if the resource can't be visited this way
+     */
+    boolean visit(@NotNull MergedResourceVisitor visitor);
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.api;
+
+import java.util.List;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.jetbrains.annotations.NotNull;
+import org.osgi.annotation.versioning.ConsumerType;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Visitor for the depth-first traversal of a merged subtree through
+ * {@link ResourceMergerUtil#visit(Resource, MergedResourceVisitor)}. The nodes
+ * are passed in the order of the merged children, the properties and the
+ * merged resource of a node are only built if the visitor requests them.
+ *
+ * @since 1.3
+ */
+@ConsumerType
+public interface MergedResourceVisitor {
+
+    /**
+     * A node of the visited subtree. A node is only valid while it is visited.
+     */
+    @ProviderType
+    interface Node {
+
+        /**
+         * @return The name of the node
+         */
+        @NotNull String getName();
+
+        /**
+         * @return The absolute path of the node
+         */
+        @NotNull String getPath();
+
+        /**
+         * @return The depth of the node, {@code 0} for the visited resource
+         */
+        int getDepth();
+
+        /**
+         * @return The paths of the resources merged into the node, starting with the underlying resource
+         */
+        @NotNull List<String> getLayerPaths();
+
+        /**
+         * Merges the properties of the node.
+         * @return The merged properties
+         */
+        @NotNull ValueMap getValueMap();
+
+        /**
+         * Creates the resource of the node.
+         * @return The resource, the same as returned by listing the children of the parent
+         */
+        @NotNull Resource getResource();
+    }
+
+    /**
+     * Visit a node before its children.
+     * @param node The node
+     * @return {@code true} to visit the children of the node, {@code false} to skip them
+     */
+    boolean visit(@NotNull Node node);
+
+    /**
+     * Leave a node after its children have been visited or skipped.
+     * @param node The node
+     */
+    default void leave(@NotNull Node node) {
+        // nothing to do
+    }
+}
@@ -18,8 +18,15 @@
  */
 package org.apache.sling.resourcemerger.api;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.resourcemerger.impl.MergedResourceConstants;
+import org.jetbrains.annotations.NotNull;
 
 /**
  * Utility methods for merged resources.
@@ -40,4 +47,140 @@ public abstract class ResourceMergerUtil {
 
         return Boolean.TRUE.equals(resource.getResourceMetadata().get(MergedResourceConstants.METADATA_FLAG));
     }
+
+    /**
+     * Returns a window of the children of the provided resource. For merged resources
+     * only the children within the window are merged, the children before the window
+     * are only checked for being hidden. For other resources, including merged resources
+     * wrapped by a {@link org.apache.sling.api.resource.ResourceWrapper}, the children are
+     * iterated.
+     *
+     * @param resource The resource
+     * @param offset The number of children to skip
+     * @param limit The maximum number of children to return
+     * @return The children within the window
+     * @throws IllegalArgumentException If offset or limit is negative
+     * @since 1.3
+     */
+    public static @NotNull Iterator<Resource> listChildren(final @NotNull Resource resource, final int offset, final int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit must not be negative: " + offset + ", " + limit);
+        }
+        final MergedResourceChildren merged = getMergedChildren(resource);
+        final List<Resource> children = merged != null ? merged.listChildren(offset, limit) : null;
+        if (children != null) {
+            return children.iterator();
+        }
+        final List<Resource> result = new ArrayList<>();
+        final Iterator<Resource> iter = resource.listChildren();
+        int skipped = 0;
+        while (iter.hasNext() && result.size() < limit) {
+            final Resource child = iter.next();
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                result.add(child);
+            }
+        }
+        return result.iterator();
+    }
+
+    /**
+     * Returns the names of the children of the provided resource in their order.
+     * For merged resources the same hiding and ordering rules as for listing the
+     * children are applied, but the properties of the children are not merged.
+     *
+     * @param resource The resource
+     * @return The names of the children
+     * @since 1.3
+     */
+    public static @NotNull List<String> getChildNames(final @NotNull Resource resource) {
+        final MergedResourceChildren merged = getMergedChildren(resource);
+        final List<String> names = merged != null ? merged.getChildNames() : null;
+        if (names != null) {
+            return names;
+        }
+        final List<String> result = new ArrayList<>();
+        for (final Resource child : resource.getChildren()) {
+            result.add(child.getName());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of children of the provided resource.
+     * For merged resources the properties of the children are not merged.
+     *
+     * @param resource The resource
+     * @return The number of children
+     * @since 1.3
+     */
+    public static int getChildCount(final @NotNull Resource resource) {
+        return getChildNames(resource).size();
+    }
+
+    /**
+     * Visits the provided resource and its descendants depth-first, each resource before its
+     * children. For merged resources the children are hidden and ordered in the same way as
+     * for listing them, but the properties and the resources of the children are only merged
+     * if the visitor requests them. For other resources the children are iterated.
+     *
+     * @param resource The resource
+     * @param visitor The visitor
+     * @since 1.3
+     */
+    public static void visit(final @NotNull Resource resource, final @NotNull MergedResourceVisitor visitor) {
+        final MergedResourceChildren merged = getMergedChildren(resource);
+        if (merged == null || !merged.visit(visitor)) {
+            visit(resource, 0, visitor);
+        }
+    }
+
+    private static void visit(final Resource resource, final int depth, final MergedResourceVisitor visitor) {
+        final MergedResourceVisitor.Node node = new MergedResourceVisitor.Node() {
+
+            @Override
+            public @NotNull String getName() {
+                return resource.getName();
+            }
+
+            @Override
+            public @NotNull String getPath() {
+                return resource.getPath();
+            }
+
+            @Override
+            public int getDepth() {
+                return depth;
+            }
+
+            @Override
+            public @NotNull List<String> getLayerPaths() {
+                return Collections.singletonList(resource.getPath());
+            }
+
+            @Override
+            public @NotNull ValueMap getValueMap() {
+                return resource.getValueMap();
+            }
+
+            @Override
+            public @NotNull Resource getResource() {
+                return resource;
+            }
+        };
+        if (visitor.visit(node)) {
+            for (final Resource child : resource.getChildren()) {
+                visit(child, depth + 1, visitor);
+            }
+        }
+        visitor.leave(node);
+    }
+
+    /**
+     * Wrapped resources are not unwrapped, as the wrapper might decorate the children.
+     */
+    private static MergedResourceChildren getMergedChildren(final Resource resource) {
+        return resource instanceof MergedResourceChildren ? (MergedResourceChildren) resource : null;
+    }
 }
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A map holding at most a fixed number of entries. Once the limit is reached, the entry
+ * which has not been accessed for the longest time is evicted.
+ * <p>
+ * Large caches are split into segments by the hash of the key, each with its own lock and
+ * an equal share of the limit, so concurrent readers of different keys rarely contend.
+ * The least recently used entry is then evicted per segment.
+ */
+final class BoundedCache<K, V> {
+
+    /** The default maximum number of entries. */
+    static final int DEFAULT_MAX_SIZE = 100000;
+
+    /** The maximum number of segments. */
+    private static final int MAX_SEGMENTS = 16;
+
+    /** The minimum number of entries per segment, smaller caches are not split. */
+    private static final int MIN_SEGMENT_SIZE = 1024;
+
+    private final Segment<K, V>[] segments;
+
+    @SuppressWarnings("unchecked")
+    BoundedCache(final int maxSize) {
+        int count = 1;
+        while (count < MAX_SEGMENTS && maxSize / (count * 2) >= MIN_SEGMENT_SIZE) {
+            count *= 2;
+        }
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // the remainder of the limit is spread over the first segments
+            this.segments[i] = new Segment<>(maxSize / count + (i < maxSize % count ? 1 : 0));
+        }
+    }
+
+    private Segment<K, V> segment(final Object key) {
+        if (this.segments.length == 1) {
+            return this.segments[0];
+        }
+        final int h = key.hashCode();
+        return this.segments[(h ^ (h >>> 16)) & (this.segments.length - 1)];
+    }
+
+    /**
+     * @param key The key
+     * @return The value or {@code null} if there is none
+     */
+    V get(final K key) {
+        final Segment<K, V> segment = this.segment(key);
+        synchronized (segment) {
+            return segment.entries.get(key);
+        }
+    }
+
+    void put(final K key, final V value) {
+        final Segment<K, V> segment = this.segment(key);
+        synchronized (segment) {
+            segment.entries.put(key, value);
+        }
+    }
+
+    /**
+     * @param key The key
+     * @param function Computes the value if there is none
+     * @return The current or computed value
+     */
+    V computeIfAbsent(final K key, final Function<? super K, ? extends V> function) {
+        final Segment<K, V> segment = this.segment(key);
+        synchronized (segment) {
+            return segment.entries.computeIfAbsent(key, function);
+        }
+    }
+
+    V remove(final K key) {
+        final Segment<K, V> segment = this.segment(key);
+        synchronized (segment) {
+            return segment.entries.remove(key);
+        }
+    }
+
+    /**
+     * Remove all entries whose key matches the predicate.
+     * @param predicate The predicate
+     */
+    void removeIf(final Predicate<? super K> predicate) {
+        for (final Segment<K, V> segment : this.segments) {
+            synchronized (segment) {
+                final Iterator<K> iter = segment.entries.keySet().iterator();
+                while (iter.hasNext()) {
+                    if (predicate.test(iter.next())) {
+                        iter.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (final Segment<K, V> segment : this.segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return The number of entries evicted so far
+     */
+    long getEvictionCount() {
+        long count = 0;
+        for (final Segment<K, V> segment : this.segments) {
+            synchronized (segment) {
+                count += segment.evictionCount;
+            }
+        }
+        return count;
+    }
+
+    private static final class Segment<K, V> {
+
+        final LinkedHashMap<K, V> entries;
+
+        long evictionCount;
+
+        Segment(final int maxSize) {
+            this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+                    if (size() > maxSize) {
+                        evictionCount++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+}
@@ -48,18 +48,20 @@ public class CRUDMergedResource extends MergedResource {
     /**
      * Constructor
      *
+     * @param provider      The provider creating the resource
      * @param resolver      Resource resolver
      * @param mergeRootPath   Merge root path
      * @param relativePath    Relative path
      * @param mappedResources List of physical mapped resources' paths
      */
-    CRUDMergedResource(final ResourceResolver resolver,
+    CRUDMergedResource(final MergingResourceProvider provider,
+                   final ResourceResolver resolver,
                    final String mergeRootPath,
                    final String relativePath,
                    final List<Resource> mappedResources,
                    final List<ValueMap> valueMaps,
                    final MergedResourcePicker2 picker) {
-        super(resolver, mergeRootPath, relativePath, mappedResources, valueMaps);
+        super(provider, resolver, mergeRootPath, relativePath, mappedResources, valueMaps);
         this.picker = picker;
         this.relativePath = relativePath;
     }
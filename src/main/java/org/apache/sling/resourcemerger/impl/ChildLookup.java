@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.List;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.resourcemerger.impl.MergingResourceProvider.ResourceHidingHandler;
+import org.apache.sling.resourcemerger.impl.MergingResourceProvider.ResourceHolder;
+
+/**
+ * Evaluates the hiding of a single child of a merged resource, without listing
+ * and merging all children. For each child the result is the same as for
+ * {@link MergingResourceProvider#listChildren(Resource)}: the underlying child is removed
+ * if a later layer hides it, and a new child is skipped if its own layer hides it.
+ * The hiding handlers of the layers are only created when needed.
+ */
+final class ChildLookup {
+
+    /** The resources picked for the parent, starting with the underlying resource. */
+    private final List<Resource> layers;
+
+    private final boolean traverseParent;
+
+    private final ResourceHidingHandler[] handlers;
+
+    ChildLookup(final List<Resource> layers, final boolean traverseParent) {
+        this.layers = layers;
+        this.traverseParent = traverseParent;
+        this.handlers = new ResourceHidingHandler[layers.size()];
+    }
+
+    /**
+     * @return The number of layers
+     */
+    int getLayerCount() {
+        return this.layers.size();
+    }
+
+    /**
+     * @param index The index of the layer
+     * @return The parent resource of the layer
+     */
+    Resource getLayer(final int index) {
+        return this.layers.get(index);
+    }
+
+    /**
+     * Collect the resources of a child in the same way as the children are listed.
+     * Hiding by {@code sling:hideResource} is not evaluated.
+     * @param name The name of the child
+     * @return The holder or {@code null} if the child does not exist or is hidden
+     */
+    ResourceHolder getHolder(final String name) {
+        ResourceHolder holder = null;
+        for (int index = 0; index < this.layers.size(); index++) {
+            // the underlying resource does not hide anything
+            if (index > 0 && holder != null && this.getHandler(index).isHidden(name, false)) {
+                holder = null;
+            }
+            final Resource child = this.layers.get(index).getChild(name);
+            if (child != null) {
+                if (holder == null) {
+                    if (index > 0 && this.getHandler(index).isHidden(name, true)) {
+                        continue;
+                    }
+                    holder = new ResourceHolder(name);
+                }
+                holder.resources.add(child);
+            }
+        }
+        return holder;
+    }
+
+    private ResourceHidingHandler getHandler(final int index) {
+        if (this.handlers[index] == null) {
+            this.handlers[index] = new ResourceHidingHandler(this.layers.get(index), this.traverseParent);
+        }
+        return this.handlers[index];
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Computes the order of the merged children while the layers are processed one after the other,
+ * from the underlying layer to the top layer.
+ * <ul>
+ *   <li>Children which are not yet known are appended at the end.</li>
+ *   <li>A child with a {@code sling:orderBefore} property naming a known sibling is moved before that sibling.</li>
+ *   <li>Once a layer has added a child, all following known children of that layer are moved to the end,
+ *     so the order of the layer is kept. Known children before the first new child keep their position.</li>
+ * </ul>
+ * The children are kept in a linked list with an index by name, so each operation takes constant time.
+ * @param <T> The type of the value kept per child
+ */
+final class ChildOrdering<T> {
+
+    private static final class Entry<T> {
+        final String name;
+        final T value;
+        Entry<T> previous;
+        Entry<T> next;
+
+        Entry(final String name, final T value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    private final Map<String, Entry<T>> entries = new HashMap<>();
+
+    /** Sentinel, its next entry is the first child and its previous entry the last child. */
+    private final Entry<T> head = new Entry<>(null, null);
+
+    /** Whether the current layer has added a child. */
+    private boolean appending;
+
+    ChildOrdering() {
+        head.previous = head;
+        head.next = head;
+    }
+
+    /**
+     * Start processing the children of the next layer.
+     */
+    void startLayer() {
+        this.appending = false;
+    }
+
+    /**
+     * Remove all children whose name matches the predicate.
+     * @param predicate The predicate
+     */
+    void removeIf(final Predicate<String> predicate) {
+        Entry<T> entry = head.next;
+        while (entry != head) {
+            final Entry<T> next = entry.next;
+            if (predicate.test(entry.name)) {
+                unlink(entry);
+                entries.remove(entry.name);
+            }
+            entry = next;
+        }
+    }
+
+    /**
+     * @param name The name of the child
+     * @return The value of the child or {@code null} if the child is not known
+     */
+    T get(final String name) {
+        final Entry<T> entry = entries.get(name);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Append a child which is not known yet.
+     * @param name The name of the child
+     * @param value The value of the child
+     */
+    void add(final String name, final T value) {
+        final Entry<T> entry = new Entry<>(name, value);
+        entries.put(name, entry);
+        linkBefore(entry, head);
+        this.appending = true;
+    }
+
+    /**
+     * Position a known child of the current layer.
+     * @param name The name of the child
+     * @param orderBefore The value of the {@code sling:orderBefore} property or {@code null}
+     * @return {@code true} if the position of the child has changed
+     */
+    boolean order(final String name, final String orderBefore) {
+        final Entry<T> entry = entries.get(name);
+        final Entry<T> target = orderBefore == null || orderBefore.equals(name) ? null : entries.get(orderBefore);
+        final Entry<T> successor = target != null ? target : (this.appending ? head : null);
+        if (successor == null || entry.next == successor) {
+            return false;
+        }
+        unlink(entry);
+        linkBefore(entry, successor);
+        return true;
+    }
+
+    /**
+     * @return The values of all children in their order
+     */
+    List<T> values() {
+        final List<T> result = new ArrayList<>(entries.size());
+        for (Entry<T> entry = head.next; entry != head; entry = entry.next) {
+            result.add(entry.value);
+        }
+        return result;
+    }
+
+    private static <T> void unlink(final Entry<T> entry) {
+        entry.previous.next = entry.next;
+        entry.next.previous = entry.previous;
+    }
+
+    private static <T> void linkBefore(final Entry<T> entry, final Entry<T> successor) {
+        entry.next = successor;
+        entry.previous = successor.previous;
+        successor.previous.next = entry;
+        successor.previous = entry;
+    }
+}
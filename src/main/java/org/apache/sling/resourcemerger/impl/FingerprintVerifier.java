@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+
+/**
+ * Checks whether merged resources computed with a service resource resolver, like those of a
+ * {@link MergedTreeSnapshot} or of a materialized tree, may be served to a resource resolver.
+ * <p>
+ * Each of these merged resources carries a fingerprint of its picked resources: their paths,
+ * their existence and their hiding and ordering properties. A merged resource is only served to
+ * a resource resolver after the resources picked with that resolver matched the fingerprint,
+ * together with the fingerprints of the ancestors whose {@code sling:hideChildren} properties apply.
+ * This covers resolvers which can't read all of the picked resources as well as changes of the
+ * hiding and ordering. Changes of other properties and of the children are not part of the
+ * fingerprint, they are detected through observation. The outcome of the check is kept per user,
+ * as the resolvers of a user see the same resources.
+ */
+final class FingerprintVerifier {
+
+    /** The properties evaluated for hiding and ordering, which are part of the fingerprint. */
+    private static final String[] FINGERPRINT_PROPERTIES = {
+        MergedResourceConstants.PN_HIDE_CHILDREN,
+        MergedResourceConstants.PN_HIDE_PROPERTIES,
+        MergedResourceConstants.PN_HIDE_RESOURCE,
+        MergedResourceConstants.PN_ORDER_BEFORE
+    };
+
+    /** The outcome of checking a merged resource against its fingerprint, keyed by user and relative path. */
+    private final BoundedCache<String, Boolean> verified = new BoundedCache<>(BoundedCache.DEFAULT_MAX_SIZE);
+
+    /**
+     * Check whether the merged resource at the relative path may be served to the resolver.
+     * The resources picked with the resolver must match the fingerprint of the merged resource
+     * and of its parent, or of all its ancestors if the hiding properties of all ancestors are
+     * evaluated. Resolvers with pending changes are never served.
+     * @param resolver The resolver
+     * @param provider The merging resource provider
+     * @param relativePath The path relative to the merge root
+     * @param fingerprints Returns the kept fingerprint for a relative path or {@code null} if there is none
+     * @return {@code true} if the merged resource may be served
+     */
+    boolean isVerified(final ResourceResolver resolver, final MergingResourceProvider provider, final String relativePath,
+            final Function<String, byte[]> fingerprints) {
+        if (resolver.hasChanges()) {
+            return false;
+        }
+        final String userId = resolver.getUserID();
+        final String keyPrefix = (userId == null ? "" : userId).concat("\n");
+        final String[] names = relativePath.isEmpty() ? new String[0] : relativePath.split("/");
+        String path = "";
+        for (int i = 0; ; i++) {
+            if ((provider.traverseHierarchie || i >= names.length - 1) && !this.verify(resolver, provider, keyPrefix, path, fingerprints)) {
+                return false;
+            }
+            if (i == names.length) {
+                return true;
+            }
+            path = MergedTreeSnapshot.childPath(path, names[i]);
+        }
+    }
+
+    private boolean verify(final ResourceResolver resolver, final MergingResourceProvider provider, final String keyPrefix,
+            final String relativePath, final Function<String, byte[]> fingerprints) {
+        final String key = keyPrefix.concat(relativePath);
+        Boolean result = this.verified.get(key);
+        if (result == null) {
+            final byte[] kept = fingerprints.apply(relativePath);
+            result = kept != null && Arrays.equals(kept, fingerprint(relativePath, provider.pickResources(resolver, relativePath, null)));
+            this.verified.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Compute the fingerprint of the picked resources from their paths, their existence and
+     * their hiding and ordering properties.
+     * @param relativePath The path relative to the merge root
+     * @param picked The picked resources
+     * @return The fingerprint
+     */
+    static byte[] fingerprint(final String relativePath, final List<Resource> picked) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(digest, relativePath);
+        for (final Resource rsrc : picked) {
+            update(digest, rsrc.getPath());
+            if (ResourceUtil.isNonExistingResource(rsrc)) {
+                digest.update((byte) 0);
+            } else {
+                digest.update((byte) 1);
+                final ValueMap props = rsrc.getValueMap();
+                for (final String name : FINGERPRINT_PROPERTIES) {
+                    final Object value = props.get(name);
+                    if (value != null) {
+                        update(digest, name);
+                        update(digest, toString(value));
+                    }
+                }
+            }
+            digest.update((byte) 2);
+        }
+        return digest.digest();
+    }
+
+    private static void update(final MessageDigest digest, final String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String toString(final Object value) {
+        if (value != null && value.getClass().isArray()) {
+            final StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < Array.getLength(value); i++) {
+                sb.append(toString(Array.get(value, i))).append(',');
+            }
+            return sb.append(']').toString();
+        }
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+/**
+ * Web console plugin explaining how a merged resource is built. The path of the merged
+ * resource is passed with the {@code path} parameter, the explanation is rendered as HTML
+ * or, if the request ends with {@code .json}, as JSON. Posting the {@code refresh} action
+ * refreshes the frozen merged resources, e.g. after a deployment.
+ * <p>
+ * The resources are picked with the resource resolver of the web console user if the web console
+ * is authenticated by Sling, otherwise with the service user of the
+ * {@value MergedResourcePickerWhiteboard#SUBSERVICE_READER} subservice. The output states which user was used.
+ * The plugin is only available if the servlet API is, the bundle imports it optionally.
+ */
+@Component(service = Servlet.class,
+    property = {
+        "felix.webconsole.label=" + MergeExplainWebConsolePlugin.LABEL,
+        "felix.webconsole.title=" + MergeExplainWebConsolePlugin.TITLE,
+        "felix.webconsole.category=" + MergeExplainWebConsolePlugin.CATEGORY
+    })
+public class MergeExplainWebConsolePlugin extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    static final String LABEL = "resourcemerger";
+
+    static final String TITLE = "Resource Merger";
+
+    static final String CATEGORY = "Sling";
+
+    private static final String PARAM_PATH = "path";
+
+    private static final String PARAM_ACTION = "action";
+
+    private static final String ACTION_REFRESH = "refresh";
+
+    /** The request attribute holding the resource resolver of the user authenticated by Sling. */
+    private static final String ATTR_RESOURCE_RESOLVER = "org.apache.sling.auth.core.ResourceResolver";
+
+    private final transient MergedResourcePickerWhiteboard whiteboard;
+
+    @Activate
+    public MergeExplainWebConsolePlugin(@Reference(name = "whiteboard") final MergedResourcePickerWhiteboard whiteboard) {
+        this.whiteboard = whiteboard;
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final String path = request.getParameter(PARAM_PATH);
+        final boolean json = request.getPathInfo() != null && request.getPathInfo().endsWith(".json");
+
+        String error = null;
+        final StringWriter result = new StringWriter();
+        if (path != null && !path.isEmpty()) {
+            final MergingResourceProvider provider = this.whiteboard.getProvider(path);
+            final ResourceResolverFactory factory = this.whiteboard.getResourceResolverFactory();
+            final Object requestResolver = request.getAttribute(ATTR_RESOURCE_RESOLVER);
+            if (provider == null) {
+                error = "No merged resources at " + path;
+            } else if (requestResolver instanceof ResourceResolver) {
+                // the resolver belongs to the request and is closed by Sling
+                error = explain(provider, (ResourceResolver) requestResolver, false, path, result);
+            } else if (factory == null) {
+                error = "No resource resolver factory available";
+            } else {
+                try (final ResourceResolver resolver = factory.getServiceResourceResolver(
+                        MergedResourcePickerWhiteboard.subservice(MergedResourcePickerWhiteboard.SUBSERVICE_READER))) {
+                    error = explain(provider, resolver, true, path, result);
+                } catch (final LoginException le) {
+                    error = "Unable to get service resource resolver: " + le.getMessage();
+                }
+            }
+        }
+
+        if (json) {
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            if (error != null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, error);
+            } else if (result.getBuffer().length() == 0) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing parameter " + PARAM_PATH);
+            } else {
+                response.getWriter().write(result.toString());
+            }
+            return;
+        }
+
+        response.setContentType("text/html");
+        response.setCharacterEncoding("UTF-8");
+        final PrintWriter pw = response.getWriter();
+        pw.println("<form method=\"get\">");
+        pw.print("<label for=\"" + PARAM_PATH + "\">Merged resource path</label> <input type=\"text\" size=\"80\" name=\"" + PARAM_PATH + "\" value=\"");
+        pw.print(escapeHtml(path == null ? "" : path));
+        pw.println("\"/> <input type=\"submit\" value=\"Explain\"/>");
+        pw.println("</form>");
+        pw.println("<form method=\"post\">");
+        pw.println("<input type=\"hidden\" name=\"" + PARAM_ACTION + "\" value=\"" + ACTION_REFRESH + "\"/>");
+        pw.println("<input type=\"submit\" value=\"Refresh frozen merged resources\"/>");
+        pw.println("</form>");
+        if (error != null) {
+            pw.print("<p>");
+            pw.print(escapeHtml(error));
+            pw.println("</p>");
+        } else if (result.getBuffer().length() > 0) {
+            if (!(request.getAttribute(ATTR_RESOURCE_RESOLVER) instanceof ResourceResolver)) {
+                pw.println("<p>The resources are picked with the permissions of the service user of the resource merger, not with yours.</p>");
+            }
+            // the JSON output escapes all markup characters
+            pw.print("<pre>");
+            pw.print(result.toString());
+            pw.println("</pre>");
+        }
+    }
+
+    /**
+     * @return An error message or {@code null} if the explanation has been written
+     */
+    private static String explain(final MergingResourceProvider provider, final ResourceResolver resolver, final boolean serviceUser,
+            final String path, final StringWriter result) throws IOException {
+        final MergeExplanation explanation = provider.explain(resolver, path);
+        if (explanation == null) {
+            return "No merged resources at " + path;
+        }
+        explanation.setUser(resolver.getUserID(), serviceUser);
+        explanation.writeJson(result);
+        return null;
+    }
+
+    @Override
+    protected void doPost(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        if (!ACTION_REFRESH.equals(request.getParameter(PARAM_ACTION))) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown action " + request.getParameter(PARAM_ACTION));
+            return;
+        }
+        final List<String> roots = this.whiteboard.refreshFrozen();
+        if (request.getPathInfo() != null && request.getPathInfo().endsWith(".json")) {
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            final PrintWriter pw = response.getWriter();
+            pw.write("{\"refreshed\":");
+            MergeExplanation.writeStrings(pw, roots);
+            pw.write('}');
+        } else {
+            response.sendRedirect(request.getRequestURI());
+        }
+    }
+
+    private static String escapeHtml(final String value) {
+        final StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Explains how a merged resource and its children are built: the resources picked per layer,
+ * the hiding decisions together with the property which caused them, the ordering moves
+ * and the time spent per phase. The explanation can be written as JSON.
+ */
+final class MergeExplanation implements MergeTracer {
+
+    /** Scope of decisions for the merged resource itself. */
+    static final String SCOPE_RESOURCE = "resource";
+
+    /** Scope of decisions for the children of the merged resource. */
+    static final String SCOPE_CHILDREN = "children";
+
+    /** Scope of decisions for the properties of the merged resource. */
+    static final String SCOPE_PROPERTIES = "properties";
+
+    private final String path;
+
+    private String scope = SCOPE_RESOURCE;
+
+    private final List<String[]> lookups = new ArrayList<>();
+
+    private final List<String[]> decisions = new ArrayList<>();
+
+    private final Map<String, Long> timings = new LinkedHashMap<>();
+
+    private List<String> mergedLayers;
+
+    private List<String> children;
+
+    private String userId;
+
+    private boolean serviceUser;
+
+    MergeExplanation(final String path) {
+        this.path = path;
+    }
+
+    String getPath() {
+        return this.path;
+    }
+
+    void setScope(final String scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * @param layers The paths of the merged resources or {@code null} if the resource does not exist
+     */
+    void setMergedLayers(final List<String> layers) {
+        this.mergedLayers = layers;
+    }
+
+    List<String> getMergedLayers() {
+        return this.mergedLayers;
+    }
+
+    /**
+     * @param names The names of the merged children in their order
+     */
+    void setChildren(final List<String> names) {
+        this.children = names;
+    }
+
+    List<String> getChildren() {
+        return this.children;
+    }
+
+    /**
+     * @param userId The user whose permissions were used to pick the resources
+     * @param serviceUser Whether the user is a service user instead of the requesting user
+     */
+    void setUser(final String userId, final boolean serviceUser) {
+        this.userId = userId;
+        this.serviceUser = serviceUser;
+    }
+
+    /**
+     * @return The decisions, each consisting of scope, type, name, layer path and detail
+     */
+    List<String[]> getDecisions() {
+        return this.decisions;
+    }
+
+    Map<String, Long> getTimings() {
+        return this.timings;
+    }
+
+    @Override
+    public void picked(final String path, final boolean exists) {
+        this.lookups.add(new String[] {this.scope, path, String.valueOf(!exists)});
+    }
+
+    @Override
+    public void hidden(final String name, final String layerPath, final String rule) {
+        this.decisions.add(new String[] {this.scope, "hide", name, layerPath, rule});
+    }
+
+    @Override
+    public void moved(final String name, final String layerPath, final String orderBefore) {
+        this.decisions.add(new String[] {this.scope, "move", name, layerPath, orderBefore});
+    }
+
+    @Override
+    public void propertyHidden(final String name, final int layerIndex, final boolean local) {
+        final String layerPath = this.mergedLayers != null && layerIndex < this.mergedLayers.size() ? this.mergedLayers.get(layerIndex) : null;
+        this.decisions.add(new String[] {SCOPE_PROPERTIES, local ? "hideLocal" : "hide", name, layerPath,
+                layerPath == null ? null : layerPath + '/' + MergedResourceConstants.PN_HIDE_PROPERTIES});
+    }
+
+    @Override
+    public void timed(final String phase, final long nanos) {
+        this.timings.merge(this.scope + '.' + phase, nanos, Long::sum);
+    }
+
+    /**
+     * Write the explanation as JSON.
+     * @param writer The writer
+     * @throws IOException If writing fails
+     */
+    void writeJson(final Writer writer) throws IOException {
+        writer.write("{\"path\":");
+        writeString(writer, this.path);
+        writer.write(",\"exists\":");
+        writer.write(String.valueOf(this.mergedLayers != null));
+        writer.write(",\"mergedLayers\":");
+        writeStrings(writer, this.mergedLayers);
+        writer.write(",\"children\":");
+        writeStrings(writer, this.children);
+        writer.write(",\"lookups\":[");
+        for (int i = 0; i < this.lookups.size(); i++) {
+            final String[] lookup = this.lookups.get(i);
+            writer.write(i == 0 ? "{\"scope\":" : ",{\"scope\":");
+            writeString(writer, lookup[0]);
+            writer.write(",\"path\":");
+            writeString(writer, lookup[1]);
+            writer.write(",\"nonExisting\":");
+            writer.write(lookup[2]);
+            writer.write('}');
+        }
+        writer.write("],\"decisions\":[");
+        for (int i = 0; i < this.decisions.size(); i++) {
+            final String[] decision = this.decisions.get(i);
+            writer.write(i == 0 ? "{\"scope\":" : ",{\"scope\":");
+            writeString(writer, decision[0]);
+            writer.write(",\"type\":");
+            writeString(writer, decision[1]);
+            writer.write(",\"name\":");
+            writeString(writer, decision[2]);
+            writer.write(",\"layer\":");
+            writeString(writer, decision[3]);
+            writer.write(decision[1].equals("move") ? ",\"orderBefore\":" : ",\"rule\":");
+            writeString(writer, decision[4]);
+            writer.write('}');
+        }
+        writer.write("],\"timings\":{");
+        boolean first = true;
+        for (final Map.Entry<String, Long> entry : this.timings.entrySet()) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writeString(writer, entry.getKey() + "Micros");
+            writer.write(':');
+            writer.write(String.valueOf(entry.getValue() / 1000));
+        }
+        writer.write("},\"user\":");
+        writeString(writer, this.userId);
+        writer.write(",\"serviceUser\":");
+        writer.write(String.valueOf(this.serviceUser));
+        writer.write('}');
+    }
+
+    static void writeStrings(final Writer writer, final List<String> values) throws IOException {
+        if (values == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeString(writer, values.get(i));
+        }
+        writer.write(']');
+    }
+
+    private static void writeString(final Writer writer, final String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '<' || c == '>' || c == '&') {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import org.apache.sling.api.resource.ValueMap;
+
+/**
+ * The outcome of merging a single resource for frozen providers, whose picked resources do
+ * not change until the provider is refreshed: the paths of the merged resources and the merged
+ * properties. The plans are kept per user and path, so a merge is only computed once.
+ */
+final class MergePlan {
+
+    /** The plans of a resource which does not exist. */
+    static final MergePlan[] NONE = new MergePlan[0];
+
+    final String name;
+
+    final String[] layerPaths;
+
+    final ValueMap properties;
+
+    MergePlan(final String name, final String[] layerPaths, final ValueMap properties) {
+        this.name = name;
+        this.layerPaths = layerPaths;
+        this.properties = properties;
+    }
+}
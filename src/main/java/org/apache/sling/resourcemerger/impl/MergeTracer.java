@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+/**
+ * Receives the decisions taken while a resource and its children are merged.
+ * Used by {@link MergeExplanation} to explain how a merged resource is built.
+ */
+interface MergeTracer {
+
+    /**
+     * A resource has been picked for a layer.
+     * @param path The path of the picked resource
+     * @param exists Whether the resource exists
+     */
+    void picked(String path, boolean exists);
+
+    /**
+     * A resource has been hidden.
+     * @param name The name of the hidden resource
+     * @param layerPath The path of the resource of the layer taking the decision
+     * @param rule The path of the property hiding the resource or {@code null} if unknown
+     */
+    void hidden(String name, String layerPath, String rule);
+
+    /**
+     * A child has been moved while ordering the children.
+     * @param name The name of the child
+     * @param layerPath The path of the child in the layer moving it
+     * @param orderBefore The name of the sibling it has been moved before or {@code null} if moved to the end
+     */
+    void moved(String name, String layerPath, String orderBefore);
+
+    /**
+     * A property has been hidden by {@code sling:hideProperties}.
+     * @param name The name of the property
+     * @param layerIndex The index of the layer hiding the property
+     * @param local {@code true} if the property of the hiding layer itself is hidden
+     */
+    void propertyHidden(String name, int layerIndex, boolean local);
+
+    /**
+     * A phase of the merge has finished.
+     * @param phase The name of the phase
+     * @param nanos The duration in nanoseconds
+     */
+    void timed(String phase, long nanos);
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.Collections;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.DeepReadValueMapDecorator;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+
+/**
+ * The properties of a {@link MergedResource}, supporting relative paths like {@code child/prop}.
+ * A relative property is read directly from the layer resources of the child: only the requested
+ * property is merged, the merged child resource is not created. Paths which can't be handled
+ * that way, e.g. containing {@code ..}, are resolved through the resource resolver.
+ */
+class MergedDeepReadValueMap extends DeepReadValueMapDecorator {
+
+    private final MergedResource resource;
+
+    private final String relativePath;
+
+    MergedDeepReadValueMap(final MergedResource resource, final String relativePath, final ValueMap base) {
+        super(resource, base);
+        this.resource = resource;
+        this.relativePath = relativePath;
+    }
+
+    /**
+     * @return The index of the last slash if the name can be read from the layer resources, {@code -1} otherwise
+     */
+    private int getSeparator(final String name) {
+        final int pos = name.lastIndexOf('/');
+        if (pos <= 0 || pos == name.length() - 1 || this.resource.getProvider() == null) {
+            return -1;
+        }
+        int start = 0;
+        while (start < pos) {
+            final int end = name.indexOf('/', start);
+            final String segment = name.substring(start, end);
+            if (segment.isEmpty() || ".".equals(segment) || "..".equals(segment)) {
+                return -1;
+            }
+            start = end + 1;
+        }
+        return pos;
+    }
+
+    /**
+     * Read a relative property from the layer resources.
+     */
+    private Object getMergedProperty(final String name, final int separator) {
+        final String childPath = name.substring(0, separator);
+        return this.resource.getProvider().getMergedProperty(this.resource.getResourceResolver(),
+                this.relativePath.isEmpty() ? childPath : this.relativePath + '/' + childPath, name.substring(separator + 1));
+    }
+
+    private static ValueMap toValueMap(final String name, final Object value) {
+        return value == null ? ValueMap.EMPTY : new ValueMapDecorator(Collections.singletonMap(name, value));
+    }
+
+    @Override
+    public <T> T get(final String name, final Class<T> type) {
+        final int separator = name == null ? -1 : this.getSeparator(name);
+        if (separator == -1) {
+            return super.get(name, type);
+        }
+        final String propertyName = name.substring(separator + 1);
+        return toValueMap(propertyName, this.getMergedProperty(name, separator)).get(propertyName, type);
+    }
+
+    @Override
+    public <T> T get(final String name, final T defaultValue) {
+        final int separator = name == null ? -1 : this.getSeparator(name);
+        if (separator == -1) {
+            return super.get(name, defaultValue);
+        }
+        final String propertyName = name.substring(separator + 1);
+        return toValueMap(propertyName, this.getMergedProperty(name, separator)).get(propertyName, defaultValue);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        final int separator = key == null ? -1 : this.getSeparator(key.toString());
+        if (separator == -1) {
+            return super.containsKey(key);
+        }
+        return this.getMergedProperty(key.toString(), separator) != null;
+    }
+
+    @Override
+    public Object get(final Object key) {
+        final int separator = key == null ? -1 : this.getSeparator(key.toString());
+        if (separator == -1) {
+            return super.get(key);
+        }
+        return this.getMergedProperty(key.toString(), separator);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+
+/**
+ * Reverse index from the paths of the merged layer resources to the paths of the
+ * merged resources. The index is filled while resources are merged, so it only
+ * contains merged resources which have been requested. The number of indexed
+ * layer paths is limited by a {@link BoundedCache}; once layer paths have been evicted,
+ * changes which can't be translated are reported as a change of the merge root.
+ */
+final class MergedPathIndex {
+
+    private final String mergeRootPath;
+
+    private final BoundedCache<String, Set<String>> mergedPathsByLayerPath;
+
+    /**
+     * @param mergeRootPath The merge root, reported for changes which can't be translated
+     * @param maxSize The maximum number of indexed layer paths
+     */
+    MergedPathIndex(final String mergeRootPath, final int maxSize) {
+        this.mergeRootPath = mergeRootPath;
+        this.mergedPathsByLayerPath = new BoundedCache<>(maxSize);
+    }
+
+    /**
+     * Record the layer paths of a merged resource.
+     * @param layerPaths The paths of the merged layer resources
+     * @param mergedPath The path of the merged resource
+     */
+    void add(final String[] layerPaths, final String mergedPath) {
+        for (final String layerPath : layerPaths) {
+            this.mergedPathsByLayerPath.computeIfAbsent(layerPath, key -> ConcurrentHashMap.newKeySet()).add(mergedPath);
+        }
+    }
+
+    /**
+     * @param layerPath The path of a layer resource
+     * @return The paths of the merged resources the layer resource is part of
+     */
+    Set<String> getMergedPaths(final String layerPath) {
+        final Set<String> mergedPaths = this.mergedPathsByLayerPath.get(layerPath);
+        return mergedPaths == null ? Collections.emptySet() : Collections.unmodifiableSet(mergedPaths);
+    }
+
+    int size() {
+        return this.mergedPathsByLayerPath.size();
+    }
+
+    /**
+     * Translate changes of layer resources into changes of the merged resources.
+     * A merged resource containing a changed layer resource is reported as changed.
+     * A layer resource which is added or removed below a layer resource of a merged
+     * resource is reported as changed child of that merged resource, as other layers
+     * might still provide the child or might have provided it before.
+     * Removed layer resources and their descendants are dropped from the index.
+     * @param changes The changes of the layer resources
+     * @return The changes of the merged resources
+     */
+    List<ResourceChange> translate(final List<ResourceChange> changes) {
+        final Map<String, ResourceChange> result = new LinkedHashMap<>();
+        for (final ResourceChange change : changes) {
+            final ChangeType type = change.getType();
+            if (type != ChangeType.ADDED && type != ChangeType.REMOVED && type != ChangeType.CHANGED) {
+                continue;
+            }
+            final String path = change.getPath();
+            boolean found = false;
+            for (final String mergedPath : this.getMergedPaths(path)) {
+                result.put(mergedPath, new ResourceChange(ChangeType.CHANGED, mergedPath, change.isExternal(), null, null, null));
+                found = true;
+            }
+            if (type != ChangeType.CHANGED) {
+                final String parentPath = ResourceUtil.getParent(path);
+                if (parentPath != null) {
+                    final String name = ResourceUtil.getName(path);
+                    for (final String mergedParentPath : this.getMergedPaths(parentPath)) {
+                        final String mergedPath = mergedParentPath + '/' + name;
+                        result.putIfAbsent(mergedPath, new ResourceChange(ChangeType.CHANGED, mergedPath, change.isExternal(), null, null, null));
+                        found = true;
+                    }
+                }
+            }
+            if (!found && this.mergedPathsByLayerPath.getEvictionCount() > 0) {
+                // the merged resource might have been evicted from the index
+                result.putIfAbsent(this.mergeRootPath, new ResourceChange(ChangeType.CHANGED, this.mergeRootPath, change.isExternal(), null, null, null));
+            }
+            if (type == ChangeType.REMOVED) {
+                final String prefix = path.endsWith("/") ? path : path + '/';
+                this.mergedPathsByLayerPath.removeIf(key -> key.equals(path) || key.startsWith(prefix));
+            }
+        }
+        return new ArrayList<>(result.values());
+    }
+}
@@ -0,0 +1,810 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import org.apache.sling.api.resource.QuerySyntaxException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+
+/**
+ * A query for merged resources, parsed from the subset of XPath and JCR-SQL2 which can be
+ * evaluated against the merged properties:
+ * <ul>
+ * <li>XPath: {@code /jcr:root/path//element(*, type)[condition] order by @name descending},
+ * the axis might be {@code /} for the children and the step might be {@code *}.</li>
+ * <li>JCR-SQL2: {@code SELECT * FROM [type] AS s WHERE ISDESCENDANTNODE(s, '/path') AND condition
+ * ORDER BY s.[name] DESC}, {@code ISCHILDNODE} queries the children.</li>
+ * </ul>
+ * A condition combines comparisons of properties with literals, {@code jcr:like} or {@code LIKE}
+ * and property existence with {@code and}, {@code or} and parentheses.
+ * <p>
+ * The query for a layer contains a relaxed condition, which only keeps the first operand of
+ * each {@code and}: the properties of a merged resource might come from different layers, but
+ * the layer providing the value of a property matches a comparison of that property. The results
+ * are then checked against the full condition on the merged properties. The node type is only
+ * evaluated by the layer queries.
+ */
+final class MergedQuery {
+
+    static final String XPATH = "xpath";
+
+    static final String SQL2 = "JCR-SQL2";
+
+    private static final String XPATH_ROOT = "/jcr:root";
+
+    private final String language;
+
+    /** The path of the scope relative to the merge root. */
+    final String relativePath;
+
+    /** Whether the descendants or only the children of the scope are queried. */
+    private final boolean descendants;
+
+    /** The node type or {@code null} if there is no restriction. */
+    private final String nodeType;
+
+    /** The condition or {@code null} if there is none. */
+    private final Condition condition;
+
+    private final List<Ordering> orderings;
+
+    private MergedQuery(final String language, final String relativePath, final boolean descendants, final String nodeType,
+            final Condition condition, final List<Ordering> orderings) {
+        this.language = language;
+        this.relativePath = relativePath;
+        this.descendants = descendants;
+        this.nodeType = nodeType;
+        this.condition = condition;
+        this.orderings = orderings;
+    }
+
+    /**
+     * Parse a query for merged resources.
+     * @param query The query
+     * @param language The query language, {@link #XPATH} or {@link #SQL2}
+     * @param mergeRoot The merge root path
+     * @return The query or {@code null} if it is not scoped to the merge root or one of its descendants
+     * @throws QuerySyntaxException If the query is scoped to the merged resources but not supported
+     */
+    static MergedQuery parse(final String query, final String language, final String mergeRoot) {
+        final Parser parser = new Parser(query, language, mergeRoot);
+        return XPATH.equals(language) ? parser.parseXPath() : parser.parseSql2();
+    }
+
+    /**
+     * Create the query for a layer.
+     * @param layerPath The path of the scope in the layer
+     * @return The query in the language of this query
+     */
+    String toLayerQuery(final String layerPath) {
+        final Condition relaxed = this.condition == null ? null : this.condition.relax();
+        final StringBuilder sb = new StringBuilder();
+        if (XPATH.equals(this.language)) {
+            sb.append(XPATH_ROOT).append(layerPath).append(this.descendants ? "//" : "/");
+            sb.append(this.nodeType == null ? "*" : "element(*, " + this.nodeType + ")");
+            if (relaxed != null) {
+                sb.append('[');
+                relaxed.toXPath(sb);
+                sb.append(']');
+            }
+        } else {
+            sb.append("SELECT * FROM [").append(this.nodeType == null ? "nt:base" : this.nodeType).append("] AS s WHERE ");
+            sb.append(this.descendants ? "ISDESCENDANTNODE" : "ISCHILDNODE").append("(s, ");
+            appendString(sb, layerPath);
+            sb.append(')');
+            if (relaxed != null) {
+                sb.append(" AND ");
+                relaxed.toSql2(sb);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param properties The merged properties
+     * @return {@code true} if the properties match the condition
+     */
+    boolean matches(final ValueMap properties) {
+        return this.condition == null || this.condition.matches(properties);
+    }
+
+    /**
+     * @return The comparator for the ordering of the results or {@code null} if they are not ordered
+     */
+    Comparator<Resource> getComparator() {
+        if (this.orderings.isEmpty()) {
+            return null;
+        }
+        return (a, b) -> {
+            for (final Ordering ordering : this.orderings) {
+                final int result = compareValues(a.getValueMap().get(ordering.property, String.class),
+                        b.getValueMap().get(ordering.property, String.class));
+                if (result != 0) {
+                    return ordering.descending ? -result : result;
+                }
+            }
+            return 0;
+        };
+    }
+
+    /**
+     * Compare two values, numerically if both are numbers. Missing values come first.
+     */
+    private static int compareValues(final String a, final String b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        final Double x = toDouble(a);
+        final Double y = toDouble(b);
+        return x != null && y != null ? x.compareTo(y) : a.compareTo(b);
+    }
+
+    private static Double toDouble(final String value) {
+        try {
+            return Double.valueOf(value);
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void appendString(final StringBuilder sb, final String value) {
+        sb.append('\'').append(value.replace("'", "''")).append('\'');
+    }
+
+    private static final class Ordering {
+
+        final String property;
+
+        final boolean descending;
+
+        Ordering(final String property, final boolean descending) {
+            this.property = property;
+            this.descending = descending;
+        }
+    }
+
+    /**
+     * A condition evaluated against the merged properties.
+     */
+    private abstract static class Condition {
+
+        abstract boolean matches(ValueMap properties);
+
+        /**
+         * @return A condition matched by the layer providing the values of every merged resource matching this condition
+         */
+        Condition relax() {
+            return this;
+        }
+
+        abstract void toXPath(StringBuilder sb);
+
+        abstract void toSql2(StringBuilder sb);
+    }
+
+    private static final class Junction extends Condition {
+
+        private final boolean and;
+
+        private final List<Condition> operands;
+
+        Junction(final boolean and, final List<Condition> operands) {
+            this.and = and;
+            this.operands = operands;
+        }
+
+        @Override
+        boolean matches(final ValueMap properties) {
+            for (final Condition operand : this.operands) {
+                if (operand.matches(properties) != this.and) {
+                    return !this.and;
+                }
+            }
+            return this.and;
+        }
+
+        @Override
+        Condition relax() {
+            if (this.and) {
+                return this.operands.get(0).relax();
+            }
+            final List<Condition> relaxed = new ArrayList<>(this.operands.size());
+            for (final Condition operand : this.operands) {
+                relaxed.add(operand.relax());
+            }
+            return new Junction(false, relaxed);
+        }
+
+        @Override
+        void toXPath(final StringBuilder sb) {
+            this.append(sb, true);
+        }
+
+        @Override
+        void toSql2(final StringBuilder sb) {
+            this.append(sb, false);
+        }
+
+        private void append(final StringBuilder sb, final boolean xpath) {
+            sb.append('(');
+            for (int i = 0; i < this.operands.size(); i++) {
+                if (i > 0) {
+                    sb.append(this.and ? (xpath ? " and " : " AND ") : (xpath ? " or " : " OR "));
+                }
+                if (xpath) {
+                    this.operands.get(i).toXPath(sb);
+                } else {
+                    this.operands.get(i).toSql2(sb);
+                }
+            }
+            sb.append(')');
+        }
+    }
+
+    /**
+     * A comparison of a property with a literal, a like comparison or a property existence check.
+     * A multi-valued property matches if one of its values matches.
+     */
+    private static final class Comparison extends Condition {
+
+        private final String property;
+
+        /** The operator, {@code like} or {@code null} for an existence check. */
+        private final String operator;
+
+        /** The literal, a String or a Double. */
+        private final Object literal;
+
+        private final Pattern pattern;
+
+        Comparison(final String property, final String operator, final Object literal) {
+            this.property = property;
+            this.operator = operator;
+            this.literal = literal;
+            this.pattern = "like".equals(operator) ? toPattern((String) literal) : null;
+        }
+
+        private static Pattern toPattern(final String like) {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < like.length(); i++) {
+                final char c = like.charAt(i);
+                if (c == '\\' && i + 1 < like.length()) {
+                    sb.append(Pattern.quote(String.valueOf(like.charAt(++i))));
+                } else if (c == '%') {
+                    sb.append(".*");
+                } else if (c == '_') {
+                    sb.append('.');
+                } else {
+                    sb.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return Pattern.compile(sb.toString(), Pattern.DOTALL);
+        }
+
+        @Override
+        boolean matches(final ValueMap properties) {
+            final String[] values = properties.get(this.property, String[].class);
+            if (values == null) {
+                return false;
+            }
+            if (this.operator == null) {
+                return true;
+            }
+            for (final String value : values) {
+                if (value != null && this.matches(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matches(final String value) {
+            if (this.pattern != null) {
+                return this.pattern.matcher(value).matches();
+            }
+            final int result;
+            if (this.literal instanceof Double) {
+                final Double number = toDouble(value);
+                if (number == null) {
+                    return false;
+                }
+                result = number.compareTo((Double) this.literal);
+            } else {
+                result = value.compareTo((String) this.literal);
+            }
+            switch (this.operator) {
+                case "=": return result == 0;
+                case "!=": return result != 0;
+                case "<": return result < 0;
+                case "<=": return result <= 0;
+                case ">": return result > 0;
+                default: return result >= 0;
+            }
+        }
+
+        @Override
+        void toXPath(final StringBuilder sb) {
+            if (this.operator == null) {
+                sb.append('@').append(this.property);
+            } else if (this.pattern != null) {
+                sb.append("jcr:like(@").append(this.property).append(", ");
+                appendString(sb, (String) this.literal);
+                sb.append(')');
+            } else {
+                sb.append('@').append(this.property).append(' ').append(this.operator).append(' ');
+                this.appendLiteral(sb);
+            }
+        }
+
+        @Override
+        void toSql2(final StringBuilder sb) {
+            sb.append("s.[").append(this.property).append(']');
+            if (this.operator == null) {
+                sb.append(" IS NOT NULL");
+            } else if (this.pattern != null) {
+                sb.append(" LIKE ");
+                appendString(sb, (String) this.literal);
+            } else {
+                sb.append(' ').append("!=".equals(this.operator) ? "<>" : this.operator).append(' ');
+                this.appendLiteral(sb);
+            }
+        }
+
+        private void appendLiteral(final StringBuilder sb) {
+            if (this.literal instanceof Double) {
+                final double value = (Double) this.literal;
+                sb.append(value == Math.rint(value) && !Double.isInfinite(value) ? String.valueOf((long) value) : String.valueOf(value));
+            } else {
+                appendString(sb, (String) this.literal);
+            }
+        }
+    }
+
+    /**
+     * Parses the supported subset of XPath and JCR-SQL2. Until the scope of the query has been
+     * parsed, unsupported queries are considered not to address the merged resources.
+     */
+    private static final class Parser {
+
+        private final String query;
+
+        private final String language;
+
+        private final String mergeRoot;
+
+        private final boolean xpath;
+
+        private int pos;
+
+        /** The selector of a JCR-SQL2 query or {@code null}. */
+        private String selector;
+
+        Parser(final String query, final String language, final String mergeRoot) {
+            this.query = query;
+            this.language = language;
+            this.mergeRoot = mergeRoot;
+            this.xpath = XPATH.equals(language);
+        }
+
+        MergedQuery parseXPath() {
+            if (!this.query.startsWith(XPATH_ROOT + "/")) {
+                return null;
+            }
+            this.pos = XPATH_ROOT.length();
+            // the path of the scope ends before the last slash or double slash followed by the step
+            final StringBuilder path = new StringBuilder();
+            boolean descendants = false;
+            while (true) {
+                if (this.query.startsWith("//", this.pos)) {
+                    this.pos += 2;
+                    descendants = true;
+                    break;
+                }
+                if (!this.consume("/")) {
+                    return null;
+                }
+                if (this.query.startsWith("*", this.pos) || this.query.startsWith("element(", this.pos)) {
+                    break;
+                }
+                final int start = this.pos;
+                while (this.pos < this.query.length() && isNameChar(this.query.charAt(this.pos))) {
+                    this.pos++;
+                }
+                if (start == this.pos) {
+                    return null;
+                }
+                path.append('/').append(this.query, start, this.pos);
+            }
+            final String relativePath = this.getRelativePath(path.toString());
+            if (relativePath == null) {
+                return null;
+            }
+
+            String nodeType = null;
+            if (this.consume("element(")) {
+                this.skipWhitespace();
+                this.expect("*");
+                this.skipWhitespace();
+                if (this.consume(",")) {
+                    nodeType = this.name();
+                }
+                this.skipWhitespace();
+                this.expect(")");
+            } else {
+                this.expect("*");
+            }
+            Condition condition = null;
+            if (this.consume("[")) {
+                condition = this.or();
+                this.skipWhitespace();
+                this.expect("]");
+            }
+            final List<Ordering> orderings = new ArrayList<>();
+            if (this.keyword("order")) {
+                this.expectKeyword("by");
+                do {
+                    this.skipWhitespace();
+                    this.expect("@");
+                    final String property = this.name();
+                    final boolean descending = this.keyword("descending");
+                    if (!descending) {
+                        this.keyword("ascending");
+                    }
+                    orderings.add(new Ordering(property, descending));
+                    this.skipWhitespace();
+                } while (this.consume(","));
+            }
+            this.expectEnd();
+            return new MergedQuery(this.language, relativePath, descendants, "nt:base".equals(nodeType) ? null : nodeType,
+                    condition, orderings);
+        }
+
+        MergedQuery parseSql2() {
+            // the scope follows the select list and the source, which are checked afterwards
+            if (!this.keyword("select")) {
+                return null;
+            }
+            this.skipWhitespace();
+            final int selectList = this.pos;
+            final int from = indexOfKeyword(this.query, "from", this.pos);
+            if (from == -1) {
+                return null;
+            }
+            final String columns = this.query.substring(selectList, from).trim();
+            this.pos = from + 4;
+            this.skipWhitespace();
+            if (!this.consume("[")) {
+                return null;
+            }
+            final int typeEnd = this.query.indexOf(']', this.pos);
+            if (typeEnd == -1) {
+                return null;
+            }
+            final String nodeType = this.query.substring(this.pos, typeEnd);
+            this.pos = typeEnd + 1;
+            String selector = null;
+            if (this.keyword("as")) {
+                selector = this.name();
+            }
+            if (!this.keyword("where")) {
+                return null;
+            }
+            final boolean descendants;
+            if (this.keyword("isdescendantnode")) {
+                descendants = true;
+            } else if (this.keyword("ischildnode")) {
+                descendants = false;
+            } else {
+                return null;
+            }
+            this.skipWhitespace();
+            if (!this.consume("(")) {
+                return null;
+            }
+            this.skipWhitespace();
+            if (selector != null && this.query.startsWith(selector, this.pos)) {
+                this.pos += selector.length();
+                this.skipWhitespace();
+                if (!this.consume(",")) {
+                    return null;
+                }
+                this.skipWhitespace();
+            }
+            if (this.pos >= this.query.length() || this.query.charAt(this.pos) != '\'') {
+                return null;
+            }
+            final String path = this.string();
+            this.skipWhitespace();
+            if (!this.consume(")")) {
+                return null;
+            }
+            final String relativePath = this.getRelativePath(path);
+            if (relativePath == null) {
+                return null;
+            }
+
+            if (!"*".equals(columns) && !(selector + ".*").equals(columns)) {
+                throw this.error("Only all columns can be selected");
+            }
+            this.selector = selector;
+            Condition condition = null;
+            if (this.keyword("and")) {
+                condition = this.and();
+            }
+            if (this.keyword("or")) {
+                throw this.error("The scope must apply to all results");
+            }
+            final List<Ordering> orderings = new ArrayList<>();
+            if (this.keyword("order")) {
+                this.expectKeyword("by");
+                do {
+                    final String property = this.property();
+                    final boolean descending = this.keyword("desc");
+                    if (!descending) {
+                        this.keyword("asc");
+                    }
+                    orderings.add(new Ordering(property, descending));
+                    this.skipWhitespace();
+                } while (this.consume(","));
+            }
+            this.expectEnd();
+            return new MergedQuery(this.language, relativePath, descendants, "nt:base".equals(nodeType) ? null : nodeType,
+                    condition, orderings);
+        }
+
+        /**
+         * @return The path relative to the merge root or {@code null} if the path is not the merge root or one of its descendants
+         */
+        private String getRelativePath(final String path) {
+            if (path.equals(this.mergeRoot)) {
+                return "";
+            }
+            if ("/".equals(this.mergeRoot)) {
+                return path.substring(1);
+            }
+            return path.startsWith(this.mergeRoot + '/') ? path.substring(this.mergeRoot.length() + 1) : null;
+        }
+
+        private Condition or() {
+            final List<Condition> operands = new ArrayList<>();
+            operands.add(this.and());
+            while (this.keyword("or")) {
+                operands.add(this.and());
+            }
+            return operands.size() == 1 ? operands.get(0) : new Junction(false, operands);
+        }
+
+        private Condition and() {
+            final List<Condition> operands = new ArrayList<>();
+            operands.add(this.primary());
+            while (this.keyword("and")) {
+                operands.add(this.primary());
+            }
+            return operands.size() == 1 ? operands.get(0) : new Junction(true, operands);
+        }
+
+        private Condition primary() {
+            this.skipWhitespace();
+            if (this.consume("(")) {
+                final Condition condition = this.or();
+                this.skipWhitespace();
+                this.expect(")");
+                return condition;
+            }
+            if (this.xpath) {
+                if (this.consume("jcr:like(")) {
+                    this.skipWhitespace();
+                    this.expect("@");
+                    final String property = this.name();
+                    this.skipWhitespace();
+                    this.expect(",");
+                    final String pattern = this.literalString();
+                    this.skipWhitespace();
+                    this.expect(")");
+                    return new Comparison(property, "like", pattern);
+                }
+                this.expect("@");
+                final String property = this.name();
+                final String operator = this.operator();
+                return operator == null ? new Comparison(property, null, null) : new Comparison(property, operator, this.literal());
+            }
+            final String property = this.property();
+            if (this.keyword("like")) {
+                return new Comparison(property, "like", this.literalString());
+            }
+            if (this.keyword("is")) {
+                this.expectKeyword("not");
+                this.expectKeyword("null");
+                return new Comparison(property, null, null);
+            }
+            final String operator = this.operator();
+            if (operator == null) {
+                throw this.error("Expected a comparison");
+            }
+            return new Comparison(property, operator, this.literal());
+        }
+
+        /**
+         * @return The JCR-SQL2 property name
+         */
+        private String property() {
+            this.skipWhitespace();
+            if (this.selector != null && this.query.startsWith(this.selector + '.', this.pos)) {
+                this.pos += this.selector.length() + 1;
+            }
+            if (this.consume("[")) {
+                final int end = this.query.indexOf(']', this.pos);
+                if (end == -1) {
+                    throw this.error("Unterminated name");
+                }
+                final String name = this.query.substring(this.pos, end);
+                this.pos = end + 1;
+                return name;
+            }
+            return this.name();
+        }
+
+        /**
+         * @return The comparison operator or {@code null} if there is none
+         */
+        private String operator() {
+            this.skipWhitespace();
+            for (final String operator : new String[] {"!=", "<>", "<=", ">=", "=", "<", ">"}) {
+                if (this.consume(operator)) {
+                    return "<>".equals(operator) ? "!=" : operator;
+                }
+            }
+            return null;
+        }
+
+        private Object literal() {
+            this.skipWhitespace();
+            if (this.pos < this.query.length() && (this.query.charAt(this.pos) == '\'' || this.query.charAt(this.pos) == '"')) {
+                return this.string();
+            }
+            final int start = this.pos;
+            while (this.pos < this.query.length() && "+-.0123456789eE".indexOf(this.query.charAt(this.pos)) != -1) {
+                this.pos++;
+            }
+            final Double number = toDouble(this.query.substring(start, this.pos));
+            if (number == null) {
+                throw this.error("Expected a string or number literal");
+            }
+            return number;
+        }
+
+        private String literalString() {
+            this.skipWhitespace();
+            if (this.pos >= this.query.length() || (this.query.charAt(this.pos) != '\'' && this.query.charAt(this.pos) != '"')) {
+                throw this.error("Expected a string literal");
+            }
+            return this.string();
+        }
+
+        /**
+         * @return The quoted string at the current position, quotes are escaped by doubling them
+         */
+        private String string() {
+            final char quote = this.query.charAt(this.pos++);
+            final StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (this.pos >= this.query.length()) {
+                    throw this.error("Unterminated string literal");
+                }
+                final char c = this.query.charAt(this.pos++);
+                if (c == quote) {
+                    if (this.pos < this.query.length() && this.query.charAt(this.pos) == quote) {
+                        this.pos++;
+                    } else {
+                        return sb.toString();
+                    }
+                }
+                sb.append(c);
+            }
+        }
+
+        private String name() {
+            this.skipWhitespace();
+            final int start = this.pos;
+            while (this.pos < this.query.length() && isNameChar(this.query.charAt(this.pos))) {
+                this.pos++;
+            }
+            if (start == this.pos) {
+                throw this.error("Expected a name");
+            }
+            return this.query.substring(start, this.pos);
+        }
+
+        /**
+         * Consume the keyword, ignoring case, if it is the next word.
+         */
+        private boolean keyword(final String keyword) {
+            this.skipWhitespace();
+            final int end = this.pos + keyword.length();
+            if (this.query.regionMatches(true, this.pos, keyword, 0, keyword.length())
+                    && (end == this.query.length() || !isNameChar(this.query.charAt(end)))) {
+                this.pos = end;
+                return true;
+            }
+            return false;
+        }
+
+        private void expectKeyword(final String keyword) {
+            if (!this.keyword(keyword)) {
+                throw this.error("Expected " + keyword);
+            }
+        }
+
+        private boolean consume(final String token) {
+            if (this.query.startsWith(token, this.pos)) {
+                this.pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(final String token) {
+            if (!this.consume(token)) {
+                throw this.error("Expected " + token);
+            }
+        }
+
+        private void expectEnd() {
+            this.skipWhitespace();
+            if (this.pos < this.query.length()) {
+                throw this.error("Unsupported query");
+            }
+        }
+
+        private void skipWhitespace() {
+            while (this.pos < this.query.length() && Character.isWhitespace(this.query.charAt(this.pos))) {
+                this.pos++;
+            }
+        }
+
+        private QuerySyntaxException error(final String message) {
+            return new QuerySyntaxException(message + " at position " + this.pos + " of query for merged resources", this.query,
+                    this.language);
+        }
+
+        private static boolean isNameChar(final char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == ':';
+        }
+
+        private static int indexOfKeyword(final String query, final String keyword, final int from) {
+            final String lower = query.toLowerCase(Locale.ENGLISH);
+            int index = from;
+            while ((index = lower.indexOf(keyword, index)) != -1) {
+                final boolean before = index == 0 || Character.isWhitespace(query.charAt(index - 1));
+                final int end = index + keyword.length();
+                if (before && (end == query.length() || Character.isWhitespace(query.charAt(end)))) {
+                    return index;
+                }
+                index = end;
+            }
+            return -1;
+        }
+    }
+}
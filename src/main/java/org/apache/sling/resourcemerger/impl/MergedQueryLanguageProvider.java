@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.spi.resource.provider.QueryLanguageProvider;
+import org.apache.sling.spi.resource.provider.ResolveContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs queries for merged resources against the picked layers. A query scoped to the merge root
+ * or one of its descendants is parsed as a {@link MergedQuery}, rewritten for the root of each
+ * layer and executed with the resource resolver, so the indexes of the underlying resource
+ * providers are used. The hits are mapped to merged paths, only those candidates are merged and
+ * returned if their merged properties match the condition of the query. Ordered queries merge
+ * all candidates before the first result is returned, otherwise the layers are queried lazily.
+ * Queries not scoped to the merged resources return no result, as they are not meant for them.
+ */
+final class MergedQueryLanguageProvider implements QueryLanguageProvider<Void> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MergedQueryLanguageProvider.class);
+
+    /** The languages of the underlying resource providers which address resources by path. */
+    static final String[] LANGUAGES = new String[] {MergedQuery.XPATH, MergedQuery.SQL2};
+
+    /** The column of the merged path in the results of {@link #queryResources(ResolveContext, String, String)}. */
+    static final String PATH_COLUMN = "jcr:path";
+
+    private final MergingResourceProvider provider;
+
+    MergedQueryLanguageProvider(final MergingResourceProvider provider) {
+        this.provider = provider;
+    }
+
+    @Override
+    public String[] getSupportedLanguages(final ResolveContext<Void> ctx) {
+        return LANGUAGES.clone();
+    }
+
+    @Override
+    public Iterator<Resource> findResources(final ResolveContext<Void> ctx, final String query, final String language) {
+        final MergedQuery mergedQuery = MergedQuery.parse(query, language, this.provider.mergeRootPath);
+        if (mergedQuery == null) {
+            return Collections.emptyIterator();
+        }
+        final ResourceResolver resolver = ctx.getResourceResolver();
+        final Iterator<Resource> candidates = new CandidateIterator(resolver, this.provider.getLayerRoots(resolver), mergedQuery, language);
+        final Comparator<Resource> comparator = mergedQuery.getComparator();
+        if (comparator == null) {
+            return candidates;
+        }
+        final List<Resource> result = new ArrayList<>();
+        candidates.forEachRemaining(result::add);
+        result.sort(comparator);
+        return result.iterator();
+    }
+
+    @Override
+    public Iterator<ValueMap> queryResources(final ResolveContext<Void> ctx, final String query, final String language) {
+        final Iterator<Resource> resources = this.findResources(ctx, query, language);
+        return new Iterator<ValueMap>() {
+
+            @Override
+            public boolean hasNext() {
+                return resources.hasNext();
+            }
+
+            @Override
+            public ValueMap next() {
+                final Resource rsrc = resources.next();
+                final Map<String, Object> row = new HashMap<>(rsrc.getValueMap());
+                row.put(PATH_COLUMN, rsrc.getPath());
+                return new ValueMapDecorator(row);
+            }
+        };
+    }
+
+    /**
+     * Map the path of a hit to the path relative to the merge root.
+     * @param hitPath The path of the hit
+     * @param layerRoot The path of the root of the queried layer
+     * @return The relative path or {@code null} if the hit is not below the layer root
+     */
+    static String getRelativePath(final String hitPath, final String layerRoot) {
+        if (hitPath.equals(layerRoot)) {
+            return "";
+        }
+        if (hitPath.startsWith(layerRoot) && hitPath.charAt(layerRoot.length()) == '/') {
+            return hitPath.substring(layerRoot.length() + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Queries the layers one after the other and merges the candidates on demand.
+     */
+    private final class CandidateIterator implements Iterator<Resource> {
+
+        private final ResourceResolver resolver;
+
+        private final String[] layerRoots;
+
+        private final MergedQuery query;
+
+        private final String language;
+
+        /** The merged paths which have been checked. */
+        private final Set<String> checked = new HashSet<>();
+
+        private int layer = -1;
+
+        private Iterator<Resource> hits = Collections.emptyIterator();
+
+        private Resource next;
+
+        CandidateIterator(final ResourceResolver resolver, final String[] layerRoots, final MergedQuery query, final String language) {
+            this.resolver = resolver;
+            this.layerRoots = layerRoots;
+            this.query = query;
+            this.language = language;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null) {
+                while (!this.hits.hasNext()) {
+                    if (++this.layer == this.layerRoots.length) {
+                        return false;
+                    }
+                    this.hits = this.queryLayer(this.layerRoots[this.layer]);
+                }
+                this.next = this.getCandidate(this.hits.next().getPath(), this.layerRoots[this.layer]);
+            }
+            return true;
+        }
+
+        @Override
+        public Resource next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Resource result = this.next;
+            this.next = null;
+            return result;
+        }
+
+        private Iterator<Resource> queryLayer(final String layerRoot) {
+            final String mergeRoot = provider.mergeRootPath;
+            // the repository root as a layer would turn the query into one for the whole repository,
+            // and the layer query must not address the merged resources again
+            if ("/".equals(layerRoot) || layerRoot.equals(mergeRoot) || layerRoot.startsWith(mergeRoot + '/')) {
+                LOGGER.debug("Not querying layer {} for merged resources at {}", layerRoot, mergeRoot);
+                return Collections.emptyIterator();
+            }
+            final String layerPath = this.query.relativePath.isEmpty() ? layerRoot : layerRoot + '/' + this.query.relativePath;
+            return this.resolver.findResources(this.query.toLayerQuery(layerPath), this.language);
+        }
+
+        /**
+         * @return The merged resource for the hit or {@code null} if it is no new result
+         */
+        private Resource getCandidate(final String hitPath, final String layerRoot) {
+            final String relativePath = getRelativePath(hitPath, layerRoot);
+            if (relativePath == null) {
+                return null;
+            }
+            final String mergedPath = relativePath.isEmpty() ? provider.mergeRootPath : provider.mergeRootPath + '/' + relativePath;
+            // the merged properties are the same for the hits in all layers
+            if (!this.checked.add(mergedPath)) {
+                return null;
+            }
+            final Resource rsrc = provider.getResource(this.resolver, mergedPath, null);
+            return rsrc != null && this.query.matches(rsrc.getValueMap()) ? rsrc : null;
+        }
+    }
+}
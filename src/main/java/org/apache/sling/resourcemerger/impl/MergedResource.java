@@ -19,6 +19,7 @@
 package org.apache.sling.resourcemerger.impl;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.sling.api.resource.AbstractResource;
@@ -26,12 +27,13 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceMetadata;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
-import org.apache.sling.api.wrappers.DeepReadValueMapDecorator;
+import org.apache.sling.resourcemerger.api.MergedResourceChildren;
+import org.apache.sling.resourcemerger.api.MergedResourceVisitor;
 
 /**
  * {@inheritDoc}
  */
-public class MergedResource extends AbstractResource {
+public class MergedResource extends AbstractResource implements MergedResourceChildren {
 
     /** The resource resolver. */
     private final ResourceResolver resolver;
@@ -48,12 +50,27 @@ public class MergedResource extends AbstractResource {
     /** Resource meta data. */
     private final ResourceMetadata metadata = new ResourceMetadata();
 
-    /** Cache value map. */
-    private final ValueMap properties;
+    /** Cache value map, created on first access. */
+    private ValueMap properties;
+
+    /** The merged properties, without deep read support. */
+    private final ValueMap mergedProperties;
+
+    /** Whether the properties are read from the single layer resource without merging them. */
+    private final boolean passThrough;
+
+    /** The path relative to the merge root. */
+    private final String relativePath;
 
     /** Resources which are merged together. */
     private final List<Resource> mergedResources;
 
+    /** The provider which created this resource or {@code null}. */
+    private final MergingResourceProvider provider;
+
+    /** The parent this resource has been created from as a child or {@code null}. */
+    private Resource parent;
+
     /**
      * Constructor
      *
@@ -68,22 +85,121 @@ public class MergedResource extends AbstractResource {
                    final String relativePath,
                    final List<Resource> mergedResources,
                    final List<ValueMap> valueMaps) {
+        this(null, resolver, mergeRootPath, relativePath, mergedResources, valueMaps);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param provider      The provider creating the resource
+     * @param resolver      Resource resolver
+     * @param mergeRootPath   Merge root path
+     * @param relativePath    Relative path
+     * @param mergedResources List of physical merged resources
+     * @param valueMaps List of value maps for the merged resources
+     */
+    MergedResource(final MergingResourceProvider provider,
+                   final ResourceResolver resolver,
+                   final String mergeRootPath,
+                   final String relativePath,
+                   final List<Resource> mergedResources,
+                   final List<ValueMap> valueMaps) {
+        this(provider, resolver, mergeRootPath, relativePath, mergedResources, new MergedValueMap(valueMaps));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param provider      The provider creating the resource
+     * @param resolver      Resource resolver
+     * @param mergeRootPath   Merge root path
+     * @param relativePath    Relative path
+     * @param mergedResources List of physical merged resources
+     * @param mergedProperties The already merged properties
+     */
+    MergedResource(final MergingResourceProvider provider,
+                   final ResourceResolver resolver,
+                   final String mergeRootPath,
+                   final String relativePath,
+                   final List<Resource> mergedResources,
+                   final ValueMap mergedProperties) {
+        this(provider, resolver, mergeRootPath, relativePath, mergedResources, mergedProperties, null, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param provider      The provider creating the resource
+     * @param resolver      Resource resolver
+     * @param mergeRootPath   Merge root path
+     * @param relativePath    Relative path
+     * @param mergedResources List of physical merged resources
+     * @param mergedProperties The already merged properties
+     * @param resourceType The resource type or {@code null} to detect it from the merged resources
+     * @param resourcePaths The paths of the merged resources or {@code null} to take them from the merged resources
+     */
+    MergedResource(final MergingResourceProvider provider,
+                   final ResourceResolver resolver,
+                   final String mergeRootPath,
+                   final String relativePath,
+                   final List<Resource> mergedResources,
+                   final ValueMap mergedProperties,
+                   final String resourceType,
+                   final String[] resourcePaths) {
+        this.provider = provider;
         this.resolver = resolver;
         this.path = (relativePath.length() == 0 ? mergeRootPath : mergeRootPath + "/" + relativePath);
+        this.relativePath = relativePath;
         this.mergedResources = mergedResources;
-        this.properties = new DeepReadValueMapDecorator(this, new MergedValueMap(valueMaps));
+        this.mergedProperties = mergedProperties instanceof MergedValueMap ? mergedProperties : new MergedValueMap(mergedProperties);
+        this.passThrough = false;
 
-        this.resourceType = detectResourceType(relativePath);
+        this.resourceType = resourceType != null ? resourceType : detectResourceType(relativePath);
         this.resourceSuperType = detectResourceSuperType();
 
         metadata.put(MergedResourceConstants.METADATA_FLAG, true);
-        final String[] resourcePaths = new String[mergedResources.size()];
-        int i = 0;
-        for(final Resource rsrc : mergedResources) {
-            resourcePaths[i] = rsrc.getPath();
-            i++;
+        if (resourcePaths != null) {
+            metadata.put(MergedResourceConstants.METADATA_RESOURCES, resourcePaths);
+        } else {
+            final String[] paths = new String[mergedResources.size()];
+            int i = 0;
+            for(final Resource rsrc : mergedResources) {
+                paths[i] = rsrc.getPath();
+                i++;
+            }
+            metadata.put(MergedResourceConstants.METADATA_RESOURCES, paths);
         }
-        metadata.put(MergedResourceConstants.METADATA_RESOURCES, resourcePaths);
+    }
+
+    /**
+     * Constructor for a resource with a single layer which has no hiding or ordering
+     * properties. The properties are read from the layer resource instead of being merged,
+     * but converted and cached like merged properties.
+     *
+     * @param provider      The provider creating the resource
+     * @param resolver      Resource resolver
+     * @param mergeRootPath   Merge root path
+     * @param relativePath    Relative path
+     * @param layer The single layer resource
+     */
+    MergedResource(final MergingResourceProvider provider,
+                   final ResourceResolver resolver,
+                   final String mergeRootPath,
+                   final String relativePath,
+                   final Resource layer) {
+        this.provider = provider;
+        this.resolver = resolver;
+        this.path = (relativePath.length() == 0 ? mergeRootPath : mergeRootPath + "/" + relativePath);
+        this.relativePath = relativePath;
+        this.mergedResources = Collections.singletonList(layer);
+        this.mergedProperties = new MergedValueMap(layer.getValueMap());
+        this.passThrough = true;
+
+        this.resourceType = detectResourceType(relativePath);
+        this.resourceSuperType = detectResourceSuperType();
+
+        metadata.put(MergedResourceConstants.METADATA_FLAG, true);
+        metadata.put(MergedResourceConstants.METADATA_RESOURCES, new String[] {layer.getPath()});
     }
 
     /**
@@ -107,7 +223,7 @@ public class MergedResource extends AbstractResource {
      * @return The resource super type or {@code null}
      */
     private String detectResourceSuperType() {
-        final String type = this.properties.get(ResourceResolver.PROPERTY_RESOURCE_TYPE, String.class);
+        final String type = this.mergedProperties.get(ResourceResolver.PROPERTY_RESOURCE_TYPE, String.class);
         if ( type != null && !type.equals(this.resourceType)) {
             return type;
         }
@@ -153,6 +269,108 @@ public class MergedResource extends AbstractResource {
         return this.mergedResources;
     }
 
+    MergingResourceProvider getProvider() {
+        return this.provider;
+    }
+
+    /**
+     * @return The merged properties, which are immutable and can be shared
+     */
+    ValueMap getMergedProperties() {
+        if (this.passThrough) {
+            // copy the properties, as the value map of the layer is bound to the resource resolver
+            return new MergedValueMap(Collections.singletonList(this.mergedProperties));
+        }
+        return this.mergedProperties;
+    }
+
+    /**
+     * @return {@code true} if the properties are read from the single layer resource
+     */
+    boolean isPassThrough() {
+        return this.passThrough;
+    }
+
+    /**
+     * Remember the parent, invoked by the provider when the resource is created as a child of it.
+     * @param parent The parent resource
+     */
+    void setParent(final Resource parent) {
+        this.parent = parent;
+    }
+
+    Resource getRememberedParent() {
+        return this.parent;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Resource getParent() {
+        if (this.parent != null) {
+            return this.parent;
+        }
+        return super.getParent();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasChildren() {
+        if (this.provider == null) {
+            return super.hasChildren();
+        }
+        return this.provider.hasChildren(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Resource getChild(final String relPath) {
+        if (this.provider == null || relPath.isEmpty() || relPath.indexOf('/') != -1
+                || ".".equals(relPath) || "..".equals(relPath)) {
+            return super.getChild(relPath);
+        }
+        return this.provider.getChild(this, relPath);
+    }
+
+    /**
+     * List a window of the children, only the children within the window are merged.
+     * @param offset The number of children to skip
+     * @param limit The maximum number of children to return
+     * @return The children or {@code null} if this resource has not been created by a provider
+     */
+    @Override
+    public List<Resource> listChildren(final int offset, final int limit) {
+        return this.provider == null ? null : this.provider.listChildren(this, offset, limit);
+    }
+
+    /**
+     * Visit this resource and its descendants depth-first.
+     * @param visitor The visitor
+     * @return {@code false} if this resource has not been created by a provider
+     */
+    @Override
+    public boolean visit(final MergedResourceVisitor visitor) {
+        if (this.provider == null) {
+            return false;
+        }
+        MergedTreeVisit.visit(this.provider, this, visitor);
+        return true;
+    }
+
+    /**
+     * Get the names of the children without merging them.
+     * @return The names or {@code null} if this resource has not been created by a provider
+     */
+    @Override
+    public List<String> getChildNames() {
+        return this.provider == null ? null : this.provider.getChildNames(this);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -160,6 +378,9 @@ public class MergedResource extends AbstractResource {
     @SuppressWarnings("unchecked")
     public <AdapterType> AdapterType adaptTo(final Class<AdapterType> type) {
         if (type == ValueMap.class) {
+            if (this.properties == null) {
+                this.properties = new MergedDeepReadValueMap(this, this.relativePath, this.mergedProperties);
+            }
             return (AdapterType) this.properties;
         }
         return super.adaptTo(type);
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.resourcemerger.spi.MergedResourcePicker2;
+import org.apache.sling.resourcemerger.spi.MergedResourcePicker3;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Makes a {@link MergedResourcePicker3} usable as {@link MergedResourcePicker2}. The provider
+ * passes its collector to the wrapped picker, all other callers get the layers as list.
+ */
+final class MergedResourcePicker3Adapter implements MergedResourcePicker2 {
+
+    private final MergedResourcePicker3 picker;
+
+    MergedResourcePicker3Adapter(final MergedResourcePicker3 picker) {
+        this.picker = picker;
+    }
+
+    MergedResourcePicker3 getPicker() {
+        return this.picker;
+    }
+
+    @Override
+    public @NotNull List<@NotNull Resource> pickResources(final @NotNull ResourceResolver resolver, final @NotNull String relativePath,
+            final Resource relatedResource) {
+        if (this.picker instanceof MergedResourcePicker2) {
+            return ((MergedResourcePicker2) this.picker).pickResources(resolver, relativePath, relatedResource);
+        }
+        final List<Resource> resources = new ArrayList<>();
+        this.picker.pickLayers(resolver, relativePath, relatedResource, new MergedResourcePicker3.LayerCollector() {
+
+            @Override
+            public void layer(final @NotNull Resource resource) {
+                resources.add(resource);
+            }
+
+            @Override
+            public void layer(final @NotNull String path, final boolean exists) {
+                final Resource resource = exists ? resolver.getResource(path) : null;
+                resources.add(resource != null ? resource : new NonExistingResource(resolver, path));
+            }
+        });
+        return resources;
+    }
+
+    /**
+     * Pass the layers picked by the picker to the collector. Pickers not supporting
+     * {@link MergedResourcePicker3} pass their list of resources.
+     * @param picker The picker
+     * @param resolver The resource resolver
+     * @param relativePath The path relative to the merge root
+     * @param relatedResource The related resource or {@code null}
+     * @param collector The collector
+     */
+    static void pickLayers(final MergedResourcePicker2 picker, final ResourceResolver resolver, final String relativePath,
+            final Resource relatedResource, final MergedResourcePicker3.LayerCollector collector) {
+        if (picker instanceof MergedResourcePicker3Adapter) {
+            ((MergedResourcePicker3Adapter) picker).picker.pickLayers(resolver, relativePath, relatedResource, collector);
+        } else {
+            for (final Resource resource : picker.pickResources(resolver, relativePath, relatedResource)) {
+                collector.layer(resource);
+            }
+        }
+    }
+}
@@ -18,14 +18,40 @@
  */
 package org.apache.sling.resourcemerger.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.resourcemerger.spi.MergeObserver;
 import org.apache.sling.resourcemerger.spi.MergedResourcePicker;
 import org.apache.sling.resourcemerger.spi.MergedResourcePicker2;
+import org.apache.sling.resourcemerger.spi.MergedResourcePicker3;
 import org.apache.sling.spi.resource.provider.ResourceProvider;
 import org.jetbrains.annotations.NotNull;
 import org.osgi.framework.BundleContext;
@@ -37,17 +63,52 @@ import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * Registers all {@link MergedResourcePicker} and {@link MergedResourcePicker2} services as {@link MergingResourceProvider}s.
+ * Registers all {@link MergedResourcePicker}, {@link MergedResourcePicker2} and {@link MergedResourcePicker3} services
+ * as {@link MergingResourceProvider}s. Services registered as {@link MergedResourcePicker2} which implement
+ * {@link MergedResourcePicker3} as well are used through the latter.
+ * Pickers with the same merge root, read-only flag, snapshot file and materialize path share a provider, which
+ * uses the picker with the lowest service id, like the resource resolver factory picks the first registered of
+ * several providers for the same root. Changes of the other service properties of that picker and unbinding it
+ * reconfigure the registered provider, so the resource resolver factory does not need to rebuild its provider tree.
  */
 @SuppressWarnings("deprecation")
-@Component
+@Component(service = MergedResourcePickerWhiteboard.class)
 public class MergedResourcePickerWhiteboard {
 
+    /**
+     * The subservice used to read the picked resources for observing changes, snapshots, the warm-up
+     * and the web console plugin. The mapped service user needs read access to the picked resources.
+     */
+    static final String SUBSERVICE_READER = "reader";
+
+    /**
+     * The subservice used to write materialized trees. The mapped service user needs read access to the
+     * picked resources and write access to the materialize paths.
+     */
+    static final String SUBSERVICE_MATERIALIZER = "materializer";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
     private final @NotNull BundleContext bundleContext;
 
-    private final Map<Long, ServiceRegistration<ResourceProvider<Void>>> resourceProvidersPerPickerServiceId = new ConcurrentHashMap<>();
+    private final Map<Long, Registration> registrationsPerPickerServiceId = new ConcurrentHashMap<>();
+
+    /** Executor for background tasks like loading snapshots and warming up. */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "Apache Sling Resource Merger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Used to get a service resolver for background tasks. */
+    private volatile ResourceResolverFactory resourceResolverFactory;
+
+    private final List<MergeObserver> observers = new CopyOnWriteArrayList<>();
 
     @Activate
     public MergedResourcePickerWhiteboard(final @NotNull BundleContext bundleContext) {
@@ -56,65 +117,652 @@ public class MergedResourcePickerWhiteboard {
 
     @Deactivate
     protected void deactivate() {
-        for (ServiceRegistration<ResourceProvider<Void>> resourceProvider : resourceProvidersPerPickerServiceId.values()) {
-            try {
-                resourceProvider.unregister();
-            } catch ( final IllegalStateException ise ) {
-                // we ignore this as the service might already be gone
-            }
+        this.executor.shutdownNow();
+        for (final Registration registration : getRegistrations()) {
+            registration.unregister();
+        }
+        registrationsPerPickerServiceId.clear();
+    }
+
+    @Reference(policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.OPTIONAL, policyOption = ReferencePolicyOption.GREEDY)
+    protected void bindResourceResolverFactory(final ResourceResolverFactory factory) {
+        this.resourceResolverFactory = factory;
+        for (final Registration registration : getRegistrations()) {
+            scheduleChangeListener(registration);
+            scheduleSnapshot(registration);
+            scheduleMaterialize(registration);
+            scheduleWarmup(registration);
         }
     }
 
-    @Reference(policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.MULTIPLE)
+    protected void unbindResourceResolverFactory(final ResourceResolverFactory factory) {
+        if (this.resourceResolverFactory == factory) {
+            this.resourceResolverFactory = null;
+        }
+    }
+
+    @Reference(policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.MULTIPLE, policyOption = ReferencePolicyOption.GREEDY)
+    protected void bindMergeObserver(final MergeObserver observer) {
+        this.observers.add(observer);
+        updateObservers();
+    }
+
+    protected void unbindMergeObserver(final MergeObserver observer) {
+        this.observers.remove(observer);
+        updateObservers();
+    }
+
+    private void updateObservers() {
+        final MergeObserver[] current = this.observers.toArray(new MergeObserver[0]);
+        for (final Registration registration : getRegistrations()) {
+            registration.provider.setObservers(current);
+        }
+    }
+
+    @Reference(policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.MULTIPLE, updated = "updatedMergedResourcePicker")
     public void bindMergedResourcePicker(MergedResourcePicker resourcePicker, Map<String, Object> properties) {
         registerMergingResourceProvider((resolver, relativePath, relatedResource) -> resourcePicker.pickResources(resolver, relativePath), properties);
     }
 
+    public void updatedMergedResourcePicker(MergedResourcePicker resourcePicker, Map<String, Object> properties) {
+        updateMergingResourceProvider((resolver, relativePath, relatedResource) -> resourcePicker.pickResources(resolver, relativePath), properties);
+    }
+
     public void unbindMergedResourcePicker(Map<String, Object> properties) {
         unregisterMergingResourceProvider(properties);
     }
 
-    @Reference(policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.MULTIPLE)
+    @Reference(policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.MULTIPLE, updated = "updatedMergedResourcePicker2")
     public void bindMergedResourcePicker2(MergedResourcePicker2 resourcePicker, Map<String, Object> properties) {
-        registerMergingResourceProvider(resourcePicker, properties);
+        registerMergingResourceProvider(adapt(resourcePicker), properties);
+    }
+
+    public void updatedMergedResourcePicker2(MergedResourcePicker2 resourcePicker, Map<String, Object> properties) {
+        updateMergingResourceProvider(adapt(resourcePicker), properties);
     }
 
     public void unbindMergedResourcePicker2(Map<String, Object> properties) {
         unregisterMergingResourceProvider(properties);
     }
 
+    @Reference(policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.MULTIPLE, updated = "updatedMergedResourcePicker3")
+    public void bindMergedResourcePicker3(MergedResourcePicker3 resourcePicker, Map<String, Object> properties) {
+        if (!isMergedResourcePicker2(properties)) {
+            registerMergingResourceProvider(new MergedResourcePicker3Adapter(resourcePicker), properties);
+        }
+    }
+
+    public void updatedMergedResourcePicker3(MergedResourcePicker3 resourcePicker, Map<String, Object> properties) {
+        if (!isMergedResourcePicker2(properties)) {
+            updateMergingResourceProvider(new MergedResourcePicker3Adapter(resourcePicker), properties);
+        }
+    }
+
+    public void unbindMergedResourcePicker3(Map<String, Object> properties) {
+        if (!isMergedResourcePicker2(properties)) {
+            unregisterMergingResourceProvider(properties);
+        }
+    }
+
+    private static MergedResourcePicker2 adapt(final MergedResourcePicker2 resourcePicker) {
+        return resourcePicker instanceof MergedResourcePicker3 ? new MergedResourcePicker3Adapter((MergedResourcePicker3) resourcePicker) : resourcePicker;
+    }
+
+    /**
+     * @return {@code true} if the service is bound as {@link MergedResourcePicker2} as well
+     */
+    private static boolean isMergedResourcePicker2(final Map<String, Object> properties) {
+        final String[] objectClass = PropertiesUtil.toStringArray(properties.get(Constants.OBJECTCLASS));
+        return objectClass != null && Arrays.asList(objectClass).contains(MergedResourcePicker2.class.getName());
+    }
+
     @SuppressWarnings("unchecked")
-    private void registerMergingResourceProvider(MergedResourcePicker2 resourcePicker, Map<String, Object> properties) {
+    private synchronized void registerMergingResourceProvider(MergedResourcePicker2 resourcePicker, Map<String, Object> properties) {
         final String mergeRoot = (String)properties.getOrDefault(MergedResourcePicker2.MERGE_ROOT, null);
         if (mergeRoot != null) {
+            final Long key = (Long) properties.get(Constants.SERVICE_ID);
+            final String registrationKey = Registration.getKey(properties);
+            for (final Registration registration : getRegistrations()) {
+                if (registration.key.equals(registrationKey)) {
+                    registrationsPerPickerServiceId.put(key, registration);
+                    if (registration.bind(key, resourcePicker, properties)) {
+                        reconfigure(registration);
+                    }
+                    return;
+                }
+            }
+
             boolean readOnly = PropertiesUtil.toBoolean(properties.get(MergedResourcePicker2.READ_ONLY), true);
             boolean traverseParent = PropertiesUtil.toBoolean(properties.get(MergedResourcePicker2.TRAVERSE_PARENT), false);
 
-            ResourceProvider<Void> provider = readOnly ?
+            MergingResourceProvider provider = readOnly ?
                     new MergingResourceProvider(mergeRoot, resourcePicker, true, traverseParent) :
                     new CRUDMergingResourceProvider(mergeRoot, resourcePicker, traverseParent);
+            provider.setFrozen(readOnly && PropertiesUtil.toBoolean(properties.get(MergedResourcePicker2.FROZEN), false));
+            provider.setDeterministic(PropertiesUtil.toBoolean(properties.get(MergedResourcePicker2.DETERMINISTIC), false));
             final Dictionary<String, Object> props = new Hashtable<>();
             props.put(ResourceProvider.PROPERTY_NAME, readOnly ? "Merging" : "CRUDMerging");
             props.put(ResourceProvider.PROPERTY_ROOT, mergeRoot);
             props.put(ResourceProvider.PROPERTY_MODIFIABLE, !readOnly);
             props.put(ResourceProvider.PROPERTY_AUTHENTICATE, ResourceProvider.AUTHENTICATE_NO);
-            final Long key = (Long) properties.get(Constants.SERVICE_ID);
-            final ServiceRegistration<ResourceProvider<Void>> resourceProvider = (ServiceRegistration<ResourceProvider<Void>>)bundleContext.registerService(ResourceProvider.class.getName(), provider, props);
-            resourceProvidersPerPickerServiceId.put(key, resourceProvider);
+            final Registration registration = new Registration(registrationKey, provider, readOnly ? getSnapshotFile(properties) : null,
+                    readOnly ? getMaterializer(provider, properties) : null);
+            registration.bind(key, resourcePicker, properties);
+            registration.warmup = new MergedTreeWarmup(provider, PropertiesUtil.toStringArray(properties.get(MergedResourcePicker2.WARMUP)));
+            if (registration.materializer != null || registration.snapshotFile != null) {
+                registration.afterChange = changes -> {
+                    if (registration.materializer != null) {
+                        registration.materializer.changed(changes);
+                    }
+                    scheduleMaterialize(registration);
+                    if (registration.snapshotFile != null && provider.getSnapshot() == null) {
+                        scheduleSnapshot(registration, true);
+                    }
+                };
+            }
+            provider.setObservationCallback(() -> scheduleChangeListener(registration));
+            registration.providerRegistration = (ServiceRegistration<ResourceProvider<Void>>)bundleContext.registerService(ResourceProvider.class.getName(), provider, props);
+            registrationsPerPickerServiceId.put(key, registration);
+            provider.setObservers(this.observers.toArray(new MergeObserver[0]));
+            scheduleChangeListener(registration);
+            scheduleSnapshot(registration);
+            scheduleMaterialize(registration);
+            scheduleWarmup(registration);
         }
     }
 
-    private void unregisterMergingResourceProvider(Map<String, Object> properties) {
+    /**
+     * Apply changed service properties of a picker. If the merge root, the read-only flag, the
+     * snapshot file or the materialize path changed, the picker is registered again, otherwise
+     * the registered provider is reconfigured.
+     */
+    private synchronized void updateMergingResourceProvider(MergedResourcePicker2 resourcePicker, Map<String, Object> properties) {
+        final Long key = (Long) properties.get(Constants.SERVICE_ID);
+        final Registration registration = key == null ? null : registrationsPerPickerServiceId.get(key);
+        if (registration != null && registration.key.equals(Registration.getKey(properties))) {
+            if (registration.bind(key, resourcePicker, properties)) {
+                reconfigure(registration);
+            }
+        } else {
+            unregisterMergingResourceProvider(properties);
+            registerMergingResourceProvider(resourcePicker, properties);
+        }
+    }
+
+    /**
+     * Let the provider use the active picker and its service properties. The merges
+     * computed so far are discarded and the background tasks are run again.
+     */
+    private void reconfigure(final Registration registration) {
+        final Registration.Binding binding = registration.getActiveBinding();
+        final MergingResourceProvider provider = registration.provider;
+        provider.reconfigure(binding.picker, PropertiesUtil.toBoolean(binding.properties.get(MergedResourcePicker2.TRAVERSE_PARENT), false));
+        provider.setFrozen(PropertiesUtil.toBoolean(binding.properties.get(MergedResourcePicker2.FROZEN), false));
+        provider.setDeterministic(PropertiesUtil.toBoolean(binding.properties.get(MergedResourcePicker2.DETERMINISTIC), false));
+        registration.warmup = new MergedTreeWarmup(provider, PropertiesUtil.toStringArray(binding.properties.get(MergedResourcePicker2.WARMUP)));
+        registration.resetWarmup();
+        // the picked layer roots might have changed
+        registration.unregisterChangeListener();
+        logger.info("Reconfigured merged resources at {}", provider.mergeRootPath);
+        scheduleChangeListener(registration);
+        scheduleSnapshot(registration);
+        scheduleMaterialize(registration);
+        scheduleWarmup(registration);
+    }
+
+    /**
+     * @return The registrations, each registration only once
+     */
+    private Set<Registration> getRegistrations() {
+        return new LinkedHashSet<>(registrationsPerPickerServiceId.values());
+    }
+
+    /**
+     * @param path A resource path
+     * @return The provider with the longest merge root containing the path or {@code null}
+     */
+    MergingResourceProvider getProvider(final String path) {
+        MergingResourceProvider result = null;
+        for (final Registration registration : getRegistrations()) {
+            final String root = registration.provider.mergeRootPath;
+            if ((path.equals(root) || path.startsWith(root.endsWith("/") ? root : root + "/"))
+                    && (result == null || root.length() > result.mergeRootPath.length())) {
+                result = registration.provider;
+            }
+        }
+        return result;
+    }
+
+    ResourceResolverFactory getResourceResolverFactory() {
+        return this.resourceResolverFactory;
+    }
+
+    /**
+     * @param name The subservice name
+     * @return The authentication info to get a service resource resolver for the subservice
+     */
+    static Map<String, Object> subservice(final String name) {
+        return Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, name);
+    }
+
+    /**
+     * Refresh all frozen providers, e.g. after a deployment changed the picked resources.
+     * Their snapshots and materialized trees are created again and the warm-up is repeated.
+     * @return The merge roots of the refreshed providers
+     */
+    List<String> refreshFrozen() {
+        final List<String> roots = new ArrayList<>();
+        for (final Registration registration : getRegistrations()) {
+            if (registration.provider.isFrozen()) {
+                registration.provider.refresh();
+                roots.add(registration.provider.mergeRootPath);
+                registration.resetWarmup();
+                scheduleSnapshot(registration);
+                scheduleMaterialize(registration);
+                scheduleWarmup(registration);
+            }
+        }
+        return roots;
+    }
+
+    private synchronized void unregisterMergingResourceProvider(Map<String, Object> properties) {
         final Long key = (Long) properties.get(Constants.SERVICE_ID);
         if (key != null) {
-            final ServiceRegistration<ResourceProvider<Void>> resourceProvider = resourceProvidersPerPickerServiceId.get(key);
-            if (resourceProvider != null) {
+            final Registration registration = registrationsPerPickerServiceId.remove(key);
+            if (registration != null) {
+                final boolean active = registration.isActive(key);
+                if (registration.unbind(key)) {
+                    registration.unregister();
+                } else if (active) {
+                    // another picker takes over the provider
+                    reconfigure(registration);
+                }
+            }
+        }
+    }
+
+    private File getSnapshotFile(final Map<String, Object> properties) {
+        final String path = PropertiesUtil.toString(properties.get(MergedResourcePicker2.SNAPSHOT_FILE), null);
+        if (path == null || path.trim().isEmpty()) {
+            return null;
+        }
+        final File file = new File(path.trim());
+        return file.isAbsolute() ? file : bundleContext.getDataFile(path.trim());
+    }
+
+    private static MergedTreeMaterializer getMaterializer(final MergingResourceProvider provider, final Map<String, Object> properties) {
+        final String path = PropertiesUtil.toString(properties.get(MergedResourcePicker2.MATERIALIZE_PATH), null);
+        if (path == null || path.trim().isEmpty()) {
+            return null;
+        }
+        return new MergedTreeMaterializer(provider, path.trim());
+    }
+
+    private void scheduleChangeListener(final Registration registration) {
+        if (this.resourceResolverFactory != null) {
+            try {
+                this.executor.execute(() -> registerChangeListener(registration));
+            } catch (final RejectedExecutionException ree) {
+                // we ignore this as the component is deactivated
+            }
+        }
+    }
+
+    /**
+     * Register the listener for changes of the picked resources. The changes are used
+     * to discard the snapshot and the materialized tree and are reported as changes of
+     * the merged resources. The listener is only registered if there is a snapshot or
+     * a materialized tree or if the merged resources are observed, and it only receives
+     * external changes if these are used. No listener is registered for frozen providers.
+     */
+    private void registerChangeListener(final Registration registration) {
+        final ResourceResolverFactory factory = this.resourceResolverFactory;
+        if (factory == null || registration.providerRegistration == null || registration.provider.isFrozen()) {
+            return;
+        }
+        final boolean internal = registration.afterChange != null;
+        if (!internal && !registration.provider.isObserved(false)) {
+            registration.unregisterChangeListener();
+            return;
+        }
+        try (final ResourceResolver resolver = factory.getServiceResourceResolver(subservice(SUBSERVICE_READER))) {
+            registration.registerChangeListener(bundleContext, registration.provider.getLayerRoots(resolver),
+                    internal || registration.provider.isObserved(true));
+        } catch (final LoginException le) {
+            logger.warn("Unable to get service resource resolver to observe merged resources at " + registration.provider.mergeRootPath, le);
+        }
+    }
+
+    private void scheduleSnapshot(final Registration registration) {
+        scheduleSnapshot(registration, false);
+    }
+
+    /**
+     * @param rewrite Whether a new snapshot is written even if the existing file is valid,
+     *                which is the case after the snapshot has been discarded due to a change
+     */
+    private void scheduleSnapshot(final Registration registration, final boolean rewrite) {
+        if (registration.snapshotFile != null && this.resourceResolverFactory != null
+                && (!rewrite || registration.snapshotScheduled.compareAndSet(false, true))) {
+            try {
+                this.executor.execute(() -> loadSnapshot(registration, rewrite));
+            } catch (final RejectedExecutionException ree) {
+                // we ignore this as the component is deactivated
+            }
+        }
+    }
+
+    /**
+     * Open and validate the snapshot of the provider, or create a new one if the snapshot
+     * is missing or outdated. Only the merge root is validated here, the other merged
+     * resources are checked against their fingerprints when they are used. The listener
+     * for changes of the picked resources is registered before, changes which happen while
+     * the snapshot is validated prevent it from being used.
+     */
+    private void loadSnapshot(final Registration registration, final boolean rewrite) {
+        if (rewrite) {
+            registration.snapshotScheduled.set(false);
+        }
+        final ResourceResolverFactory factory = this.resourceResolverFactory;
+        if (factory == null || registration.providerRegistration == null || registration.provider.getSnapshot() != null) {
+            return;
+        }
+        final MergingResourceProvider provider = registration.provider;
+        try (final ResourceResolver resolver = factory.getServiceResourceResolver(subservice(SUBSERVICE_READER))) {
+            registration.registerChangeListener(bundleContext, provider.getLayerRoots(resolver), true);
+            final long changeCount = provider.getChangeCount();
+
+            MergedTreeSnapshot snapshot = null;
+            if (!rewrite && registration.snapshotFile.exists()) {
+                try {
+                    snapshot = MergedTreeSnapshot.open(registration.snapshotFile);
+                    if (!snapshot.isValid(resolver, provider)) {
+                        logger.info("Snapshot {} of merged resources at {} is outdated.", registration.snapshotFile, provider.mergeRootPath);
+                        snapshot = null;
+                    }
+                } catch (final IOException ioe) {
+                    logger.warn("Unable to read snapshot " + registration.snapshotFile, ioe);
+                }
+            }
+            if (snapshot == null) {
+                snapshot = MergedTreeSnapshot.write(resolver, provider, registration.snapshotFile);
+                logger.info("Created snapshot {} of {} merged resources at {}.", registration.snapshotFile, snapshot.getNodeCount(), provider.mergeRootPath);
+            }
+            if (!provider.setSnapshot(snapshot, changeCount)) {
+                logger.info("Snapshot of merged resources at {} not used due to concurrent changes.", provider.mergeRootPath);
+            }
+        } catch (final LoginException le) {
+            logger.warn("Unable to get service resource resolver for snapshot of merged resources at " + provider.mergeRootPath, le);
+        } catch (final IOException ioe) {
+            logger.warn("Unable to write snapshot " + registration.snapshotFile, ioe);
+        }
+    }
+
+    private void scheduleMaterialize(final Registration registration) {
+        if (registration.materializer != null && this.resourceResolverFactory != null
+                && registration.materializeScheduled.compareAndSet(false, true)) {
+            try {
+                this.executor.execute(() -> materialize(registration));
+            } catch (final RejectedExecutionException ree) {
+                // we ignore this as the component is deactivated
+            }
+        }
+    }
+
+    /**
+     * Write the merged tree of the provider and let the provider serve the resources from there
+     * if the written tree is equal to the live merge. Changes which happen while the tree is
+     * written prevent it from being used and schedule writing it again. Once the tree is used,
+     * only the changed subtrees are written again.
+     */
+    private void materialize(final Registration registration) {
+        registration.materializeScheduled.set(false);
+        final ResourceResolverFactory factory = this.resourceResolverFactory;
+        final MergingResourceProvider provider = registration.provider;
+        if (factory == null || registration.providerRegistration == null) {
+            return;
+        }
+        final MergedTreeMaterializer materializer = registration.materializer;
+        try (final ResourceResolver resolver = factory.getServiceResourceResolver(subservice(SUBSERVICE_MATERIALIZER))) {
+            registration.registerChangeListener(bundleContext, provider.getLayerRoots(resolver), true);
+            if (provider.getMaterializedPath() != null) {
+                final List<String> paths = materializer.update(resolver);
+                final List<String> differences = paths.isEmpty() ? paths : materializer.verify(resolver, paths);
+                if (!differences.isEmpty()) {
+                    logger.warn("Materialized merged resources at {} differ from the live merge at {}, resources are merged live.",
+                            materializer.getTargetPath(), differences);
+                    provider.discardMaterialized();
+                } else if (!paths.isEmpty()) {
+                    provider.materializedUpdated();
+                    logger.debug("Updated materialized merged resources at {} in {}.", paths, materializer.getTargetPath());
+                }
+                return;
+            }
+            final long changeCount = provider.getChangeCount();
+            final int count = materializer.write(resolver);
+            final List<String> differences = materializer.verify(resolver);
+            if (!differences.isEmpty()) {
+                logger.warn("Materialized merged resources at {} differ from the live merge at {}, resources are merged live.",
+                        materializer.getTargetPath(), differences);
+            } else if (provider.setMaterialized(materializer, changeCount)) {
+                logger.info("Materialized {} merged resources at {} into {}.", count, provider.mergeRootPath, materializer.getTargetPath());
+            } else {
+                logger.info("Materialized merged resources at {} not used due to concurrent changes.", provider.mergeRootPath);
+            }
+        } catch (final LoginException le) {
+            logger.warn("Unable to get service resource resolver to materialize merged resources at " + provider.mergeRootPath, le);
+        } catch (final PersistenceException pe) {
+            logger.warn("Unable to materialize merged resources at " + provider.mergeRootPath + " into " + materializer.getTargetPath(), pe);
+        }
+    }
+
+    private void scheduleWarmup(final Registration registration) {
+        if (registration.warmup != null && !registration.warmup.isEmpty() && this.resourceResolverFactory != null) {
+            try {
+                this.executor.execute(() -> warmup(registration));
+            } catch (final RejectedExecutionException ree) {
+                // we ignore this as the component is deactivated
+            }
+        }
+    }
+
+    /**
+     * Merge the configured subtrees of the provider once. This runs after the snapshot
+     * has been loaded (if configured), the subtrees are merged in parallel.
+     */
+    private void warmup(final Registration registration) {
+        final ResourceResolverFactory factory = this.resourceResolverFactory;
+        if (factory == null || registration.providerRegistration == null || !registration.startWarmup()) {
+            return;
+        }
+        final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            registration.warmup.run(factory, pool);
+        } catch (final RuntimeException re) {
+            logger.warn("Unable to warm up merged resources at " + registration.provider.mergeRootPath, re);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static final class Registration {
+
+        /** A picker using the provider of this registration. */
+        static final class Binding {
+
+            final MergedResourcePicker2 picker;
+
+            final Map<String, Object> properties;
+
+            Binding(final MergedResourcePicker2 picker, final Map<String, Object> properties) {
+                this.picker = picker;
+                this.properties = properties;
+            }
+        }
+
+        /** The service properties which can't be changed without registering a new provider. */
+        final String key;
+
+        final MergingResourceProvider provider;
+
+        final File snapshotFile;
+
+        volatile MergedTreeWarmup warmup;
+
+        final MergedTreeMaterializer materializer;
+
+        final AtomicBoolean materializeScheduled = new AtomicBoolean();
+
+        final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+
+        /** Invoked with the changes after they have been passed to the provider or {@code null}. */
+        volatile Consumer<List<ResourceChange>> afterChange;
+
+        private boolean warmupStarted;
+
+        volatile ServiceRegistration<ResourceProvider<Void>> providerRegistration;
+
+        volatile ServiceRegistration<ResourceChangeListener> listenerRegistration;
+
+        /** Whether the registered listener receives external changes. */
+        private boolean listenerExternal;
+
+        /** The pickers for the provider, keyed by service id, the first one is used by the provider. */
+        private final TreeMap<Long, Binding> bindings = new TreeMap<>();
+
+        Registration(final String key, final MergingResourceProvider provider, final File snapshotFile,
+                final MergedTreeMaterializer materializer) {
+            this.key = key;
+            this.provider = provider;
+            this.snapshotFile = snapshotFile;
+            this.materializer = materializer;
+        }
+
+        static String getKey(final Map<String, Object> properties) {
+            final boolean readOnly = PropertiesUtil.toBoolean(properties.get(MergedResourcePicker2.READ_ONLY), true);
+            return Objects.toString(properties.get(MergedResourcePicker2.MERGE_ROOT)) + '|' + readOnly
+                    + (readOnly ? '|' + PropertiesUtil.toString(properties.get(MergedResourcePicker2.SNAPSHOT_FILE), "").trim()
+                            + '|' + PropertiesUtil.toString(properties.get(MergedResourcePicker2.MATERIALIZE_PATH), "").trim() : "");
+        }
+
+        /**
+         * Add or update the picker with the given service id.
+         * @return {@code true} if the picker is the active picker
+         */
+        synchronized boolean bind(final Long serviceId, final MergedResourcePicker2 picker, final Map<String, Object> properties) {
+            this.bindings.put(serviceId, new Binding(picker, properties));
+            return this.isActive(serviceId);
+        }
+
+        /**
+         * @return {@code true} if the picker with the given service id is the active picker
+         */
+        synchronized boolean isActive(final Long serviceId) {
+            return !this.bindings.isEmpty() && this.bindings.firstKey().equals(serviceId);
+        }
+
+        /**
+         * Remove the picker with the given service id.
+         * @return {@code true} if no picker is left
+         */
+        synchronized boolean unbind(final Long serviceId) {
+            this.bindings.remove(serviceId);
+            return this.bindings.isEmpty();
+        }
+
+        /**
+         * @return The binding of the active picker, which is the one with the lowest service id
+         */
+        synchronized Binding getActiveBinding() {
+            return this.bindings.isEmpty() ? null : this.bindings.firstEntry().getValue();
+        }
+
+        /**
+         * @return {@code true} if the warm-up has not been started before
+         */
+        synchronized boolean startWarmup() {
+            final boolean result = !this.warmupStarted;
+            this.warmupStarted = true;
+            return result;
+        }
+
+        synchronized void resetWarmup() {
+            this.warmupStarted = false;
+        }
+
+        /**
+         * Register the listener unless it is registered already for the same kind of changes.
+         * @param external Whether external changes are received as well
+         */
+        @SuppressWarnings("unchecked")
+        synchronized void registerChangeListener(final BundleContext bundleContext, final String[] paths, final boolean external) {
+            if (this.listenerRegistration != null && this.listenerExternal != external) {
+                this.unregisterChangeListener();
+            }
+            if (this.listenerRegistration == null && this.providerRegistration != null && !this.provider.isFrozen()) {
+                final Dictionary<String, Object> props = new Hashtable<>();
+                props.put(ResourceChangeListener.PATHS, paths);
+                final ResourceChangeListener listener = external ? new ExternalLayerChangeListener(this) : new LayerChangeListener(this);
+                this.listenerRegistration = (ServiceRegistration<ResourceChangeListener>)bundleContext.registerService(
+                        external ? new String[] {ResourceChangeListener.class.getName(), ExternalResourceChangeListener.class.getName()}
+                                : new String[] {ResourceChangeListener.class.getName()},
+                        listener, props);
+                this.listenerExternal = external;
+            }
+        }
+
+        synchronized void unregisterChangeListener() {
+            unregister(this.listenerRegistration);
+            this.listenerRegistration = null;
+        }
+
+        synchronized void unregister() {
+            unregister(this.listenerRegistration);
+            this.listenerRegistration = null;
+            unregister(this.providerRegistration);
+            this.providerRegistration = null;
+        }
+
+        static void unregister(final ServiceRegistration<?> registration) {
+            if (registration != null) {
                 try {
-                    resourceProvider.unregister();
+                    registration.unregister();
                 } catch ( final IllegalStateException ise ) {
                     // we ignore this as the service might already be gone
                 }
             }
         }
     }
+
+    /**
+     * Forwards changes of the picked resources to the provider and schedules
+     * writing the materialized tree and the discarded snapshot again.
+     */
+    private static class LayerChangeListener implements ResourceChangeListener {
+
+        private final Registration registration;
+
+        LayerChangeListener(final Registration registration) {
+            this.registration = registration;
+        }
+
+        @Override
+        public void onChange(final @NotNull List<ResourceChange> changes) {
+            this.registration.provider.onChange(changes);
+            final Consumer<List<ResourceChange>> afterChange = this.registration.afterChange;
+            if (afterChange != null) {
+                afterChange.accept(changes);
+            }
+        }
+    }
+
+    /**
+     * Receives external changes as well.
+     */
+    private static final class ExternalLayerChangeListener extends LayerChangeListener implements ExternalResourceChangeListener {
+
+        ExternalLayerChangeListener(final Registration registration) {
+            super(registration);
+        }
+    }
 }
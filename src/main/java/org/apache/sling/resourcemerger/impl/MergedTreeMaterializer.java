@@ -0,0 +1,450 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.resource.observation.ResourceChange;
+
+/**
+ * Writes the merged tree of a provider into a repository location, so that merged
+ * resources can be read with a single lookup. Each written resource keeps the merged
+ * properties together with the paths of the merged resources and the merged resource type.
+ * <p>
+ * The primary type of the written resources is always {@code nt:unstructured}, the merged
+ * primary type is kept in a separate property and restored when the resource is read.
+ * Properties maintained by the repository, like {@code jcr:created}, are not written.
+ * <p>
+ * As the tree is written with a service resource resolver and only carries the access control
+ * of the target path, each written resource keeps the fingerprint of its picked resources as well.
+ * The provider serves a written resource only after it has been checked by a {@link FingerprintVerifier}
+ * for the resolver. Written resources which are outdated due to changes of the picked resources are
+ * not served until the changed subtrees have been written again by {@link #update(ResourceResolver)},
+ * see {@link #isOutdated(String)}.
+ */
+final class MergedTreeMaterializer {
+
+    /** The paths of the merged resources. */
+    static final String PN_RESOURCES = "sling:mergedResources";
+
+    /** The resource type of the merged resource. */
+    static final String PN_RESOURCE_TYPE = "sling:mergedResourceType";
+
+    /** The merged primary type. */
+    static final String PN_PRIMARY_TYPE = "sling:mergedPrimaryType";
+
+    /** The Base64 encoded fingerprint of the picked resources. */
+    static final String PN_FINGERPRINT = "sling:mergedFingerprint";
+
+    static final String JCR_PRIMARY_TYPE = "jcr:primaryType";
+
+    private static final String NT_UNSTRUCTURED = "nt:unstructured";
+
+    /** Properties which are maintained by the repository and therefore not written. */
+    static final Set<String> SKIPPED_PROPERTIES = new HashSet<>(Arrays.asList("jcr:mixinTypes", "jcr:uuid",
+            "jcr:created", "jcr:createdBy", "jcr:baseVersion", "jcr:predecessors", "jcr:versionHistory",
+            "jcr:isCheckedOut", "jcr:lockOwner", "jcr:lockIsDeep"));
+
+    /** The maximum number of differences collected by {@link #verify(ResourceResolver)}. */
+    private static final int MAX_DIFFERENCES = 10;
+
+    private final MergingResourceProvider provider;
+
+    private final String targetPath;
+
+    /** The paths of the resources picked for the merge root when the tree has been written. */
+    private volatile String[] layerRoots;
+
+    /** The relative paths of the subtrees which need to be written again. */
+    private final Set<String> changed = new HashSet<>();
+
+    /**
+     * The relative paths of the subtrees which are outdated, until they have been written again.
+     * Only modified while holding the lock of {@link #changed}.
+     */
+    private final Set<String> outdated = ConcurrentHashMap.newKeySet();
+
+    MergedTreeMaterializer(final MergingResourceProvider provider, final String targetPath) {
+        this.provider = provider;
+        this.targetPath = targetPath;
+    }
+
+    String getTargetPath() {
+        return this.targetPath;
+    }
+
+    /**
+     * Replace the tree at the target path with the merged tree and commit the changes.
+     * The merged tree is merged live, independent of what the provider currently serves.
+     * @param resolver The resource resolver, must be able to read all merged resources and to write the target path
+     * @return The number of written resources
+     * @throws PersistenceException If writing fails
+     */
+    int write(final ResourceResolver resolver) throws PersistenceException {
+        synchronized (this.changed) {
+            this.changed.clear();
+        }
+        this.layerRoots = this.provider.getLayerRoots(resolver);
+        final Resource existing = resolver.getResource(this.targetPath);
+        if (existing != null) {
+            resolver.delete(existing);
+        }
+        int count = 0;
+        final Resource root = this.provider.getLiveResource(resolver, "");
+        if (root != null) {
+            final Resource parent = ResourceUtil.getOrCreateResource(resolver, ResourceUtil.getParent(this.targetPath), (String) null, null, false);
+            count = this.write(resolver, parent, ResourceUtil.getName(this.targetPath), "", root);
+        }
+        resolver.commit();
+        this.written();
+        return count;
+    }
+
+    /**
+     * Invoked after the changes have been committed, only the subtrees which changed again since are still outdated.
+     */
+    private void written() {
+        synchronized (this.changed) {
+            this.outdated.retainAll(this.changed);
+        }
+    }
+
+    /**
+     * Check whether a written resource is outdated, because a change of the picked resources has been
+     * recorded for its subtree or for the subtree of one of its ancestors which has not been written again.
+     * @param relativePath The path relative to the merge root
+     * @return {@code true} if the written resource must not be served
+     */
+    boolean isOutdated(final String relativePath) {
+        if (this.outdated.isEmpty()) {
+            return false;
+        }
+        if (this.outdated.contains("")) {
+            return true;
+        }
+        int index = relativePath.indexOf('/');
+        while (index != -1) {
+            if (this.outdated.contains(relativePath.substring(0, index))) {
+                return true;
+            }
+            index = relativePath.indexOf('/', index + 1);
+        }
+        return !relativePath.isEmpty() && this.outdated.contains(relativePath);
+    }
+
+    private int write(final ResourceResolver resolver, final Resource parent, final String name, final String relativePath,
+            final Resource merged) throws PersistenceException {
+        final Resource written = resolver.create(parent, name, this.getProperties(resolver, relativePath, merged));
+        int count = 1;
+        for (final Resource child : this.provider.getLiveChildren(merged)) {
+            count += this.write(resolver, written, child.getName(), MergedTreeSnapshot.childPath(relativePath, child.getName()), child);
+        }
+        return count;
+    }
+
+    /**
+     * @return The properties to write for the merged resource
+     */
+    private Map<String, Object> getProperties(final ResourceResolver resolver, final String relativePath, final Resource merged) {
+        final Map<String, Object> props = new HashMap<>();
+        for (final Map.Entry<String, Object> entry : merged.getValueMap().entrySet()) {
+            if (JCR_PRIMARY_TYPE.equals(entry.getKey())) {
+                props.put(PN_PRIMARY_TYPE, entry.getValue());
+            } else if (!SKIPPED_PROPERTIES.contains(entry.getKey())) {
+                props.put(entry.getKey(), entry.getValue());
+            }
+        }
+        props.put(JCR_PRIMARY_TYPE, NT_UNSTRUCTURED);
+        props.put(PN_RESOURCES, merged.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES));
+        props.put(PN_RESOURCE_TYPE, merged.getResourceType());
+        props.put(PN_FINGERPRINT, Base64.getEncoder().encodeToString(
+                FingerprintVerifier.fingerprint(relativePath, this.provider.pickResources(resolver, relativePath, null))));
+        return props;
+    }
+
+    /**
+     * Record changes of the picked resources. If the picker picks the layers of a child as the
+     * children of the layers of its parent, the subtree of the parent of each changed resource is
+     * written again, as its hiding and ordering properties affect its siblings and its descendants.
+     * For all other pickers the whole tree is written again.
+     * @param changes The changes of the picked resources
+     */
+    void changed(final List<ResourceChange> changes) {
+        final String[] roots = MergedTreeVisit.preservesLayers(this.provider.picker) ? this.layerRoots : null;
+        synchronized (this.changed) {
+            for (final ResourceChange change : changes) {
+                if (roots == null) {
+                    this.changed.add("");
+                    this.outdated.add("");
+                    continue;
+                }
+                for (final String root : roots) {
+                    final String path = change.getPath();
+                    final String prefix = root.endsWith("/") ? root : root + '/';
+                    if (path.equals(root) || path.startsWith(prefix)) {
+                        final String relativePath = path.length() > prefix.length() ? path.substring(prefix.length()) : "";
+                        final String parentPath = relativePath.isEmpty() ? null : ResourceUtil.getParent(relativePath);
+                        this.changed.add(parentPath == null ? "" : parentPath);
+                        this.outdated.add(parentPath == null ? "" : parentPath);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The relative paths of the changed subtrees, excluding those contained in another one
+     */
+    private List<String> takeChanged() {
+        final TreeSet<String> paths;
+        synchronized (this.changed) {
+            paths = new TreeSet<>(this.changed);
+            this.changed.clear();
+        }
+        final List<String> result = new ArrayList<>();
+        for (final String path : paths) {
+            final String last = result.isEmpty() ? null : result.get(result.size() - 1);
+            if (last == null || !(last.isEmpty() || path.startsWith(last + '/'))) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write the changed subtrees again and commit the changes. Only the written resources which
+     * differ from the live merge are modified; a resource whose children differ in name or order
+     * is written again together with its subtree.
+     * @param resolver The resource resolver, must be able to read all merged resources and to write the target path
+     * @return The relative paths of the subtrees which have been written again
+     * @throws PersistenceException If writing fails
+     */
+    List<String> update(final ResourceResolver resolver) throws PersistenceException {
+        final List<String> paths = new ArrayList<>();
+        for (String relativePath : this.takeChanged()) {
+            Resource target = resolver.getResource(relativePath.isEmpty() ? this.targetPath : this.targetPath + '/' + relativePath);
+            // the subtree of a resource which has not been written is written with its closest written ancestor
+            while (target == null && !relativePath.isEmpty()) {
+                final String parentPath = ResourceUtil.getParent(relativePath);
+                relativePath = parentPath == null ? "" : parentPath;
+                target = resolver.getResource(relativePath.isEmpty() ? this.targetPath : this.targetPath + '/' + relativePath);
+            }
+            if (target == null) {
+                continue;
+            }
+            final Resource live = this.provider.getLiveResource(resolver, relativePath);
+            if (live == null) {
+                resolver.delete(target);
+            } else {
+                this.update(resolver, relativePath, live, target);
+            }
+            paths.add(relativePath);
+        }
+        resolver.commit();
+        this.written();
+        return paths;
+    }
+
+    private void update(final ResourceResolver resolver, final String relativePath, final Resource live, final Resource target)
+            throws PersistenceException {
+        final Map<String, Object> props = this.getProperties(resolver, relativePath, live);
+        final ValueMap existing = target.getValueMap();
+        if (!equals(props, new HashMap<>(existing))) {
+            final ModifiableValueMap mvm = target.adaptTo(ModifiableValueMap.class);
+            for (final String key : new ArrayList<>(existing.keySet())) {
+                if (!props.containsKey(key)) {
+                    mvm.remove(key);
+                }
+            }
+            for (final Map.Entry<String, Object> entry : props.entrySet()) {
+                if (!Objects.deepEquals(entry.getValue(), existing.get(entry.getKey()))) {
+                    mvm.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        final List<Resource> liveChildren = this.provider.getLiveChildren(live);
+        final List<Resource> targetChildren = toList(target.listChildren());
+        if (!names(liveChildren).equals(names(targetChildren))) {
+            final Resource parent = target.getParent();
+            final String name = target.getName();
+            resolver.delete(target);
+            final Resource written = resolver.create(parent, name, props);
+            for (final Resource child : liveChildren) {
+                this.write(resolver, written, child.getName(), MergedTreeSnapshot.childPath(relativePath, child.getName()), child);
+            }
+            return;
+        }
+        for (int i = 0; i < liveChildren.size(); i++) {
+            this.update(resolver, MergedTreeSnapshot.childPath(relativePath, liveChildren.get(i).getName()),
+                    liveChildren.get(i), targetChildren.get(i));
+        }
+    }
+
+    private static List<String> names(final List<Resource> resources) {
+        final List<String> names = new ArrayList<>(resources.size());
+        resources.forEach(rsrc -> names.add(rsrc.getName()));
+        return names;
+    }
+
+    /**
+     * @param properties The properties of a written resource
+     * @return The fingerprint or {@code null} if there is none
+     */
+    static byte[] getFingerprint(final ValueMap properties) {
+        final String fingerprint = properties.get(PN_FINGERPRINT, String.class);
+        return fingerprint == null ? null : Base64.getDecoder().decode(fingerprint);
+    }
+
+    /**
+     * Restore the merged properties of a written resource.
+     * @param properties The properties of the written resource
+     * @return The merged properties
+     */
+    static Map<String, Object> getMergedProperties(final ValueMap properties) {
+        final Map<String, Object> result = new HashMap<>(properties);
+        result.remove(PN_RESOURCES);
+        result.remove(PN_RESOURCE_TYPE);
+        result.remove(PN_FINGERPRINT);
+        result.remove(JCR_PRIMARY_TYPE);
+        final Object primaryType = result.remove(PN_PRIMARY_TYPE);
+        if (primaryType != null) {
+            result.put(JCR_PRIMARY_TYPE, primaryType);
+        }
+        return result;
+    }
+
+    /**
+     * Restore a single merged property of a written resource.
+     * @param properties The properties of the written resource
+     * @param name The name of the property
+     * @return The merged value or {@code null}
+     */
+    static Object getMergedProperty(final ValueMap properties, final String name) {
+        if (JCR_PRIMARY_TYPE.equals(name)) {
+            return properties.get(PN_PRIMARY_TYPE);
+        }
+        if (PN_RESOURCES.equals(name) || PN_RESOURCE_TYPE.equals(name) || PN_PRIMARY_TYPE.equals(name) || PN_FINGERPRINT.equals(name)) {
+            return null;
+        }
+        return properties.get(name);
+    }
+
+    /**
+     * Compare the materialized tree with the live merge.
+     * @param resolver The resource resolver
+     * @return The paths of the merged resources which differ, at most ten, empty if the trees are equal
+     */
+    List<String> verify(final ResourceResolver resolver) {
+        return this.verify(resolver, Collections.singletonList(""));
+    }
+
+    /**
+     * Compare subtrees of the materialized tree with the live merge.
+     * @param resolver The resource resolver
+     * @param relativePaths The relative paths of the subtrees
+     * @return The paths of the merged resources which differ, at most ten, empty if the subtrees are equal
+     */
+    List<String> verify(final ResourceResolver resolver, final Collection<String> relativePaths) {
+        final List<String> differences = new ArrayList<>();
+        for (final String relativePath : relativePaths) {
+            final Resource live = this.provider.getLiveResource(resolver, relativePath);
+            this.verify(resolver, live, resolver.getResource(relativePath.isEmpty() ? this.targetPath : this.targetPath + '/' + relativePath),
+                    relativePath, differences);
+        }
+        return differences;
+    }
+
+    private void verify(final ResourceResolver resolver, final Resource live, final Resource target,
+            final String relativePath, final List<String> differences) {
+        if (differences.size() >= MAX_DIFFERENCES) {
+            return;
+        }
+        final String path = relativePath.isEmpty() ? this.provider.mergeRootPath : this.provider.mergeRootPath + '/' + relativePath;
+        final Resource materialized = target == null ? null : this.provider.wrapMaterialized(resolver, relativePath, target);
+        if (live == null || materialized == null) {
+            if (live != null || target != null) {
+                differences.add(path);
+            }
+            return;
+        }
+        final Map<String, Object> liveProps = new HashMap<>(live.getValueMap());
+        liveProps.keySet().removeAll(SKIPPED_PROPERTIES);
+        final Map<String, Object> materializedProps = new HashMap<>(materialized.getValueMap());
+        if (!Objects.equals(live.getResourceType(), materialized.getResourceType())
+                || !Objects.equals(live.getResourceSuperType(), materialized.getResourceSuperType())
+                || !equals(liveProps, materializedProps)
+                || !Arrays.equals((String[]) live.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES),
+                        (String[]) materialized.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES))) {
+            differences.add(path);
+            return;
+        }
+        final List<Resource> liveChildren = this.provider.getLiveChildren(live);
+        final List<Resource> targetChildren = toList(target.listChildren());
+        final List<String> liveNames = names(liveChildren);
+        if (!liveNames.equals(names(targetChildren))) {
+            differences.add(path);
+            return;
+        }
+        for (int i = 0; i < liveChildren.size(); i++) {
+            this.verify(resolver, liveChildren.get(i), targetChildren.get(i),
+                    relativePath.isEmpty() ? liveNames.get(i) : relativePath + '/' + liveNames.get(i), differences);
+        }
+    }
+
+    private static boolean equals(final Map<String, Object> a, final Map<String, Object> b) {
+        if (!a.keySet().equals(b.keySet())) {
+            return false;
+        }
+        for (final Map.Entry<String, Object> entry : a.entrySet()) {
+            if (!Objects.deepEquals(entry.getValue(), b.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<Resource> toList(final Iterator<Resource> iter) {
+        if (iter == null) {
+            return Collections.emptyList();
+        }
+        final List<Resource> result = new ArrayList<>();
+        iter.forEachRemaining(result::add);
+        return result;
+    }
+}
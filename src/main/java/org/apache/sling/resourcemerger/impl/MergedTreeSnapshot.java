@@ -0,0 +1,731 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+
+/**
+ * A <code>MergedTreeSnapshot</code> is a persistent image of a merged resource tree
+ * which is memory-mapped when opened. For each merged resource it contains the
+ * child order, the merged properties, the paths of the merged resources (as exposed
+ * through {@link MergedResourceConstants#METADATA_RESOURCES}) and the paths of all
+ * resources picked for it.
+ * <p>
+ * Each merged resource carries a fingerprint of its picked resources. As the snapshot is
+ * written with a service resource resolver, a merged resource is only served to a resource
+ * resolver after it has been checked by a {@link FingerprintVerifier}.
+ */
+public final class MergedTreeSnapshot {
+
+    private static final int MAGIC = 0x534c4d53;
+
+    private static final int VERSION = 3;
+
+    private static final int HEADER_LENGTH = 8;
+
+    private static final int DIGEST_LENGTH = 32;
+
+    private static final int TRAILER_LENGTH = 16;
+
+    private static final byte FLAG_PROPERTIES = 1;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_INTEGER = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_DECIMAL = 6;
+    private static final byte TYPE_CALENDAR = 7;
+    private static final byte TYPE_ARRAY = (byte) 0x80;
+
+    /** The mapped file content. */
+    private final ByteBuffer buffer;
+
+    private final FingerprintVerifier verifier = new FingerprintVerifier();
+
+    private final int nodeCount;
+
+    private final int rootOffset;
+
+    private final int pathTableOffset;
+
+    private MergedTreeSnapshot(final ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        final int length = buffer.limit();
+        if (length < HEADER_LENGTH + TRAILER_LENGTH
+                || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION
+                || buffer.getInt(length - 4) != MAGIC) {
+            throw new IOException("Not a merged tree snapshot.");
+        }
+        final ByteBuffer b = buffer.duplicate();
+        b.position(length - TRAILER_LENGTH);
+        this.nodeCount = b.getInt();
+        this.rootOffset = b.getInt();
+        this.pathTableOffset = b.getInt();
+    }
+
+    /**
+     * Open and memory-map an existing snapshot.
+     * @param file The snapshot file
+     * @return The snapshot
+     * @throws IOException If the file can't be read or is not a snapshot
+     */
+    public static MergedTreeSnapshot open(final File file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new MergedTreeSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Merge the complete tree of the provider and write it into a new snapshot file.
+     * An existing file is replaced atomically.
+     * @param resolver The resolver used for merging
+     * @param provider The merging resource provider
+     * @param file The snapshot file
+     * @return The opened snapshot
+     * @throws IOException If writing fails
+     */
+    public static MergedTreeSnapshot write(final ResourceResolver resolver,
+            final MergingResourceProvider provider,
+            final File file) throws IOException {
+        final Resource root = provider.getResource(resolver, provider.mergeRootPath, null);
+        if (root == null) {
+            throw new IOException("Merge root " + provider.mergeRootPath + " does not exist.");
+        }
+        final File parentDir = file.getAbsoluteFile().getParentFile();
+        if (parentDir != null) {
+            Files.createDirectories(parentDir.toPath());
+        }
+        final File tempFile = new File(file.getPath() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempFile.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            final Writer writer = new Writer(resolver, provider, out);
+            final int rootOffset = writer.writeNode("", "", root);
+
+            // sorted table of all picked paths, used to detect relevant changes
+            final int pathTableOffset = out.size();
+            final List<byte[]> encoded = new ArrayList<>(writer.pickedPaths.size());
+            for (final String path : writer.pickedPaths) {
+                encoded.add(path.getBytes(StandardCharsets.UTF_8));
+            }
+            encoded.sort(MergedTreeSnapshot::compareBytes);
+            out.writeInt(encoded.size());
+            int stringOffset = pathTableOffset + 4 + 4 * encoded.size();
+            for (final byte[] bytes : encoded) {
+                out.writeInt(stringOffset);
+                stringOffset += 4 + bytes.length;
+            }
+            for (final byte[] bytes : encoded) {
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            out.writeInt(writer.nodeCount);
+            out.writeInt(rootOffset);
+            out.writeInt(pathTableOffset);
+            out.writeInt(MAGIC);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(file);
+    }
+
+    /**
+     * Check whether the merge root of the snapshot still reflects the picked resources.
+     * The other merged resources are only checked once they are used, see
+     * {@link #isVerified(ResourceResolver, MergingResourceProvider, String)}.
+     * @param resolver The resolver
+     * @param provider The merging resource provider
+     * @return {@code true} if the fingerprint of the merge root matches
+     */
+    public boolean isValid(final ResourceResolver resolver, final MergingResourceProvider provider) {
+        return Arrays.equals(this.getRoot().getFingerprint(), FingerprintVerifier.fingerprint("", provider.pickResources(resolver, "", null)));
+    }
+
+    /**
+     * Check whether the merged resource at the relative path may be served from the snapshot
+     * to the resolver, see {@link FingerprintVerifier#isVerified(ResourceResolver, MergingResourceProvider, String, java.util.function.Function)}.
+     * @param resolver The resolver
+     * @param provider The merging resource provider
+     * @param relativePath The path relative to the merge root
+     * @return {@code true} if the snapshot contains the merged resource and it may be served
+     */
+    public boolean isVerified(final ResourceResolver resolver, final MergingResourceProvider provider, final String relativePath) {
+        return this.verifier.isVerified(resolver, provider, relativePath, path -> {
+            final Node node = this.getNode(path);
+            return node == null ? null : node.getFingerprint();
+        });
+    }
+
+    /**
+     * The number of merged resources in the snapshot.
+     * @return The number of merged resources
+     */
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    /**
+     * Check whether a change at the given path invalidates the snapshot. This is the case
+     * if the changed resource was picked for a merged resource or if it is a child of a
+     * picked resource.
+     * @param path The path of the changed resource
+     * @return {@code true} if the snapshot is outdated
+     */
+    public boolean isAffectedBy(final String path) {
+        if (this.containsPickedPath(path)) {
+            return true;
+        }
+        final String parentPath = ResourceUtil.getParent(path);
+        return parentPath != null && (this.containsPickedPath(parentPath) || this.containsPickedPath(parentPath + "/"));
+    }
+
+    private boolean containsPickedPath(final String path) {
+        final byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = this.buffer.getInt(this.pathTableOffset) - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = this.compareString(this.buffer.getInt(this.pathTableOffset + 4 + 4 * mid), key, 0, key.length);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compare a string of the snapshot with a range of UTF-8 bytes, without decoding the string.
+     * Strings are sorted by their unsigned UTF-8 bytes.
+     */
+    private int compareString(final int offset, final byte[] key, final int from, final int to) {
+        final int length = this.buffer.getInt(offset);
+        final int keyLength = to - from;
+        for (int i = 0; i < length && i < keyLength; i++) {
+            final int cmp = (this.buffer.get(offset + 4 + i) & 0xff) - (key[from + i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - keyLength;
+    }
+
+    private int skipString(final int offset) {
+        return offset + 4 + this.buffer.getInt(offset);
+    }
+
+    private int skipStrings(final int offset) {
+        int position = offset + 4;
+        for (int i = this.buffer.getInt(offset); i > 0; i--) {
+            position = this.skipString(position);
+        }
+        return position;
+    }
+
+    /**
+     * Get the merged resource at the relative path.
+     * @param relativePath The path relative to the merge root
+     * @return The node or {@code null} if the snapshot does not contain the path
+     */
+    public Node getNode(final String relativePath) {
+        Node node = this.getRoot();
+        // a slash never occurs within the UTF-8 encoding of another character
+        final byte[] path = relativePath.getBytes(StandardCharsets.UTF_8);
+        int start = 0;
+        while (node != null && start < path.length) {
+            int end = start;
+            while (end < path.length && path[end] != '/') {
+                end++;
+            }
+            node = node.getChild(path, start, end);
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private Node getRoot() {
+        return new Node(this.rootOffset);
+    }
+
+    /**
+     * A merged resource of the snapshot. The entries of the node are only decoded when they are requested.
+     */
+    public final class Node {
+
+        private final int offset;
+
+        /** Offset of the child table or {@code -1} if it has not been located yet. */
+        private int childrenOffset = -1;
+
+        private String name;
+
+        Node(final int offset) {
+            this.offset = offset;
+        }
+
+        private int getFlagsOffset() {
+            return skipString(this.offset);
+        }
+
+        private int getLayerPathsOffset() {
+            return this.getFlagsOffset() + 1 + DIGEST_LENGTH;
+        }
+
+        private int getPropertiesOffset() {
+            return skipStrings(skipStrings(this.getLayerPathsOffset()));
+        }
+
+        private boolean hasProperties() {
+            return (buffer.get(this.getFlagsOffset()) & FLAG_PROPERTIES) != 0;
+        }
+
+        private int getChildrenOffset() {
+            if (this.childrenOffset == -1) {
+                int position = this.getPropertiesOffset();
+                if (this.hasProperties()) {
+                    final int count = buffer.getInt(position);
+                    position += 4;
+                    for (int i = 0; i < 2 * count; i++) {
+                        position = skipString(position);
+                    }
+                }
+                this.childrenOffset = position;
+            }
+            return this.childrenOffset;
+        }
+
+        public String getName() {
+            if (this.name == null) {
+                this.name = readString(buffer.duplicate(), this.offset);
+            }
+            return this.name;
+        }
+
+        /**
+         * The fingerprint of the picked resources, see {@link FingerprintVerifier}.
+         * @return The fingerprint
+         */
+        byte[] getFingerprint() {
+            final ByteBuffer b = buffer.duplicate();
+            b.position(this.getFlagsOffset() + 1);
+            final byte[] fingerprint = new byte[DIGEST_LENGTH];
+            b.get(fingerprint);
+            return fingerprint;
+        }
+
+        /**
+         * The paths of the merged resources.
+         * @return The paths, same as {@link MergedResourceConstants#METADATA_RESOURCES}
+         */
+        public String[] getLayerPaths() {
+            final ByteBuffer b = buffer.duplicate();
+            b.position(this.getLayerPathsOffset());
+            return readStrings(b);
+        }
+
+        /**
+         * The paths of all resources returned by the picker, including non existing ones.
+         * @return The paths
+         */
+        public String[] getPickedPaths() {
+            final ByteBuffer b = buffer.duplicate();
+            b.position(skipStrings(this.getLayerPathsOffset()));
+            return readStrings(b);
+        }
+
+        /**
+         * The merged properties.
+         * @return The properties or {@code null} if they contained values which can't be
+         *         stored in a snapshot.
+         */
+        public ValueMap getProperties() {
+            if (!this.hasProperties()) {
+                return null;
+            }
+            final ByteBuffer b = buffer.duplicate();
+            b.position(this.getPropertiesOffset());
+            final int count = b.getInt();
+            final Map<String, Object> props = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                b.getInt(); // length of entry
+                final String key = readString(b);
+                b.getInt(); // length of value
+                props.put(key, readValue(b));
+            }
+            return new ValueMapDecorator(Collections.unmodifiableMap(props));
+        }
+
+        /**
+         * The children in the merged order.
+         * @return The children
+         */
+        public List<Node> getChildren() {
+            final int tableOffset = this.getChildrenOffset();
+            final int count = buffer.getInt(tableOffset);
+            final List<Node> children = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                children.add(new Node(buffer.getInt(tableOffset + 4 + 4 * i)));
+            }
+            return children;
+        }
+
+        /**
+         * Get a direct child.
+         * @param childName The name of the child
+         * @return The child or {@code null}
+         */
+        public Node getChild(final String childName) {
+            final byte[] key = childName.getBytes(StandardCharsets.UTF_8);
+            return this.getChild(key, 0, key.length);
+        }
+
+        /**
+         * Get a direct child by comparing the UTF-8 bytes of its name with the sorted child index.
+         */
+        private Node getChild(final byte[] key, final int from, final int to) {
+            final int tableOffset = this.getChildrenOffset();
+            final int count = buffer.getInt(tableOffset);
+            final int sortedOffset = tableOffset + 4 + 4 * count;
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int childOffset = buffer.getInt(tableOffset + 4 + 4 * buffer.getInt(sortedOffset + 4 * mid));
+                final int cmp = compareString(childOffset, key, from, to);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return new Node(childOffset);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "Node [name=" + this.getName() + ", offset=" + this.offset + ", resources=" + Arrays.toString(this.getLayerPaths()) + "]";
+        }
+    }
+
+    // ---- Writing -----------------------------------------------------------
+
+    private static final class Writer {
+
+        private final ResourceResolver resolver;
+
+        private final MergingResourceProvider provider;
+
+        private final DataOutputStream out;
+
+        private final Set<String> pickedPaths = new HashSet<>();
+
+        private int nodeCount;
+
+        Writer(final ResourceResolver resolver, final MergingResourceProvider provider, final DataOutputStream out) {
+            this.resolver = resolver;
+            this.provider = provider;
+            this.out = out;
+        }
+
+        /**
+         * Write the node and all its children. Children are written before their parent.
+         * @return The offset of the node
+         */
+        int writeNode(final String name, final String relativePath, final Resource merged) throws IOException {
+            final List<Resource> picked = this.provider.pickResources(this.resolver, relativePath, null);
+            final String[] pickedPaths = new String[picked.size()];
+            for (int i = 0; i < pickedPaths.length; i++) {
+                pickedPaths[i] = picked.get(i).getPath();
+                this.pickedPaths.add(pickedPaths[i]);
+            }
+            final byte[] fingerprint = FingerprintVerifier.fingerprint(relativePath, picked);
+
+            final List<String> childNames = new ArrayList<>();
+            final List<Integer> childOffsets = new ArrayList<>();
+            final Iterator<Resource> children = this.provider.listChildren(merged);
+            if (children != null) {
+                while (children.hasNext()) {
+                    final Resource child = children.next();
+                    childNames.add(child.getName());
+                    childOffsets.add(this.writeNode(child.getName(), childPath(relativePath, child.getName()), child));
+                }
+            }
+
+            final int offset = this.out.size();
+            if (offset == Integer.MAX_VALUE) {
+                // the counter of the stream stops at the maximum, which is also the maximum size of a mapped buffer
+                throw new IOException("Snapshot exceeds maximum size.");
+            }
+            this.nodeCount++;
+            writeString(this.out, name);
+            final byte[] properties = encodeProperties(merged.getValueMap());
+            this.out.writeByte(properties != null ? FLAG_PROPERTIES : 0);
+            this.out.write(fingerprint);
+            writeStrings(this.out, (String[]) merged.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES));
+            writeStrings(this.out, pickedPaths);
+            if (properties != null) {
+                this.out.write(properties);
+            }
+            this.out.writeInt(childOffsets.size());
+            for (final int childOffset : childOffsets) {
+                this.out.writeInt(childOffset);
+            }
+            final Integer[] sorted = new Integer[childNames.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = i;
+            }
+            final byte[][] encodedNames = new byte[sorted.length][];
+            for (int i = 0; i < sorted.length; i++) {
+                encodedNames[i] = childNames.get(i).getBytes(StandardCharsets.UTF_8);
+            }
+            Arrays.sort(sorted, (a, b) -> compareBytes(encodedNames[a], encodedNames[b]));
+            for (final int index : sorted) {
+                this.out.writeInt(index);
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * Encode the properties.
+     * @return The encoded properties or {@code null} if a value is not supported
+     */
+    private static byte[] encodeProperties(final ValueMap properties) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(properties.size());
+        for (final Map.Entry<String, Object> entry : properties.entrySet()) {
+            final byte[] key = encodeString(entry.getKey());
+            final byte[] value = encodeValue(entry.getValue());
+            if (value == null) {
+                return null;
+            }
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeString(final String value) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeString(new DataOutputStream(bytes), value);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeValue(final Object value) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        if (value != null && value.getClass().isArray()) {
+            final Class<?> componentType = value.getClass().getComponentType();
+            final byte type = typeOf(componentType);
+            if (type == 0 || componentType.isPrimitive()) {
+                return null;
+            }
+            out.writeByte(type | TYPE_ARRAY);
+            final int length = Array.getLength(value);
+            out.writeInt(length);
+            for (int i = 0; i < length; i++) {
+                final Object element = Array.get(value, i);
+                if (element == null) {
+                    return null;
+                }
+                writeValue(out, type, element);
+            }
+        } else {
+            final byte type = value == null ? 0 : typeOf(value.getClass());
+            if (type == 0) {
+                return null;
+            }
+            out.writeByte(type);
+            writeValue(out, type, value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte typeOf(final Class<?> type) {
+        if (type == String.class) {
+            return TYPE_STRING;
+        } else if (type == Long.class) {
+            return TYPE_LONG;
+        } else if (type == Integer.class) {
+            return TYPE_INTEGER;
+        } else if (type == Double.class) {
+            return TYPE_DOUBLE;
+        } else if (type == Boolean.class) {
+            return TYPE_BOOLEAN;
+        } else if (type == BigDecimal.class) {
+            return TYPE_DECIMAL;
+        } else if (Calendar.class.isAssignableFrom(type)) {
+            return TYPE_CALENDAR;
+        }
+        return 0;
+    }
+
+    private static void writeValue(final DataOutputStream out, final byte type, final Object value) throws IOException {
+        switch (type) {
+            case TYPE_STRING : writeString(out, (String) value);
+                               break;
+            case TYPE_LONG : out.writeLong((Long) value);
+                             break;
+            case TYPE_INTEGER : out.writeInt((Integer) value);
+                                break;
+            case TYPE_DOUBLE : out.writeDouble((Double) value);
+                               break;
+            case TYPE_BOOLEAN : out.writeBoolean((Boolean) value);
+                                break;
+            case TYPE_DECIMAL : writeString(out, value.toString());
+                                break;
+            default : final Calendar cal = (Calendar) value;
+                      out.writeLong(cal.getTimeInMillis());
+                      writeString(out, cal.getTimeZone().getID());
+        }
+    }
+
+    private static Object readValue(final ByteBuffer b) {
+        final byte type = b.get();
+        if ((type & TYPE_ARRAY) != 0) {
+            final byte componentType = (byte) (type & ~TYPE_ARRAY);
+            final int length = b.getInt();
+            final Object array = Array.newInstance(classOf(componentType), length);
+            for (int i = 0; i < length; i++) {
+                Array.set(array, i, readValue(b, componentType));
+            }
+            return array;
+        }
+        return readValue(b, type);
+    }
+
+    private static Class<?> classOf(final byte type) {
+        switch (type) {
+            case TYPE_STRING : return String.class;
+            case TYPE_LONG : return Long.class;
+            case TYPE_INTEGER : return Integer.class;
+            case TYPE_DOUBLE : return Double.class;
+            case TYPE_BOOLEAN : return Boolean.class;
+            case TYPE_DECIMAL : return BigDecimal.class;
+            default : return Calendar.class;
+        }
+    }
+
+    private static Object readValue(final ByteBuffer b, final byte type) {
+        switch (type) {
+            case TYPE_STRING : return readString(b);
+            case TYPE_LONG : return b.getLong();
+            case TYPE_INTEGER : return b.getInt();
+            case TYPE_DOUBLE : return b.getDouble();
+            case TYPE_BOOLEAN : return b.get() != 0;
+            case TYPE_DECIMAL : return new BigDecimal(readString(b));
+            default : final long millis = b.getLong();
+                      final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone(readString(b)));
+                      cal.setTimeInMillis(millis);
+                      return cal;
+        }
+    }
+
+    // ---- Helpers -----------------------------------------------------------
+
+    static String childPath(final String relativePath, final String name) {
+        return relativePath.length() == 0 ? name : relativePath + '/' + name;
+    }
+
+    /**
+     * Compare the UTF-8 encodings of two strings by their unsigned bytes, the order of the sorted tables.
+     */
+    private static int compareBytes(final byte[] a, final byte[] b) {
+        for (int i = 0; i < a.length && i < b.length; i++) {
+            final int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeStrings(final DataOutputStream out, final String[] values) throws IOException {
+        out.writeInt(values.length);
+        for (final String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static String readString(final ByteBuffer b) {
+        final byte[] bytes = new byte[b.getInt()];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(final ByteBuffer b, final int offset) {
+        b.position(offset);
+        return readString(b);
+    }
+
+    private static String[] readStrings(final ByteBuffer b) {
+        final String[] values = new String[b.getInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readString(b);
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.resourcemerger.api.MergedResourceVisitor;
+import org.apache.sling.resourcemerger.impl.MergingResourceProvider.ResourceHidingHandler;
+import org.apache.sling.resourcemerger.impl.MergingResourceProvider.ResourceHolder;
+import org.apache.sling.resourcemerger.impl.picker.SearchPathBasedResourcePicker;
+import org.apache.sling.resourcemerger.spi.MergedResourcePicker2;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Depth-first traversal of a merged subtree passing the nodes to a {@link MergedResourceVisitor}.
+ * <p>
+ * If the picker picks the layers of a child as the children of the layers of its parent, like the
+ * {@link SearchPathBasedResourcePicker}, the layers are carried down the recursion together with
+ * the state of the {@code sling:hideChildren} properties of their parents. The children are then
+ * hidden and ordered like by {@link MergingResourceProvider#listChildren(Resource)}, without picking
+ * the layers again, and the properties and the merged resource of a node are only built on request.
+ * For all other pickers the children are listed by the provider.
+ * <p>
+ * The layers are always merged live, snapshots, materialized trees and frozen merges are not used.
+ */
+final class MergedTreeVisit {
+
+    private final MergingResourceProvider provider;
+
+    private final ResourceResolver resolver;
+
+    private final MergedResourceVisitor visitor;
+
+    /** Whether the layers are carried down the recursion. */
+    private final boolean carryLayers;
+
+    private final boolean traverseHierarchie;
+
+    private MergedTreeVisit(final MergingResourceProvider provider, final ResourceResolver resolver, final MergedResourceVisitor visitor) {
+        this.provider = provider;
+        this.resolver = resolver;
+        this.visitor = visitor;
+        this.carryLayers = preservesLayers(provider.picker);
+        this.traverseHierarchie = provider.traverseHierarchie;
+    }
+
+    /**
+     * Visit the merged resource and its descendants.
+     * @param provider The provider which created the resource
+     * @param resource The merged resource
+     * @param visitor The visitor
+     */
+    static void visit(final MergingResourceProvider provider, final MergedResource resource, final MergedResourceVisitor visitor) {
+        final String relativePath = provider.getRelativePath(resource.getPath());
+        if (relativePath == null) {
+            return;
+        }
+        final MergedTreeVisit visit = new MergedTreeVisit(provider, resource.getResourceResolver(), visitor);
+        final Node root = new Node(visit, relativePath, 0, null, resource);
+        if (visit.carryLayers) {
+            final List<Resource> picked = provider.picker.pickResources(visit.resolver, relativePath, null);
+            root.layers = new Layer[picked.size()];
+            for (int i = 0; i < root.layers.length; i++) {
+                final Resource rsrc = picked.get(i);
+                root.layers[i] = new Layer(ResourceUtil.isNonExistingResource(rsrc) ? null : rsrc, null, rsrc.getPath());
+            }
+        }
+        visit.visit(root);
+    }
+
+    /**
+     * @return {@code true} if the picker picks the children of the layers of the parent as layers of a child
+     */
+    static boolean preservesLayers(final MergedResourcePicker2 picker) {
+        if (picker instanceof MergedResourcePicker3Adapter) {
+            return ((MergedResourcePicker3Adapter) picker).getPicker() instanceof SearchPathBasedResourcePicker;
+        }
+        return picker instanceof SearchPathBasedResourcePicker;
+    }
+
+    private void visit(final Node node) {
+        if (this.visitor.visit(node)) {
+            for (final Node child : this.getChildren(node)) {
+                this.visit(child);
+            }
+        }
+        this.visitor.leave(node);
+    }
+
+    private List<Node> getChildren(final Node parent) {
+        final List<Node> children = new ArrayList<>();
+        if (!this.carryLayers) {
+            final Iterator<Resource> iter = this.provider.listChildren(parent.getResource());
+            while (iter.hasNext()) {
+                final Resource child = iter.next();
+                children.add(new Node(this, childPath(parent.relativePath, child.getName()), parent.depth + 1, null, child));
+            }
+            return children;
+        }
+
+        final Layer[] layers = parent.getLayers();
+        final ChildOrdering<ResourceHolder> candidates = new ChildOrdering<>();
+        // the children of each layer by name, including hidden children
+        final Map<String, Resource[]> layerChildren = new HashMap<>();
+        for (int i = 0; i < layers.length; i++) {
+            // the underlying layer is not checked for hiding
+            final ResourceHidingHandler handler = i > 0 ? layers[i].getHandler(this) : null;
+            candidates.startLayer();
+            if (handler != null) {
+                candidates.removeIf(name -> handler.isHidden(name, false));
+            }
+            if (layers[i].resource == null) {
+                continue;
+            }
+            for (final Resource child : layers[i].resource.getChildren()) {
+                final String name = child.getName();
+                layerChildren.computeIfAbsent(name, key -> new Resource[layers.length])[i] = child;
+                ResourceHolder holder = candidates.get(name);
+                if (holder == null) {
+                    if (handler != null && handler.isHidden(name, true)) {
+                        continue;
+                    }
+                    holder = new ResourceHolder(name);
+                    candidates.add(name, holder);
+                }
+                holder.resources.add(child);
+                candidates.order(name, child.getValueMap().get(MergedResourceConstants.PN_ORDER_BEFORE, String.class));
+            }
+        }
+        for (final ResourceHolder holder : candidates.values()) {
+            MergingResourceProvider.removeHiddenResources(holder, null);
+            if (!holder.resources.isEmpty()) {
+                final Node child = new Node(this, childPath(parent.relativePath, holder.name), parent.depth + 1, holder, null);
+                child.parentLayers = layers;
+                child.layerResources = layerChildren.get(holder.name);
+                children.add(child);
+            }
+        }
+        return children;
+    }
+
+    private static String childPath(final String relativePath, final String name) {
+        return relativePath.isEmpty() ? name : relativePath + '/' + name;
+    }
+
+    /**
+     * A layer of a node, which is the resource at the same position in the picked resources.
+     */
+    private static final class Layer {
+
+        /** The resource or {@code null} if it does not exist. */
+        final Resource resource;
+
+        final Layer parent;
+
+        /** The path if the resource does not exist, otherwise the name. */
+        private final String pathOrName;
+
+        private ResourceHidingHandler handler;
+
+        Layer(final Resource resource, final Layer parent, final String pathOrName) {
+            this.resource = resource;
+            this.parent = parent;
+            this.pathOrName = pathOrName;
+        }
+
+        String getPath() {
+            if (this.resource != null) {
+                return this.resource.getPath();
+            }
+            if (this.parent == null) {
+                return this.pathOrName;
+            }
+            final String parentPath = this.parent.getPath();
+            return parentPath.endsWith("/") ? parentPath + this.pathOrName : parentPath + '/' + this.pathOrName;
+        }
+
+        /**
+         * The handler is created from the handler of the parent layer, so the parents are only evaluated once.
+         */
+        ResourceHidingHandler getHandler(final MergedTreeVisit visit) {
+            if (this.handler == null) {
+                if (this.parent == null) {
+                    this.handler = new ResourceHidingHandler(this.resource != null ? this.resource
+                            : new NonExistingResource(visit.resolver, this.pathOrName), visit.traverseHierarchie);
+                } else {
+                    // like for the lookup of the parent, a missing parent does not hide anything
+                    final ResourceHidingHandler parentHandler = this.parent.resource == null ? null : this.parent.getHandler(visit);
+                    this.handler = new ResourceHidingHandler(this.resource, this.getPath(), parentHandler, visit.traverseHierarchie);
+                }
+            }
+            return this.handler;
+        }
+    }
+
+    private static final class Node implements MergedResourceVisitor.Node {
+
+        private final MergedTreeVisit visit;
+
+        private final String relativePath;
+
+        private final int depth;
+
+        /** The holder with the merged resources or {@code null} if the node has been created for a resource. */
+        private final ResourceHolder holder;
+
+        private Resource resource;
+
+        private ValueMap valueMap;
+
+        /** The layers of the node, created on demand from the layers of the parent. */
+        private Layer[] layers;
+
+        private Layer[] parentLayers;
+
+        /** The children of the parent layers with the name of this node. */
+        private Resource[] layerResources;
+
+        Node(final MergedTreeVisit visit, final String relativePath, final int depth, final ResourceHolder holder, final Resource resource) {
+            this.visit = visit;
+            this.relativePath = relativePath;
+            this.depth = depth;
+            this.holder = holder;
+            this.resource = resource;
+        }
+
+        Layer[] getLayers() {
+            if (this.layers == null) {
+                final String name = this.getName();
+                this.layers = new Layer[this.parentLayers.length];
+                for (int i = 0; i < this.layers.length; i++) {
+                    this.layers[i] = new Layer(this.layerResources[i], this.parentLayers[i], name);
+                }
+            }
+            return this.layers;
+        }
+
+        @Override
+        public @NotNull String getName() {
+            return this.holder != null ? this.holder.name : this.resource.getName();
+        }
+
+        @Override
+        public @NotNull String getPath() {
+            final String mergeRootPath = this.visit.provider.mergeRootPath;
+            return this.relativePath.isEmpty() ? mergeRootPath : mergeRootPath + '/' + this.relativePath;
+        }
+
+        @Override
+        public int getDepth() {
+            return this.depth;
+        }
+
+        @Override
+        public @NotNull List<String> getLayerPaths() {
+            if (this.holder == null) {
+                final String[] paths = (String[]) this.resource.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES);
+                return paths == null ? Arrays.asList(this.resource.getPath()) : Arrays.asList(paths);
+            }
+            final List<String> paths = new ArrayList<>(this.holder.resources.size());
+            for (final Resource rsrc : this.holder.resources) {
+                paths.add(rsrc.getPath());
+            }
+            return paths;
+        }
+
+        @Override
+        public @NotNull ValueMap getValueMap() {
+            if (this.valueMap == null) {
+                if (this.resource != null) {
+                    this.valueMap = this.resource.getValueMap();
+                } else if (this.holder.valueMaps.size() == 1 && !MergedValueMap.containsExcluded(this.holder.valueMaps.get(0))) {
+                    // like for a pass-through merged resource, the properties are converted like merged properties
+                    this.valueMap = new MergedValueMap(this.holder.valueMaps.get(0));
+                } else {
+                    this.valueMap = new MergedValueMap(this.holder.valueMaps);
+                }
+            }
+            return this.valueMap;
+        }
+
+        @Override
+        public @NotNull Resource getResource() {
+            if (this.resource == null) {
+                this.resource = this.visit.provider.newMergedResource(this.visit.resolver, this.relativePath, this.holder);
+            }
+            return this.resource;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges configured subtrees of a {@link MergingResourceProvider} once, so that the
+ * first requests do not pay for cold caches of the underlying resource providers.
+ * Each subtree is merged in its own fork/join task with its own service resource
+ * resolver, as resource resolvers must not be shared between threads.
+ */
+public final class MergedTreeWarmup {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MergedTreeWarmup.class);
+
+    /** The depth used if an entry does not specify one. */
+    static final int DEFAULT_DEPTH = 1;
+
+    private static final Pattern DEPTH_PATTERN = Pattern.compile("\\d+");
+
+    private final MergingResourceProvider provider;
+
+    private final List<Subtree> subtrees;
+
+    /**
+     * @param provider the provider to warm up
+     * @param entries the configured entries in the form {@code path:depth}
+     */
+    public MergedTreeWarmup(final MergingResourceProvider provider, final String[] entries) {
+        this.provider = provider;
+        this.subtrees = parse(provider.mergeRootPath, entries);
+    }
+
+    /**
+     * @return {@code true} if no subtree is configured
+     */
+    public boolean isEmpty() {
+        return this.subtrees.isEmpty();
+    }
+
+    /**
+     * Merges all configured subtrees.
+     * @param factory the factory to get the service resource resolvers from
+     * @param pool the pool used to merge the subtrees in parallel
+     * @return the total number of merged resources
+     */
+    public int run(final ResourceResolverFactory factory, final ForkJoinPool pool) {
+        final long start = System.nanoTime();
+        final List<SubtreeTask> tasks = new ArrayList<>();
+        for (final Subtree subtree : this.subtrees) {
+            tasks.add(new SubtreeTask(factory, this.provider, subtree));
+        }
+        final int count = pool.invoke(new RecursiveTask<Integer>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Integer compute() {
+                int total = 0;
+                for (final SubtreeTask task : ForkJoinTask.invokeAll(tasks)) {
+                    total += task.join();
+                }
+                return total;
+            }
+        });
+        LOGGER.info("Warmed up {} merged resources in {} subtrees at {} in {} ms.",
+                count, tasks.size(), this.provider.mergeRootPath, (System.nanoTime() - start) / 1000000);
+        return count;
+    }
+
+    static List<Subtree> parse(final String mergeRootPath, final String[] entries) {
+        final List<Subtree> result = new ArrayList<>();
+        if (entries != null) {
+            for (final String entry : entries) {
+                if (entry == null || entry.trim().isEmpty()) {
+                    continue;
+                }
+                String path = entry.trim();
+                int depth = DEFAULT_DEPTH;
+                // names might contain a namespace prefix, only a numeric suffix is a depth
+                final int pos = path.lastIndexOf(':');
+                if (pos != -1 && DEPTH_PATTERN.matcher(path.substring(pos + 1).trim()).matches()) {
+                    try {
+                        depth = Integer.parseInt(path.substring(pos + 1).trim());
+                    } catch (final NumberFormatException nfe) {
+                        LOGGER.warn("Ignoring invalid warm-up entry {} for merged resources at {}.", entry, mergeRootPath);
+                        continue;
+                    }
+                    path = path.substring(0, pos).trim();
+                }
+                while (path.startsWith("/")) {
+                    path = path.substring(1);
+                }
+                while (path.endsWith("/")) {
+                    path = path.substring(0, path.length() - 1);
+                }
+                result.add(new Subtree(path.isEmpty() ? mergeRootPath : mergeRootPath + "/" + path, Math.max(0, depth)));
+            }
+        }
+        return result;
+    }
+
+    static final class Subtree {
+
+        final String path;
+
+        final int depth;
+
+        Subtree(final String path, final int depth) {
+            this.path = path;
+            this.depth = depth;
+        }
+    }
+
+    private static final class SubtreeTask extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient ResourceResolverFactory factory;
+
+        private final transient MergingResourceProvider provider;
+
+        private final transient Subtree subtree;
+
+        SubtreeTask(final ResourceResolverFactory factory, final MergingResourceProvider provider, final Subtree subtree) {
+            this.factory = factory;
+            this.provider = provider;
+            this.subtree = subtree;
+        }
+
+        @Override
+        protected Integer compute() {
+            final long start = System.nanoTime();
+            try (final ResourceResolver resolver = this.factory.getServiceResourceResolver(
+                    MergedResourcePickerWhiteboard.subservice(MergedResourcePickerWhiteboard.SUBSERVICE_READER))) {
+                final Resource resource = this.provider.getResource(resolver, this.subtree.path, null);
+                final int count = resource == null ? 0 : merge(resource, this.subtree.depth);
+                LOGGER.debug("Warmed up {} merged resources below {} in {} ms.",
+                        count, this.subtree.path, (System.nanoTime() - start) / 1000000);
+                return count;
+            } catch (final LoginException le) {
+                LOGGER.warn("Unable to get service resource resolver for warm-up of merged resources at " + this.subtree.path, le);
+                return 0;
+            }
+        }
+
+        private int merge(final Resource resource, final int depth) {
+            // reading the properties triggers the merge of the value maps
+            resource.getValueMap().size();
+            int count = 1;
+            final Iterator<Resource> children = depth > 0 ? this.provider.listChildren(resource) : null;
+            if (children != null) {
+                while (children.hasNext()) {
+                    count += merge(children.next(), depth - 1);
+                }
+            }
+            return count;
+        }
+    }
+}
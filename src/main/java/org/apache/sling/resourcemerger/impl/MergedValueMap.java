@@ -18,11 +18,18 @@
  */
 package org.apache.sling.resourcemerger.impl;
 
+import java.lang.reflect.Array;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.stream.Collectors;
 
 import org.apache.sling.api.resource.ValueMap;
@@ -31,9 +38,14 @@ import org.apache.sling.api.wrappers.ValueMapDecorator;
 /**
  * A <code>MergedValueMap</code> is a {@link ValueMap} aggregated from the
  * different resources mapped to a {@link MergedResource}.
+ * The map is immutable, therefore values converted by {@link #get(String, Class)}
+ * are kept per property and type and reused for later calls.
  */
 public class MergedValueMap extends ValueMapDecorator {
 
+    /** Marker for a cached conversion without result. */
+    private static final Object NO_VALUE = new Object();
+
     /**
      * Set of properties to exclude from override
      */
@@ -46,33 +58,174 @@ public class MergedValueMap extends ValueMapDecorator {
         EXCLUDED_PROPERTIES.add(MergedResourceConstants.PN_ORDER_BEFORE);
     }
 
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MergedValueMap, ConcurrentMap> CONVERTED_VALUES =
+            AtomicReferenceFieldUpdater.newUpdater(MergedValueMap.class, ConcurrentMap.class, "convertedValues");
+
+    /**
+     * The converted values per property name and type. Most maps are never asked for a converted
+     * value, so the map is only created by the first call of {@link #get(String, Class)}.
+     */
+    private volatile ConcurrentMap<String, ConcurrentMap<Class<?>, Object>> convertedValues;
+
     /**
      * Constructor
      *
      * @param valueMaps a list of value maps to be aggregated into <i>this</i> value map
      */
     public MergedValueMap(final List<ValueMap> valueMaps) {
-        super(new HashMap<>());
-        
+        super(Collections.unmodifiableMap(merge(valueMaps, null)));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param mergedProperties the properties which have already been merged
+     */
+    MergedValueMap(final Map<String, Object> mergedProperties) {
+        super(Collections.unmodifiableMap(mergedProperties));
+    }
+
+    /**
+     * Merge the properties of the value maps.
+     * @param valueMaps the value maps to merge
+     * @param tracer optional tracer receiving the hidden properties
+     * @return the merged properties
+     */
+    static Map<String, Object> merge(final List<ValueMap> valueMaps, final MergeTracer tracer) {
+        final Map<String, Object> result = new HashMap<>();
+
         // Iterate over value maps
-        for (final ValueMap vm : valueMaps) {
+        for (int index = 0; index < valueMaps.size(); index++) {
+            final ValueMap vm = valueMaps.get(index);
+            final int layerIndex = index;
             // Get properties to hide from local or underlying value maps
             String[] hideSettings = vm.get(MergedResourceConstants.PN_HIDE_PROPERTIES, String[].class);
             if (hideSettings != null) {
                 HideItemPredicate hidePredicate = new HideItemPredicate(hideSettings, MergedResourceConstants.PN_HIDE_PROPERTIES);
                 
                 // go over the already existing properties
-                this.entrySet().removeIf(entry -> hidePredicate.testItem(entry.getKey(), false));
+                result.entrySet().removeIf(entry -> hidePredicate.testItem(entry.getKey(), false) && traceHidden(tracer, entry.getKey(), layerIndex, false));
                 
                 // then go over the new properties
-                this.putAll(vm.entrySet().stream()
-                        .filter(entry -> !(EXCLUDED_PROPERTIES.contains(entry.getKey())) && !(hidePredicate.testItem(entry.getKey(), true)) )
+                result.putAll(vm.entrySet().stream()
+                        .filter(entry -> !(EXCLUDED_PROPERTIES.contains(entry.getKey())) && !(hidePredicate.testItem(entry.getKey(), true) && traceHidden(tracer, entry.getKey(), layerIndex, true)) )
                         .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
             } else {
-                this.putAll(vm.entrySet().stream()
+                result.putAll(vm.entrySet().stream()
                         .filter(entry -> !(EXCLUDED_PROPERTIES.contains(entry.getKey())))
                         .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
             }
         }
+        return result;
+    }
+
+    /**
+     * @param name The name of a property
+     * @return {@code true} if the property is never merged
+     */
+    static boolean isExcluded(final String name) {
+        return EXCLUDED_PROPERTIES.contains(name);
+    }
+
+    /**
+     * @param valueMap The value map of a layer resource
+     * @return {@code true} if the value map contains a property which is never merged
+     */
+    static boolean containsExcluded(final ValueMap valueMap) {
+        for (final String name : EXCLUDED_PROPERTIES) {
+            if (valueMap.containsKey(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merge a single property in the same way as all properties are merged by the constructor.
+     * @param valueMaps the value maps to merge
+     * @param name the name of the property
+     * @return the merged value or {@code null} if the property does not exist or is hidden
+     */
+    static Object mergeProperty(final List<ValueMap> valueMaps, final String name) {
+        if (EXCLUDED_PROPERTIES.contains(name)) {
+            return null;
+        }
+        Object value = null;
+        for (final ValueMap vm : valueMaps) {
+            final String[] hideSettings = vm.get(MergedResourceConstants.PN_HIDE_PROPERTIES, String[].class);
+            final HideItemPredicate hidePredicate = hideSettings == null ? null
+                    : new HideItemPredicate(hideSettings, MergedResourceConstants.PN_HIDE_PROPERTIES);
+            if (hidePredicate != null && hidePredicate.testItem(name, false)) {
+                value = null;
+            }
+            final Object local = vm.get(name);
+            if (local != null && (hidePredicate == null || !hidePredicate.testItem(name, true))) {
+                value = local;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The converted value is kept and returned again for later calls with the same name and type.
+     * Arrays, dates and calendars are copied before they are returned, as they are mutable.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(final String name, final Class<T> type) {
+        if (name == null || type == null) {
+            return super.get(name, type);
+        }
+        ConcurrentMap<String, ConcurrentMap<Class<?>, Object>> converted = this.convertedValues;
+        if (converted == null) {
+            CONVERTED_VALUES.compareAndSet(this, null, new ConcurrentHashMap<>());
+            converted = this.convertedValues;
+        }
+        ConcurrentMap<Class<?>, Object> values = converted.get(name);
+        Object value = values == null ? null : values.get(type);
+        if (value == null) {
+            value = super.get(name, type);
+            if (values == null) {
+                values = new ConcurrentHashMap<>(4);
+                final ConcurrentMap<Class<?>, Object> existing = converted.putIfAbsent(name, values);
+                if (existing != null) {
+                    values = existing;
+                }
+            }
+            values.put(type, value == null ? NO_VALUE : value);
+        }
+        return value == NO_VALUE ? null : (T) copy(value);
+    }
+
+    private static Object copy(final Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value.getClass().isArray()) {
+            final int length = Array.getLength(value);
+            final Object result = Array.newInstance(value.getClass().getComponentType(), length);
+            System.arraycopy(value, 0, result, 0, length);
+            return result;
+        }
+        if (value instanceof Calendar) {
+            return ((Calendar) value).clone();
+        }
+        if (value instanceof Date) {
+            return ((Date) value).clone();
+        }
+        return value;
+    }
+
+    /**
+     * Pass a hidden property to the tracer.
+     * @return always {@code true}
+     */
+    private static boolean traceHidden(final MergeTracer tracer, final String name, final int layerIndex, final boolean local) {
+        if (tracer != null) {
+            tracer.propertyHidden(name, layerIndex, local);
+        }
+        return true;
     }
 }
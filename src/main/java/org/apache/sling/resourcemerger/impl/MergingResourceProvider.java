@@ -19,15 +19,32 @@
 package org.apache.sling.resourcemerger.impl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import org.apache.sling.api.resource.NonExistingResource;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.resourcemerger.spi.MergeObserver;
 import org.apache.sling.resourcemerger.spi.MergedResourcePicker2;
+import org.apache.sling.resourcemerger.spi.MergedResourcePicker3;
+import org.apache.sling.spi.resource.provider.ObserverConfiguration;
+import org.apache.sling.spi.resource.provider.QueryLanguageProvider;
 import org.apache.sling.spi.resource.provider.ResolveContext;
+import org.apache.sling.spi.resource.provider.ProviderContext;
 import org.apache.sling.spi.resource.provider.ResourceContext;
 import org.apache.sling.spi.resource.provider.ResourceProvider;
 import org.slf4j.Logger;
@@ -37,14 +54,57 @@ public class MergingResourceProvider extends ResourceProvider<Void> {
 
     protected final String mergeRootPath;
 
-    protected final MergedResourcePicker2 picker;
+    protected volatile MergedResourcePicker2 picker;
 
     private final boolean readOnly;
 
-    protected final boolean traverseHierarchie;
+    protected volatile boolean traverseHierarchie;
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    /** Optional snapshot of the merged tree, only used for read-only providers. */
+    private volatile MergedTreeSnapshot snapshot;
+
+    /** Number of changes to the picked resources seen so far. */
+    private volatile long changeCount;
+
+    /** The maximum time to wait for a merge computed by another thread before merging locally. */
+    private static final long MERGE_WAIT_MILLIS = 500;
+
+    /**
+     * Merges which are currently computed, keyed like {@link #getMergeKey(ResourceResolver, char, String)}.
+     * Each value is completed with the layer paths of the merged resources.
+     */
+    private final ConcurrentMap<String, CompletableFuture<String[][]>> merging = new ConcurrentHashMap<>();
+
+    /** Reverse index from layer paths to merged paths, used to report changes of merged resources. */
+    private final MergedPathIndex pathIndex;
+
+    /** Invoked when the observers of the merged resources changed or {@code null}. */
+    private volatile Runnable observationCallback;
+
+    /** The path of the materialized tree or {@code null} if resources are merged live. */
+    private volatile String materializedPath;
+
+    /** Writes the materialized tree and knows its outdated subtrees, {@code null} if resources are merged live. */
+    private volatile MergedTreeMaterializer materializer;
+
+    /** Checks the resources of the materialized tree, replaced whenever the picked resources or the tree changed. */
+    private volatile FingerprintVerifier materializedVerifier;
+
+    /** The kept merges if the provider is frozen, otherwise {@code null}. */
+    private volatile BoundedCache<String, MergePlan[]> plans;
+
+    /** The kept picks by relative path if the picker is deterministic, otherwise {@code null}. */
+    private volatile BoundedCache<String, PickedPaths> picks;
+
+    private static final MergeObserver[] NO_OBSERVERS = new MergeObserver[0];
+
+    /** The observers informed about merges, empty if there is none. */
+    private volatile MergeObserver[] observers = NO_OBSERVERS;
+
+    private final MergedQueryLanguageProvider queryLanguageProvider = new MergedQueryLanguageProvider(this);
+
     MergingResourceProvider(final String mergeRootPath,
             final MergedResourcePicker2 picker,
             final boolean readOnly,
@@ -53,6 +113,7 @@ public class MergingResourceProvider extends ResourceProvider<Void> {
         this.picker = picker;
         this.readOnly = readOnly;
         this.traverseHierarchie = traverseHierarchie;
+        this.pathIndex = new MergedPathIndex(mergeRootPath, BoundedCache.DEFAULT_MAX_SIZE);
     }
 
     /**
@@ -64,6 +125,8 @@ public class MergingResourceProvider extends ResourceProvider<Void> {
         private boolean isParentHiddenFully;
         private boolean isParentHiddenForUnderlay;
         private final HideItemPredicate hidePredicate;
+        private final String hidePropertyPath;
+        private String parentHidePropertyPath;
 
         /**
          *
@@ -76,7 +139,8 @@ public class MergingResourceProvider extends ResourceProvider<Void> {
             // evaluate the sling:hideChildren property on the current resource
             final ValueMap properties = resource.getValueMap();
             final String[] childrenToHideArray = properties.get(MergedResourceConstants.PN_HIDE_CHILDREN, new String[0]);
-            hidePredicate = new HideItemPredicate(childrenToHideArray, resource.getPath() + "/" + MergedResourceConstants.PN_HIDE_CHILDREN);
+            hidePropertyPath = resource.getPath() + "/" + MergedResourceConstants.PN_HIDE_CHILDREN;
+            hidePredicate = new HideItemPredicate(childrenToHideArray, hidePropertyPath);
             
             // also check on the parent's parent whether that was hiding the parent
             Resource parent = resource.getParent();
@@ -85,9 +149,11 @@ public class MergingResourceProvider extends ResourceProvider<Void> {
                 final ValueMap parentProperties = parent.getValueMap();
                 final String[] parentChildrenToHideArray = parentProperties.get(MergedResourceConstants.PN_HIDE_CHILDREN, String[].class);
                 if (parentChildrenToHideArray != null) {
-                    HideItemPredicate parentHidePredicate = new HideItemPredicate(parentChildrenToHideArray, parent.getPath() + "/" + MergedResourceConstants.PN_HIDE_CHILDREN);
+                    final String parentPropertyPath = parent.getPath() + "/" + MergedResourceConstants.PN_HIDE_CHILDREN;
+                    HideItemPredicate parentHidePredicate = new HideItemPredicate(parentChildrenToHideArray, parentPropertyPath);
                     // check if this parentHidePredicate is applicable at all (always assuming the worst case, i.e. non local resource)
                     if (parentHidePredicate.testItem(childResourceName, false)) {
+                        parentHidePropertyPath = parentPropertyPath;
                         if (parentHidePredicate.isWildcard()) {
                             isParentHiddenForUnderlay = true;
                         } else {
@@ -104,6 +170,37 @@ public class MergingResourceProvider extends ResourceProvider<Void> {
             }
         }
 
+        /**
+         * Create the handler for a child of a resource from the handler of that resource, without
+         * looking up the parents again.
+         * @param resource the underlying resource or {@code null} if it does not exist
+         * @param path the path of the underlying resource
+         * @param parentHandler the handler of the parent resource or {@code null} if the parent does not exist
+         * @param traverseParent if true will also continue with the parent's parent recursively
+         */
+        ResourceHidingHandler(final Resource resource, final String path, final ResourceHidingHandler parentHandler,
+                final boolean traverseParent) {
+            final String[] childrenToHideArray = resource == null ? new String[0]
+                    : resource.getValueMap().get(MergedResourceConstants.PN_HIDE_CHILDREN, new String[0]);
+            hidePropertyPath = path + "/" + MergedResourceConstants.PN_HIDE_CHILDREN;
+            hidePredicate = new HideItemPredicate(childrenToHideArray, hidePropertyPath);
+            if (parentHandler != null) {
+                if (parentHandler.hidePredicate.testItem(ResourceUtil.getName(path), false)) {
+                    parentHidePropertyPath = parentHandler.hidePropertyPath;
+                    if (parentHandler.hidePredicate.isWildcard()) {
+                        isParentHiddenForUnderlay = true;
+                    } else {
+                        isParentHiddenFully = true;
+                    }
+                } else if (traverseParent) {
+                    // the parent has already evaluated its parents
+                    isParentHiddenFully = parentHandler.isParentHiddenFully;
+                    isParentHiddenForUnderlay = parentHandler.isParentHiddenForUnderlay;
+                    parentHidePropertyPath = parentHandler.parentHidePropertyPath;
+                }
+            }
+        }
+
         /**
          *
          * @param name the name of the resource to check
@@ -114,6 +211,18 @@ public class MergingResourceProvider extends ResourceProvider<Void> {
             return isParentHiddenFully || ((!isLocalResource) && isParentHiddenForUnderlay) || (hidePredicate.testItem(name, isLocalResource));
         }
 
+        /**
+         * @param name the name of the resource to check
+         * @param isLocalResource {@code true} if the check is on a local resource, {@code false} if the check is on an underlying/inherited resource
+         * @return the path of the {@code sling:hideChildren} property hiding the resource or {@code null}
+         */
+        public String getHidingProperty(final String name, boolean isLocalResource) {
+            if (isParentHiddenFully || ((!isLocalResource) && isParentHiddenForUnderlay)) {
+                return parentHidePropertyPath;
+            }
+            return hidePredicate.testItem(name, isLocalResource) ? hidePropertyPath : null;
+        }
+
     }
 
     protected static final class ResourceHolder {
@@ -131,6 +240,23 @@ public class MergingResourceProvider extends ResourceProvider<Void> {
      */
     private Resource createMergedResource(final ResourceResolver resolver, final String relativePath,
             final ResourceHolder holder) {
+        return createMergedResource(resolver, relativePath, holder, null);
+    }
+
+    private Resource createMergedResource(final ResourceResolver resolver, final String relativePath,
+            final ResourceHolder holder, final MergeTracer tracer) {
+        removeHiddenResources(holder, tracer);
+        if (!holder.resources.isEmpty()) {
+            return this.newMergedResource(resolver, relativePath, holder);
+        }
+        return null;
+    }
+
+    /**
+     * Remove the resources hidden by {@code sling:hideResource} from the holder and collect
+     * the value maps of the remaining resources.
+     */
+    static void removeHiddenResources(final ResourceHolder holder, final MergeTracer tracer) {
         int index = 0;
         while (index < holder.resources.size()) {
             final Resource baseRes = holder.resources.get(index);
@@ -138,6 +264,9 @@ public class MergingResourceProvider extends ResourceProvider<Void> {
             final ValueMap props = baseRes.getValueMap();
             holder.valueMaps.add(props);
             if (props.get(MergedResourceConstants.PN_HIDE_RESOURCE, Boolean.FALSE)) {
+                if (tracer != null) {
+                    tracer.hidden(holder.name, baseRes.getPath(), baseRes.getPath() + "/" + MergedResourceConstants.PN_HIDE_RESOURCE);
+                }
                 // clear everything up to now
                 for (int i = 0; i <= index; i++) {
                     holder.resources.remove(0);
@@ -148,227 +277,1543 @@ public class MergingResourceProvider extends ResourceProvider<Void> {
                 index++;
             }
         }
+    }
 
-        if (!holder.resources.isEmpty()) {
-            // create a new merged resource based on the list of mapped physical resources
-            if ( this.readOnly ) {
-                return new MergedResource(resolver, mergeRootPath, relativePath, holder.resources, holder.valueMaps);
+    /**
+     * Create a new merged resource based on the list of mapped physical resources of the holder,
+     * after the hidden resources have been removed.
+     */
+    Resource newMergedResource(final ResourceResolver resolver, final String relativePath, final ResourceHolder holder) {
+        return this.newMergedResource(resolver, relativePath, holder.resources, holder.valueMaps);
+    }
+
+    private Resource newMergedResource(final ResourceResolver resolver, final String relativePath,
+            final List<Resource> resources, final List<ValueMap> valueMaps) {
+        if ( this.readOnly ) {
+            // most resources only exist in a single layer, their properties don't need to be merged
+            if (resources.size() == 1 && !MergedValueMap.containsExcluded(valueMaps.get(0))) {
+                return indexed(new MergedResource(this, resolver, mergeRootPath, relativePath, resources.get(0)));
             }
-            return new CRUDMergedResource(resolver, mergeRootPath, relativePath, holder.resources, holder.valueMaps, this.picker);
+            return indexed(new MergedResource(this, resolver, mergeRootPath, relativePath, resources, valueMaps));
         }
-        return null;
+        return indexed(new CRUDMergedResource(this, resolver, mergeRootPath, relativePath, resources, valueMaps, this.picker));
     }
 
     /**
-     * Gets the relative path out of merge root path
-     *
-     * @param path Absolute path
-     * @return Relative path
+     * Create the merged resource based on a node of the snapshot, which must have been verified
+     * for the resolver. The merged resources are resolved again with the given resolver, if one
+     * of them is not accessible the snapshot can't be used.
+     * @return The merged resource or {@code null}
      */
-    protected String getRelativePath(String path) {
-        if (path.startsWith(mergeRootPath)) {
+    private Resource createMergedResource(final ResourceResolver resolver, final String relativePath,
+            final MergedTreeSnapshot.Node node) {
+        final ValueMap properties = node.getProperties();
+        if (properties != null) {
+            final List<Resource> resources = resolveLayers(resolver, node.getLayerPaths());
+            return resources == null ? null : indexed(new MergedResource(this, resolver, mergeRootPath, relativePath, resources, properties));
+        }
+        return createMergedResource(resolver, relativePath, node.getLayerPaths());
+    }
 
-            path = path.substring(mergeRootPath.length());
+    /**
+     * Create the merged resource from the paths of the resources to merge, which have been
+     * computed before. Hiding is not evaluated again, the paths are resolved with the
+     * given resolver.
+     * @return The merged resource or {@code null} if one of the resources is not accessible
+     */
+    private Resource createMergedResource(final ResourceResolver resolver, final String relativePath,
+            final String[] layerPaths) {
+        final List<Resource> resources = resolveLayers(resolver, layerPaths);
+        if (resources == null) {
+            return null;
+        }
+        final List<ValueMap> valueMaps = new ArrayList<>(resources.size());
+        for (final Resource rsrc : resources) {
+            valueMaps.add(rsrc.getValueMap());
+        }
+        return this.newMergedResource(resolver, relativePath, resources, valueMaps);
+    }
 
-            // multiple merge root paths at beginning should not be expected
-            // and can cause high cpu utilization, see SLING-11776
-            if (path.startsWith(mergeRootPath)) {
-                logger.debug("Multiple merge root path {} found at beginning of path {}", mergeRootPath, path);
+    /**
+     * Record the layers of the merged resource in the reverse index.
+     */
+    private Resource indexed(final MergedResource rsrc) {
+        this.pathIndex.add(getLayerPaths(rsrc), rsrc.getPath());
+        return rsrc;
+    }
+
+    MergedPathIndex getPathIndex() {
+        return this.pathIndex;
+    }
+
+    private static List<Resource> resolveLayers(final ResourceResolver resolver, final String[] paths) {
+        final List<Resource> resources = new ArrayList<>(paths.length);
+        for (final String p : paths) {
+            final Resource rsrc = resolver.getResource(p);
+            if (rsrc == null) {
                 return null;
             }
+            resources.add(rsrc);
+        }
+        return resources;
+    }
 
-            if (path.length() == 0) {
-                return path;
-            } else if (path.charAt(0) == '/') {
-                return path.substring(1);
+    private static String[] getLayerPaths(final Resource mergedResource) {
+        return (String[]) mergedResource.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES);
+    }
+
+    /**
+     * The key for coalescing concurrent merges and for kept merges. Merges are only shared between
+     * resolvers of the same user with the same search paths and without pending changes. The pickers
+     * only depend on the resources the resolver can read, which is the same for all resolvers of a
+     * user, and on the search paths. A picker depending on anything else must not be used with a
+     * provider which is frozen.
+     * @return The key or {@code null} if the merge must not be shared
+     */
+    private static String getMergeKey(final ResourceResolver resolver, final char operation, final String relativePath) {
+        if (resolver.hasChanges()) {
+            return null;
+        }
+        final String userId = resolver.getUserID();
+        final StringBuilder sb = new StringBuilder(userId == null ? "" : userId);
+        final String[] searchPaths = resolver.getSearchPath();
+        if (searchPaths != null) {
+            for (final String searchPath : searchPaths) {
+                sb.append('\n').append(searchPath);
             }
         }
-        return null;
+        return sb.append('\n').append(operation).append(relativePath).toString();
     }
 
-    @Override
-    public Resource getParent(ResolveContext<Void> ctx, Resource child) {
-        final String parentPath = ResourceUtil.getParent(child.getPath());
-        if (parentPath == null) {
+    /**
+     * Wait for a merge computed by another thread, at most {@link #MERGE_WAIT_MILLIS}.
+     * @return The layer paths or {@code null} if the merge failed or did not finish in time
+     */
+    private static String[][] await(final CompletableFuture<String[][]> running) {
+        try {
+            return running.get(MERGE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (final ExecutionException | TimeoutException e) {
             return null;
         }
-        return this.getResource(ctx, parentPath, ResourceContext.EMPTY_CONTEXT, child);
     }
 
     /**
-     * {@inheritDoc}
+     * Install a snapshot which is used for lookups until a relevant change is reported.
+     * The snapshot is not installed if changes were reported since the snapshot has been
+     * validated or created.
+     * @param snapshot The snapshot
+     * @param expectedChangeCount The change count at the time the snapshot was validated
+     * @return {@code true} if the snapshot has been installed
      */
-    @Override
-    public Resource getResource(final ResolveContext<Void> ctx, final String path, final ResourceContext rCtx, final Resource parent) {
-        final String relativePath = getRelativePath(path);
+    synchronized boolean setSnapshot(final MergedTreeSnapshot snapshot, final long expectedChangeCount) {
+        if (!this.readOnly || this.changeCount != expectedChangeCount) {
+            return false;
+        }
+        this.snapshot = snapshot;
+        return true;
+    }
 
-        if (relativePath != null) {
-            final ResourceHolder holder = new ResourceHolder(ResourceUtil.getName(path));
+    MergedTreeSnapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * Serve the resources from a materialized tree, except for the subtrees the materializer
+     * reports as outdated. The tree is not used if changes were reported since it has been written.
+     * @param materializer The materializer which has written the tree
+     * @param expectedChangeCount The change count at the time the tree was written
+     * @return {@code true} if the materialized tree is used
+     */
+    synchronized boolean setMaterialized(final MergedTreeMaterializer materializer, final long expectedChangeCount) {
+        if (!this.readOnly || this.changeCount != expectedChangeCount) {
+            return false;
+        }
+        this.materializedVerifier = new FingerprintVerifier();
+        this.materializer = materializer;
+        this.materializedPath = materializer.getTargetPath();
+        return true;
+    }
+
+    /**
+     * Check the resources of the materialized tree again, after subtrees of it have been written again.
+     */
+    void materializedUpdated() {
+        this.materializedVerifier = new FingerprintVerifier();
+    }
+
+    /**
+     * Stop serving the resources from the materialized tree.
+     */
+    synchronized void discardMaterialized() {
+        this.materializedPath = null;
+        this.materializer = null;
+    }
+
+    String getMaterializedPath() {
+        return this.materializedPath;
+    }
+
+    /**
+     * Create the merged resource from a resource of the materialized tree. The properties are
+     * read from the materialized tree, but the merged resources are the layer resources, resolved
+     * with the given resolver. So the resource can be passed to the picker like a live merged resource.
+     * @return The merged resource or {@code null} if the resource has not been materialized or
+     *         one of the layer resources is not accessible
+     */
+    MergedResource wrapMaterialized(final ResourceResolver resolver, final String relativePath, final Resource target) {
+        final ValueMap props = target.getValueMap();
+        final String[] resourcePaths = props.get(MergedTreeMaterializer.PN_RESOURCES, String[].class);
+        final List<Resource> layers = resourcePaths == null ? null : resolveLayers(resolver, resourcePaths);
+        if (layers == null) {
+            return null;
+        }
+        final MergedResource rsrc = new MergedResource(this, resolver, mergeRootPath, relativePath, layers,
+                new MergedValueMap(MergedTreeMaterializer.getMergedProperties(props)),
+                props.get(MergedTreeMaterializer.PN_RESOURCE_TYPE, String.class), resourcePaths);
+        indexed(rsrc);
+        return rsrc;
+    }
+
+    /**
+     * Get a resource of the materialized tree which may be served to the resolver.
+     * @return The resource or {@code null} if it does not exist or does not match the resources picked with the resolver
+     */
+    private Resource getMaterializedTarget(final ResourceResolver resolver, final String materialized, final String relativePath) {
+        final Resource target = resolver.getResource(relativePath.isEmpty() ? materialized : materialized + '/' + relativePath);
+        return target != null && this.isMaterializedVerified(resolver, materialized, relativePath) ? target : null;
+    }
+
+    private boolean isMaterializedVerified(final ResourceResolver resolver, final String materialized, final String relativePath) {
+        final MergedTreeMaterializer current = this.materializer;
+        if (current == null || current.isOutdated(relativePath)) {
+            return false;
+        }
+        final FingerprintVerifier verifier = this.materializedVerifier;
+        return verifier != null && verifier.isVerified(resolver, this, relativePath, path -> {
+            final Resource target = resolver.getResource(path.isEmpty() ? materialized : materialized + '/' + path);
+            return target == null ? null : MergedTreeMaterializer.getFingerprint(target.getValueMap());
+        });
+    }
+
+    /**
+     * Get a merged resource from the materialized tree.
+     * @return The merged resource or {@code null} if it can't be served from the materialized tree
+     */
+    private Resource getMaterialized(final ResourceResolver resolver, final String materialized, final String relativePath) {
+        final Resource target = this.getMaterializedTarget(resolver, materialized, relativePath);
+        return target == null ? null : this.wrapMaterialized(resolver, relativePath, target);
+    }
 
-            final ResourceResolver resolver = ctx.getResourceResolver();
-            final Iterator<Resource> resources = picker.pickResources(resolver, relativePath, parent).iterator();
+    /**
+     * @return {@code true} if the materialized tree contains the parent, but not the merged resource,
+     *         therefore the merged resource does not exist
+     */
+    private boolean isMaterializedMissing(final ResourceResolver resolver, final String materialized, final String relativePath) {
+        if (relativePath.isEmpty()) {
+            return false;
+        }
+        final String parentPath = ResourceUtil.getParent(relativePath);
+        final Resource parent = this.getMaterializedTarget(resolver, materialized, parentPath == null ? "" : parentPath);
+        return parent != null && parent.getChild(ResourceUtil.getName(relativePath)) == null;
+    }
 
-            if (!resources.hasNext()) {
+    /**
+     * List a window of the children of a resource of the materialized tree.
+     * @return The children or {@code null} if the parent or one of the children can't be served from the materialized tree
+     */
+    private List<Resource> listMaterializedChildren(final ResourceResolver resolver, final String materialized, final String relativePath,
+            final int offset, final int limit) {
+        final Resource target = this.getMaterializedTarget(resolver, materialized, relativePath);
+        if (target == null) {
+            return null;
+        }
+        final List<Resource> children = new ArrayList<>();
+        int skipped = 0;
+        for (final Resource child : target.getChildren()) {
+            if (children.size() >= limit) {
+                break;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            final String childPath = MergedTreeSnapshot.childPath(relativePath, child.getName());
+            final Resource rsrc = this.isMaterializedVerified(resolver, materialized, childPath)
+                    ? this.wrapMaterialized(resolver, childPath, child) : null;
+            if (rsrc == null) {
                 return null;
             }
+            children.add(rsrc);
+        }
+        return children;
+    }
 
-            boolean isUnderlying = true;
-            while (resources.hasNext()) {
-                final Resource resource = resources.next();
+    /**
+     * Get the names of the children of a resource of the materialized tree.
+     * @return The names or {@code null} if the parent or one of the children can't be served from the materialized tree
+     */
+    private List<String> getMaterializedChildNames(final ResourceResolver resolver, final String materialized, final String relativePath) {
+        final Resource target = this.getMaterializedTarget(resolver, materialized, relativePath);
+        if (target == null) {
+            return null;
+        }
+        final List<String> names = new ArrayList<>();
+        for (final Resource child : target.getChildren()) {
+            if (!this.isMaterializedVerified(resolver, materialized, MergedTreeSnapshot.childPath(relativePath, child.getName()))) {
+                return null;
+            }
+            names.add(child.getName());
+        }
+        return names;
+    }
 
-                final boolean hidden;
-                if (isUnderlying) {
-                    hidden = false;
-                    isUnderlying = false;
-                } else {
-                    // check parent for hiding
-                    // SLING-3521 : if parent is not readable, nothing is hidden
-                    final Resource resourceParent = resource.getParent();
-                    hidden = resourceParent != null && new ResourceHidingHandler(resourceParent, this.traverseHierarchie).isHidden(holder.name, true);
+    long getChangeCount() {
+        return this.changeCount;
+    }
 
-                    // TODO Usually, the parent does not exist if the resource is a NonExistingResource. Ideally, this
-                    // common case should be optimised
-                }
-                if (hidden) {
-                    holder.resources.clear();
-                } else if (!ResourceUtil.isNonExistingResource(resource)) {
-                    holder.resources.add(resource);
-                }
-            }
-            return createMergedResource(resolver, relativePath, holder);
+    /**
+     * Freeze the provider: each merge is computed once and kept until {@link #refresh()}
+     * is invoked. Changes of the picked resources are not taken into account. Only
+     * read-only providers can be frozen.
+     * @param frozen Whether the provider is frozen
+     */
+    synchronized void setFrozen(final boolean frozen) {
+        this.plans = frozen && this.readOnly ? new BoundedCache<>(BoundedCache.DEFAULT_MAX_SIZE) : null;
+    }
+
+    boolean isFrozen() {
+        return this.plans != null;
+    }
+
+    /**
+     * Declare whether the paths picked by the picker only depend on the relative path and
+     * the search paths. If so, the paths are kept and shared between all resource resolvers.
+     * @param deterministic Whether the picker is deterministic
+     * @see MergedResourcePicker2#DETERMINISTIC
+     */
+    synchronized void setDeterministic(final boolean deterministic) {
+        this.picks = deterministic ? new BoundedCache<>(BoundedCache.DEFAULT_MAX_SIZE) : null;
+    }
+
+    boolean isDeterministic() {
+        return this.picks != null;
+    }
+
+    /**
+     * Discard everything computed from the picked resources so far, e.g. after a deployment
+     * changed them. The kept merges, the snapshot and the materialized tree are not used anymore.
+     */
+    synchronized void refresh() {
+        this.changeCount++;
+        if (this.plans != null) {
+            // merges running concurrently are not kept as the change count differs
+            this.plans = new BoundedCache<>(BoundedCache.DEFAULT_MAX_SIZE);
         }
+        this.snapshot = null;
+        this.materializedPath = null;
+        this.materializer = null;
+        logger.info("Refreshed merged resources at {}", mergeRootPath);
+    }
 
-        return null;
+    /**
+     * Replace the picker and the hiding behaviour of a registered provider. Everything
+     * computed with the previous configuration is discarded like by {@link #refresh()}.
+     * @param picker The new picker
+     * @param traverseHierarchie Whether the hiding properties of the ancestors are evaluated
+     */
+    synchronized void reconfigure(final MergedResourcePicker2 picker, final boolean traverseHierarchie) {
+        this.picker = picker;
+        this.traverseHierarchie = traverseHierarchie;
+        if (this.picks != null) {
+            this.picks = new BoundedCache<>(BoundedCache.DEFAULT_MAX_SIZE);
+        }
+        this.refresh();
     }
 
     /**
-     * {@inheritDoc}
+     * Create the merged resource from a kept merge. Hiding is not evaluated again, the paths
+     * are resolved with the given resolver.
+     * @return The merged resource or {@code null} if one of the resources is not accessible
      */
-    @Override
-    public Iterator<Resource> listChildren(final ResolveContext<Void> ctx, final Resource parent) {
-        final ResourceResolver resolver = parent.getResourceResolver();
+    private Resource createMergedResource(final ResourceResolver resolver, final String relativePath,
+            final MergePlan plan) {
+        final List<Resource> resources = resolveLayers(resolver, plan.layerPaths);
+        return resources == null ? null : indexed(new MergedResource(this, resolver, mergeRootPath, relativePath, resources, plan.properties));
+    }
 
-        final String relativePath = getRelativePath(parent.getPath());
+    /**
+     * Create a window of the children from kept merges.
+     * @return The children or {@code null} if one of them is not accessible
+     */
+    private List<Resource> createChildren(final ResourceResolver resolver, final String relativePath,
+            final MergePlan[] plans, final int offset, final int limit) {
+        final List<Resource> children = new ArrayList<>(Math.max(0, Math.min(plans.length - offset, limit)));
+        for (int i = offset; i < plans.length && children.size() < limit; i++) {
+            final Resource child = this.createMergedResource(resolver, MergedTreeSnapshot.childPath(relativePath, plans[i].name), plans[i]);
+            if (child == null) {
+                return null;
+            }
+            children.add(child);
+        }
+        return children;
+    }
 
-        if (relativePath != null) {
-            // candidates is the list of holders from which the children are being constructed!
-            final List<ResourceHolder> candidates = new ArrayList<ResourceHolder>();
-
-            final Iterator<Resource> resources = picker.pickResources(resolver, relativePath, parent).iterator();
-
-            // start with the base resource
-            boolean isUnderlying = true;
-            while (resources.hasNext()) {
-                Resource parentResource = resources.next();
-                final ResourceHidingHandler handler = !isUnderlying ? new ResourceHidingHandler(parentResource, this.traverseHierarchie) : null;
-                isUnderlying = false;
-
-                // remove the hidden child resources from the underlying resource
-                if (handler != null) {
-                    final Iterator<ResourceHolder> iter = candidates.iterator();
-                    while (iter.hasNext()) {
-                        final ResourceHolder holder = iter.next();
-                        if (handler.isHidden(holder.name, false)) {
-                            iter.remove(); // remove from the candidates list
-                        }
-                    }
-                }
+    /**
+     * Keep the plans of a merge, unless the provider has been refreshed or changed since the merge
+     * started, as the merge might have picked resources from before the refresh.
+     * @param frozen The cache of kept merges when the merge started
+     * @param generation The change count when the merge started
+     * @param key The merge key
+     * @param plans The plans
+     */
+    private synchronized void keep(final BoundedCache<String, MergePlan[]> frozen, final long generation, final String key, final MergePlan[] plans) {
+        if (this.plans == frozen && this.changeCount == generation) {
+            frozen.put(key, plans);
+        }
+    }
 
-                int previousChildPositionInCandidateList = -1;
+    private static MergePlan[] getPlans(final List<Resource> mergedResources) {
+        final MergePlan[] result = new MergePlan[mergedResources.size()];
+        for (int i = 0; i < result.length; i++) {
+            final MergedResource rsrc = (MergedResource) mergedResources.get(i);
+            result[i] = new MergePlan(rsrc.getName(), getLayerPaths(rsrc), rsrc.getMergedProperties());
+        }
+        return result;
+    }
 
-                // get children of current resource (might be overlaid resource)
-                for (final Resource child : parentResource.getChildren()) {
-                    final String rsrcName = child.getName();
-                    // the holder which should end up in the children list
-                    ResourceHolder holder = null;
-                    int childPositionInCandidateList = -1;
+    /**
+     * Get the kept merge of a resource, the resource is merged and kept first if needed.
+     * @param frozen The cache of kept merges
+     * @return The plans or {@code null} if the merge has not been kept
+     */
+    private MergePlan[] getKeptResource(final BoundedCache<String, MergePlan[]> frozen, final ResourceResolver resolver,
+            final String relativePath) {
+        final String key = getMergeKey(resolver, 'r', relativePath);
+        if (key == null) {
+            return null;
+        }
+        final MergePlan[] kept = frozen.get(key);
+        if (kept != null) {
+            return kept;
+        }
+        this.getResource(resolver, relativePath.isEmpty() ? mergeRootPath : mergeRootPath + '/' + relativePath, null);
+        return frozen.get(key);
+    }
 
-                    // check if this an overlaid resource (i.e. has the resource with the same name already be exposed through the underlying resource)
-                    for (int index=0; index < candidates.size(); index++) {
-                        ResourceHolder current = candidates.get(index);
-                        if (current.name.equals(rsrcName)) {
-                            holder = current;
-                            childPositionInCandidateList = index;
-                            break;
-                        }
-                    }
-                    // for new resources, i.e. no underlying resource found...
-                    if (holder == null) {
-                        // remove the hidden child resources from the local resource
-                        if (handler != null && handler.isHidden(rsrcName, true)) {
-                            continue; // skip this child
-                        }
-                        holder = new ResourceHolder(rsrcName);
-                        if (previousChildPositionInCandidateList != -1) {
-                            // either add after the previous child position
-                            candidates.add(previousChildPositionInCandidateList+1, holder);
-                            previousChildPositionInCandidateList++;
-                        } else {
-                            // or add to the end of the list
-                            candidates.add(holder);
-                            previousChildPositionInCandidateList = candidates.size() - 1;
-                        }
-                    }
-                    // in all cases the holder should get the current child!
-                    holder.resources.add(child);
-
-                    // Check if children need reordering
-                    int orderBeforeIndex = -1;
-                    final ValueMap vm = child.getValueMap();
-                    final String orderBefore = vm.get(MergedResourceConstants.PN_ORDER_BEFORE, String.class);
-                    if (orderBefore != null && !orderBefore.equals(rsrcName)) {
-                        // search entry
-                        int index = 0;
-                        while (index < candidates.size()) {
-                            final ResourceHolder current = candidates.get(index);
-                            if (current.name.equals(orderBefore)) {
-                                orderBeforeIndex = index;
-                                break;
-                            }
-                            index++;
-                        }
-                    }
-                    // either reorder because of explicit reording property
-                    if (orderBeforeIndex > -1) {
-                        candidates.add(orderBeforeIndex, holder);
-                        if (childPositionInCandidateList == -1) {
-                            candidates.remove(candidates.size() - 1);
-                        } else {
-                            if (childPositionInCandidateList > orderBeforeIndex) {
-                                childPositionInCandidateList++;
-                            }
-                            candidates.remove(childPositionInCandidateList);
-                        }
-                    } else {
-                        // or reorder because overlaid resource has a different order
-                        if (childPositionInCandidateList != -1 && previousChildPositionInCandidateList != -1) {
-                            candidates.remove(childPositionInCandidateList);
-                            if (childPositionInCandidateList < previousChildPositionInCandidateList) {
-                                previousChildPositionInCandidateList--;
-                            }
-                            if(previousChildPositionInCandidateList+1 > candidates.size()){
-                                candidates.add(holder);
-                            } else {
-                                candidates.add(previousChildPositionInCandidateList + 1, holder);
-                            }
-                            previousChildPositionInCandidateList++;
-                        }
-                    }
-                }
+    /**
+     * Get the kept merge of the children, the children are merged and kept first if needed.
+     * @param frozen The cache of kept merges
+     * @return The plans or {@code null} if the merge has not been kept
+     */
+    private MergePlan[] getKeptChildren(final BoundedCache<String, MergePlan[]> frozen, final Resource parent,
+            final String relativePath) {
+        final String key = getMergeKey(parent.getResourceResolver(), 'c', relativePath);
+        if (key == null) {
+            return null;
+        }
+        final MergePlan[] kept = frozen.get(key);
+        if (kept != null) {
+            return kept;
+        }
+        this.getChildren(parent);
+        return frozen.get(key);
+    }
 
+    /**
+     * Invoked for changes of resources which might be picked by this provider.
+     * Changes of merged resources containing the changed resources are reported
+     * to the observation reporter of the provider.
+     * @param changes The changes
+     */
+    void onChange(final List<ResourceChange> changes) {
+        synchronized (this) {
+            this.changeCount++;
+            if (this.materializedPath != null) {
+                // changed hiding or ordering properties don't match the fingerprints anymore
+                this.materializedVerifier = new FingerprintVerifier();
             }
-            final List<Resource> children = new ArrayList<Resource>();
-            for (final ResourceHolder holder : candidates) {
-                final Resource mergedResource = this.createMergedResource(resolver,
-                        (relativePath.length() == 0 ? holder.name : relativePath + '/' + holder.name), holder);
-                if (mergedResource != null) {
-                    children.add(mergedResource);
+            final MergedTreeSnapshot current = this.snapshot;
+            if (current != null) {
+                for (final ResourceChange change : changes) {
+                    if (current.isAffectedBy(change.getPath())) {
+                        logger.info("Discarding snapshot of merged resources at {} due to change at {}", mergeRootPath, change.getPath());
+                        this.snapshot = null;
+                        break;
+                    }
                 }
             }
-            return children.iterator();
         }
+        // report the changes of the merged resources
+        final List<ResourceChange> mergedChanges = this.pathIndex.translate(changes);
+        final ProviderContext providerContext = this.getProviderContext();
+        if (!mergedChanges.isEmpty() && providerContext != null) {
+            providerContext.getObservationReporter().reportChanges(mergedChanges, false);
+        }
+    }
+
+    @Override
+    public void start(final ProviderContext ctx) {
+        super.start(ctx);
+        observersChanged();
+    }
+
+    @Override
+    public void update(final long changeSet) {
+        super.update(changeSet);
+        if ((changeSet & ProviderContext.OBSERVATION_LISTENER_CHANGED) != 0) {
+            observersChanged();
+        }
+    }
 
-        return null;
+    private void observersChanged() {
+        final Runnable callback = this.observationCallback;
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * @param callback Invoked when the provider is started and whenever the observers of the merged resources changed
+     */
+    void setObservationCallback(final Runnable callback) {
+        this.observationCallback = callback;
+    }
+
+    /**
+     * @param external Whether only observers of external changes are checked
+     * @return {@code true} if there are observers for the merged resources
+     */
+    boolean isObserved(final boolean external) {
+        final ProviderContext providerContext = this.getProviderContext();
+        if (providerContext == null) {
+            return false;
+        }
+        for (final ObserverConfiguration config : providerContext.getObservationReporter().getObserverConfigurations()) {
+            if (!external || config.includeExternal()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The paths of the resources picked for the merge root.
+     */
+    String[] getLayerRoots(final ResourceResolver resolver) {
+        final List<Resource> resources = this.picker.pickResources(resolver, "", null);
+        final String[] paths = new String[resources.size()];
+        for (int i = 0; i < paths.length; i++) {
+            final String path = resources.get(i).getPath();
+            paths[i] = path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        }
+        return paths;
+    }
+
+    /**
+     * Gets the relative path out of merge root path
+     *
+     * @param path Absolute path
+     * @return Relative path
+     */
+    protected String getRelativePath(String path) {
+        if (path.startsWith(mergeRootPath)) {
+
+            path = path.substring(mergeRootPath.length());
+
+            // multiple merge root paths at beginning should not be expected
+            // and can cause high cpu utilization, see SLING-11776
+            if (path.startsWith(mergeRootPath)) {
+                logger.debug("Multiple merge root path {} found at beginning of path {}", mergeRootPath, path);
+                return null;
+            }
+
+            if (path.length() == 0) {
+                return path;
+            } else if (path.charAt(0) == '/') {
+                return path.substring(1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public QueryLanguageProvider<Void> getQueryLanguageProvider() {
+        return this.queryLanguageProvider;
+    }
+
+    @Override
+    public Resource getParent(ResolveContext<Void> ctx, Resource child) {
+        if (child instanceof MergedResource) {
+            final Resource parent = ((MergedResource) child).getRememberedParent();
+            if (parent != null) {
+                return parent;
+            }
+        }
+        final String parentPath = ResourceUtil.getParent(child.getPath());
+        if (parentPath == null) {
+            return null;
+        }
+        return this.getResource(ctx, parentPath, ResourceContext.EMPTY_CONTEXT, child);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Resource getResource(final ResolveContext<Void> ctx, final String path, final ResourceContext rCtx, final Resource parent) {
+        return this.getResource(ctx.getResourceResolver(), path, parent);
+    }
+
+    Resource getResource(final ResourceResolver resolver, final String path, final Resource parent) {
+        final String relativePath = getRelativePath(path);
+
+        if (relativePath != null) {
+            final long generation = this.changeCount;
+            final BoundedCache<String, MergePlan[]> frozen = this.plans;
+            final String key = frozen == null ? null : getMergeKey(resolver, 'r', relativePath);
+            final MergePlan[] kept = key == null ? null : frozen.get(key);
+            if (kept != null) {
+                if (kept.length == 0) {
+                    return null;
+                }
+                final Resource rsrc = this.createMergedResource(resolver, relativePath, kept[0]);
+                if (rsrc != null) {
+                    return rsrc;
+                }
+            }
+
+            final MergedTreeSnapshot currentSnapshot = this.snapshot;
+            if (currentSnapshot != null) {
+                final MergedTreeSnapshot.Node node = currentSnapshot.getNode(relativePath);
+                final Resource rsrc = node == null || !currentSnapshot.isVerified(resolver, this, relativePath) ? null
+                        : this.createMergedResource(resolver, relativePath, node);
+                if (rsrc != null) {
+                    return rsrc;
+                }
+            }
+
+            final String materialized = this.materializedPath;
+            if (materialized != null) {
+                final Resource rsrc = this.getMaterialized(resolver, materialized, relativePath);
+                if (rsrc != null) {
+                    return rsrc;
+                }
+                if (this.isMaterializedMissing(resolver, materialized, relativePath)) {
+                    return null;
+                }
+            }
+
+            final String sharedKey = key != null ? key : getMergeKey(resolver, 'r', relativePath);
+            final CompletableFuture<String[][]> own = sharedKey == null ? null : new CompletableFuture<>();
+            final CompletableFuture<String[][]> running = own == null ? null : this.merging.putIfAbsent(sharedKey, own);
+            if (running != null) {
+                // reuse the layers picked by the other thread, but resolve them with our resolver
+                final String[][] layers = await(running);
+                if (layers != null) {
+                    if (layers.length == 0) {
+                        return null;
+                    }
+                    final Resource rsrc = this.createMergedResource(resolver, relativePath, layers[0]);
+                    if (rsrc != null) {
+                        return rsrc;
+                    }
+                }
+                return this.mergeResource(resolver, path, relativePath, parent);
+            }
+            try {
+                final Resource rsrc = this.mergeResource(resolver, path, relativePath, parent);
+                // waiting threads merge themselves if the merge might be outdated
+                if (own != null && this.changeCount == generation) {
+                    own.complete(rsrc == null ? new String[0][] : new String[][] {getLayerPaths(rsrc)});
+                }
+                if (key != null) {
+                    this.keep(frozen, generation, key, rsrc == null ? MergePlan.NONE : getPlans(Collections.singletonList(rsrc)));
+                }
+                return rsrc;
+            } finally {
+                if (own != null) {
+                    own.complete(null);
+                    this.merging.remove(sharedKey, own);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Merge the resource live, without using kept merges, the snapshot or the materialized tree.
+     * @param resolver The resource resolver
+     * @param relativePath The path relative to the merge root
+     * @return The merged resource or {@code null}
+     */
+    Resource getLiveResource(final ResourceResolver resolver, final String relativePath) {
+        return this.mergeResource(resolver, relativePath.isEmpty() ? mergeRootPath : mergeRootPath + '/' + relativePath, relativePath, null);
+    }
+
+    /**
+     * Merge the children live, like {@link #getLiveResource(ResourceResolver, String)}.
+     * @param parent The merged parent resource
+     * @return The merged children
+     */
+    List<Resource> getLiveChildren(final Resource parent) {
+        final String relativePath = getRelativePath(parent.getPath());
+        return relativePath == null ? Collections.emptyList() : this.mergeChildren(parent.getResourceResolver(), relativePath, parent);
+    }
+
+    /**
+     * Merge the resource by picking the resources and evaluating the hiding properties.
+     */
+    private Resource mergeResource(final ResourceResolver resolver, final String path, final String relativePath, final Resource parent) {
+        final ObservingTracer tracer = this.observe(relativePath);
+        final Resource rsrc = mergeResource(resolver, path, relativePath, parent, tracer);
+        if (tracer != null) {
+            tracer.setMergedCount(rsrc == null ? 0 : 1);
+            tracer.report();
+        }
+        return rsrc;
+    }
+
+    private Resource mergeResource(final ResourceResolver resolver, final String path, final String relativePath, final Resource parent,
+            final MergeTracer tracer) {
+        final ResourceHolder holder = this.pickLayers(resolver, ResourceUtil.getName(path), relativePath, parent, tracer);
+        if (holder == null) {
+            return null;
+        }
+        final long start = tracer == null ? 0 : System.nanoTime();
+        final Resource result = createMergedResource(resolver, relativePath, holder, tracer);
+        if (tracer != null) {
+            tracer.timed("create", System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    /**
+     * Pick the resources for the merged resource and remove the resources hidden by their parents.
+     * Hiding by {@code sling:hideResource} is not evaluated.
+     * @return The holder or {@code null} if no resource has been picked
+     */
+    private ResourceHolder pickLayers(final ResourceResolver resolver, final String name, final String relativePath, final Resource parent,
+            final MergeTracer tracer) {
+        final LayerHider hider = new LayerHider(resolver, name, tracer);
+        long start = tracer == null ? 0 : System.nanoTime();
+        if (this.picker instanceof MergedResourcePicker3Adapter || this.picks != null) {
+            // the layers are hidden while they are picked
+            this.pickLayers(resolver, relativePath, parent, hider);
+            if (tracer != null) {
+                tracer.timed("pick", System.nanoTime() - start);
+                start = System.nanoTime();
+            }
+        } else {
+            final List<Resource> resources = picker.pickResources(resolver, relativePath, parent);
+            if (tracer != null) {
+                tracer.timed("pick", System.nanoTime() - start);
+                start = System.nanoTime();
+            }
+            for (final Resource resource : resources) {
+                hider.layer(resource);
+            }
+        }
+        final ResourceHolder holder = hider.getHolder();
+        if (tracer != null) {
+            tracer.timed("hide", System.nanoTime() - start);
+        }
+        return holder;
+    }
+
+    /**
+     * The paths picked by a deterministic picker for the search paths of a resource resolver.
+     */
+    private static final class PickedPaths {
+
+        final String[] searchPaths;
+
+        /** The paths of the picked resources, including the missing ones. */
+        final String[] paths;
+
+        PickedPaths(final String[] searchPaths, final String[] paths) {
+            this.searchPaths = searchPaths;
+            this.paths = paths;
+        }
+    }
+
+    /**
+     * Pass the picked layers to the collector. For deterministic pickers the paths picked without
+     * a related resource are kept per relative path and only resolved with the given resolver.
+     * With a related resource the picker usually derives the layers from it, which is as cheap
+     * as resolving kept paths.
+     */
+    private void pickLayers(final ResourceResolver resolver, final String relativePath, final Resource relatedResource,
+            final MergedResourcePicker3.LayerCollector collector) {
+        final BoundedCache<String, PickedPaths> cache = relatedResource == null ? this.picks : null;
+        if (cache == null) {
+            MergedResourcePicker3Adapter.pickLayers(this.picker, resolver, relativePath, relatedResource, collector);
+            return;
+        }
+        final String[] searchPaths = resolver.getSearchPath();
+        final PickedPaths kept = cache.get(relativePath);
+        if (kept != null && Arrays.equals(kept.searchPaths, searchPaths)) {
+            for (final String path : kept.paths) {
+                final Resource rsrc = resolver.getResource(path);
+                if (rsrc != null) {
+                    collector.layer(rsrc);
+                } else {
+                    collector.layer(path, false);
+                }
+            }
+            return;
+        }
+        final List<String> paths = new ArrayList<>();
+        MergedResourcePicker3Adapter.pickLayers(this.picker, resolver, relativePath, relatedResource,
+                new MergedResourcePicker3.LayerCollector() {
+
+                    @Override
+                    public void layer(final Resource resource) {
+                        paths.add(resource.getPath());
+                        collector.layer(resource);
+                    }
+
+                    @Override
+                    public void layer(final String path, final boolean exists) {
+                        paths.add(path);
+                        collector.layer(path, exists);
+                    }
+                });
+        cache.put(relativePath, new PickedPaths(searchPaths, paths.toArray(new String[0])));
+    }
+
+    /**
+     * Pick the resources like {@link #pickLayers(ResourceResolver, String, Resource, MergedResourcePicker3.LayerCollector)},
+     * missing layers are returned as non existing resources.
+     */
+    List<Resource> pickResources(final ResourceResolver resolver, final String relativePath, final Resource relatedResource) {
+        if (this.picks == null) {
+            return this.picker.pickResources(resolver, relativePath, relatedResource);
+        }
+        final List<Resource> resources = new ArrayList<>();
+        this.pickLayers(resolver, relativePath, relatedResource, new MergedResourcePicker3.LayerCollector() {
+
+            @Override
+            public void layer(final Resource resource) {
+                resources.add(resource);
+            }
+
+            @Override
+            public void layer(final String path, final boolean exists) {
+                final Resource resource = exists ? resolver.getResource(path) : null;
+                resources.add(resource != null ? resource : new NonExistingResource(resolver, path));
+            }
+        });
+        return resources;
+    }
+
+    /**
+     * Collects the layers of a merged resource and removes the layers hidden by their parents.
+     * Layers given by path are only resolved if they are not hidden. Missing layers are only
+     * checked for hiding the layers below, if there is one.
+     */
+    private final class LayerHider implements MergedResourcePicker3.LayerCollector {
+
+        private final ResourceResolver resolver;
+
+        private final String name;
+
+        private final MergeTracer tracer;
+
+        /** The layers which are not hidden, either resources or paths of existing resources. */
+        private final List<Object> layers = new ArrayList<>();
+
+        private boolean picked;
+
+        LayerHider(final ResourceResolver resolver, final String name, final MergeTracer tracer) {
+            this.resolver = resolver;
+            this.name = name;
+            this.tracer = tracer;
+        }
+
+        @Override
+        public void layer(final Resource resource) {
+            final boolean exists = !ResourceUtil.isNonExistingResource(resource);
+            if (this.isHidden(resource.getPath(), resource, exists)) {
+                this.layers.clear();
+            } else if (exists) {
+                this.layers.add(resource);
+            }
+        }
+
+        @Override
+        public void layer(final String path, final boolean exists) {
+            if (this.isHidden(path, null, exists)) {
+                this.layers.clear();
+            } else if (exists) {
+                this.layers.add(path);
+            }
+        }
+
+        /**
+         * Check whether the parent of the layer hides the merged resource.
+         * The underlying resource is not checked.
+         */
+        private boolean isHidden(final String path, final Resource resource, final boolean exists) {
+            if (this.tracer != null) {
+                this.tracer.picked(path, exists);
+            }
+            final boolean isUnderlying = !this.picked;
+            this.picked = true;
+            if (isUnderlying || (!exists && this.layers.isEmpty())) {
+                // nothing to hide
+                return false;
+            }
+            // check parent for hiding
+            // SLING-3521 : if parent is not readable, nothing is hidden
+            final Resource resourceParent;
+            if (resource != null) {
+                resourceParent = resource.getParent();
+            } else {
+                final String parentPath = ResourceUtil.getParent(path);
+                resourceParent = parentPath == null ? null : this.resolver.getResource(parentPath);
+            }
+            final ResourceHidingHandler handler = resourceParent == null ? null
+                    : new ResourceHidingHandler(resourceParent, traverseHierarchie);
+            final boolean hidden = handler != null && handler.isHidden(this.name, true);
+            if (hidden && this.tracer != null) {
+                this.tracer.hidden(this.name, resourceParent.getPath(), handler.getHidingProperty(this.name, true));
+            }
+            return hidden;
+        }
+
+        /**
+         * @return The holder with the resolved layers or {@code null} if no layer has been picked
+         */
+        ResourceHolder getHolder() {
+            if (!this.picked) {
+                return null;
+            }
+            final ResourceHolder holder = new ResourceHolder(this.name);
+            for (final Object layer : this.layers) {
+                if (layer instanceof Resource) {
+                    holder.resources.add((Resource) layer);
+                } else {
+                    final Resource resource = this.resolver.getResource((String) layer);
+                    if (resource != null) {
+                        holder.resources.add(resource);
+                    }
+                }
+            }
+            return holder;
+        }
+    }
+
+    /**
+     * Get a single property of a merged resource without creating the merged resource.
+     * The resources are picked and hidden in the same way as for {@link #getResource(ResourceResolver, String, Resource)},
+     * but only the requested property is merged. A frozen provider reads the property from the kept merge.
+     * @param resolver The resource resolver
+     * @param relativePath The path of the merged resource relative to the merge root
+     * @param name The name of the property
+     * @return The value or {@code null} if the resource or the property does not exist or is hidden
+     */
+    Object getMergedProperty(final ResourceResolver resolver, final String relativePath, final String name) {
+        if (MergedValueMap.isExcluded(name)) {
+            return null;
+        }
+        final BoundedCache<String, MergePlan[]> frozen = this.plans;
+        final MergePlan[] kept = frozen == null ? null : this.getKeptResource(frozen, resolver, relativePath);
+        if (kept != null) {
+            return kept.length == 0 ? null : kept[0].properties.get(name);
+        }
+        final String materialized = this.materializedPath;
+        if (materialized != null) {
+            final Resource target = this.getMaterializedTarget(resolver, materialized, relativePath);
+            if (target != null && target.getValueMap().containsKey(MergedTreeMaterializer.PN_RESOURCES)) {
+                return MergedTreeMaterializer.getMergedProperty(target.getValueMap(), name);
+            }
+        }
+        final ResourceHolder holder = this.pickLayers(resolver, ResourceUtil.getName(relativePath), relativePath, null, null);
+        if (holder == null) {
+            return null;
+        }
+        // only the layers above the top most resource hiding itself are merged
+        int start = 0;
+        for (int index = 0; index < holder.resources.size(); index++) {
+            final ValueMap props = holder.resources.get(index).getValueMap();
+            holder.valueMaps.add(props);
+            if (props.get(MergedResourceConstants.PN_HIDE_RESOURCE, Boolean.FALSE)) {
+                start = index + 1;
+            }
+        }
+        if (start == holder.valueMaps.size()) {
+            return null;
+        }
+        return MergedValueMap.mergeProperty(holder.valueMaps.subList(start, holder.valueMaps.size()), name);
+    }
+
+    /**
+     * List a window of the children based on a node of the snapshot. The parent and the
+     * children must match their fingerprints for the resolver.
+     * @return The children or {@code null} if one of them can't be created from the snapshot
+     */
+    private List<Resource> listChildren(final ResourceResolver resolver, final MergedTreeSnapshot snapshot,
+            final String relativePath, final MergedTreeSnapshot.Node node, final int offset, final int limit) {
+        if (!snapshot.isVerified(resolver, this, relativePath)) {
+            return null;
+        }
+        final List<MergedTreeSnapshot.Node> nodes = node.getChildren();
+        final List<Resource> children = new ArrayList<>();
+        for (int i = offset; i < nodes.size() && children.size() < limit; i++) {
+            final String childPath = MergedTreeSnapshot.childPath(relativePath, nodes.get(i).getName());
+            final Resource mergedResource = snapshot.isVerified(resolver, this, childPath)
+                    ? this.createMergedResource(resolver, childPath, nodes.get(i)) : null;
+            if (mergedResource == null) {
+                return null;
+            }
+            children.add(mergedResource);
+        }
+        return children;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<Resource> listChildren(final ResolveContext<Void> ctx, final Resource parent) {
+        return this.listChildren(parent);
+    }
+
+    Iterator<Resource> listChildren(final Resource parent) {
+        final List<Resource> children = this.getChildren(parent);
+        return children == null ? null : rememberParent(children, parent).iterator();
+    }
+
+    private List<Resource> getChildren(final Resource parent) {
+        final ResourceResolver resolver = parent.getResourceResolver();
+
+        final String relativePath = getRelativePath(parent.getPath());
+
+        if (relativePath != null) {
+            final long generation = this.changeCount;
+            final BoundedCache<String, MergePlan[]> frozen = this.plans;
+            final String key = frozen == null ? null : getMergeKey(resolver, 'c', relativePath);
+            final MergePlan[] kept = key == null ? null : frozen.get(key);
+            if (kept != null) {
+                final List<Resource> children = this.createChildren(resolver, relativePath, kept, 0, Integer.MAX_VALUE);
+                if (children != null) {
+                    return children;
+                }
+            }
+
+            final MergedTreeSnapshot currentSnapshot = this.snapshot;
+            if (currentSnapshot != null) {
+                final MergedTreeSnapshot.Node node = currentSnapshot.getNode(relativePath);
+                final List<Resource> children = node == null ? null
+                        : this.listChildren(resolver, currentSnapshot, relativePath, node, 0, Integer.MAX_VALUE);
+                if (children != null) {
+                    return children;
+                }
+            }
+
+            final String materialized = this.materializedPath;
+            if (materialized != null) {
+                final List<Resource> children = this.listMaterializedChildren(resolver, materialized, relativePath, 0, Integer.MAX_VALUE);
+                if (children != null) {
+                    return children;
+                }
+            }
+
+            final String sharedKey = key != null ? key : getMergeKey(resolver, 'c', relativePath);
+            final CompletableFuture<String[][]> own = sharedKey == null ? null : new CompletableFuture<>();
+            final CompletableFuture<String[][]> running = own == null ? null : this.merging.putIfAbsent(sharedKey, own);
+            if (running != null) {
+                // reuse the children merged by the other thread, but resolve them with our resolver
+                final String[][] layers = await(running);
+                final List<Resource> children = layers == null ? null : this.createChildren(resolver, relativePath, layers);
+                return children != null ? children : this.mergeChildren(resolver, relativePath, parent);
+            }
+            try {
+                final List<Resource> children = this.mergeChildren(resolver, relativePath, parent);
+                if (own != null && this.changeCount == generation) {
+                    final String[][] layers = new String[children.size()][];
+                    for (int i = 0; i < layers.length; i++) {
+                        layers[i] = getLayerPaths(children.get(i));
+                    }
+                    own.complete(layers);
+                }
+                if (key != null) {
+                    this.keep(frozen, generation, key, getPlans(children));
+                }
+                return children;
+            } finally {
+                if (own != null) {
+                    own.complete(null);
+                    this.merging.remove(sharedKey, own);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Let the merged children remember the parent they have been created from.
+     */
+    private static List<Resource> rememberParent(final List<Resource> children, final Resource parent) {
+        for (final Resource child : children) {
+            ((MergedResource) child).setParent(parent);
+        }
+        return children;
+    }
+
+    /**
+     * Create the children from the layer paths of children merged before.
+     * @return The children or {@code null} if one of them is not accessible
+     */
+    private List<Resource> createChildren(final ResourceResolver resolver, final String relativePath, final String[][] layers) {
+        final List<Resource> children = new ArrayList<>(layers.length);
+        for (final String[] layerPaths : layers) {
+            final String name = ResourceUtil.getName(layerPaths[layerPaths.length - 1]);
+            final Resource child = this.createMergedResource(resolver, relativePath.length() == 0 ? name : relativePath + '/' + name, layerPaths);
+            if (child == null) {
+                return null;
+            }
+            children.add(child);
+        }
+        return children;
+    }
+
+    /**
+     * List a window of the children. Only the children within the window are merged,
+     * the children before the window are only checked for being hidden.
+     * @param parent The parent resource
+     * @param offset The number of children to skip
+     * @param limit The maximum number of children to return
+     * @return The children or {@code null} if the parent is not provided by this provider
+     */
+    List<Resource> listChildren(final Resource parent, final int offset, final int limit) {
+        final List<Resource> children = this.getChildren(parent, offset, limit);
+        return children == null ? null : rememberParent(children, parent);
+    }
+
+    private List<Resource> getChildren(final Resource parent, final int offset, final int limit) {
+        final ResourceResolver resolver = parent.getResourceResolver();
+
+        final String relativePath = getRelativePath(parent.getPath());
+
+        if (relativePath != null) {
+            final BoundedCache<String, MergePlan[]> frozen = this.plans;
+            final String key = frozen == null ? null : getMergeKey(resolver, 'c', relativePath);
+            final MergePlan[] kept = key == null ? null : frozen.get(key);
+            if (kept != null) {
+                final List<Resource> children = this.createChildren(resolver, relativePath, kept, offset, limit);
+                if (children != null) {
+                    return children;
+                }
+            }
+
+            final MergedTreeSnapshot currentSnapshot = this.snapshot;
+            final MergedTreeSnapshot.Node node = currentSnapshot == null ? null : currentSnapshot.getNode(relativePath);
+            if (node != null) {
+                final List<Resource> children = this.listChildren(resolver, currentSnapshot, relativePath, node, offset, limit);
+                if (children != null) {
+                    return children;
+                }
+            }
+
+            final String materialized = this.materializedPath;
+            if (materialized != null) {
+                final List<Resource> children = this.listMaterializedChildren(resolver, materialized, relativePath, offset, limit);
+                if (children != null) {
+                    return children;
+                }
+            }
+            return this.mergeChildren(resolver, relativePath, parent, offset, limit);
+        }
+
+        return null;
+    }
+
+    /**
+     * Check whether the parent has at least one child. The kept merge of a frozen provider, the
+     * snapshot or the materialized tree answer if they match the picked resources. Otherwise the children are evaluated one
+     * after the other, starting with the top most layer, until one is not hidden.
+     * @param parent The parent resource
+     * @return {@code true} if {@link #listChildren(Resource)} returns at least one child
+     */
+    boolean hasChildren(final Resource parent) {
+        final String relativePath = getRelativePath(parent.getPath());
+
+        if (relativePath != null) {
+            final ResourceResolver resolver = parent.getResourceResolver();
+            final BoundedCache<String, MergePlan[]> frozen = this.plans;
+            final MergePlan[] kept = frozen == null ? null : this.getKeptChildren(frozen, parent, relativePath);
+            if (kept != null) {
+                return kept.length > 0;
+            }
+            final MergedTreeSnapshot currentSnapshot = this.snapshot;
+            final MergedTreeSnapshot.Node node = currentSnapshot == null ? null : currentSnapshot.getNode(relativePath);
+            if (node != null && currentSnapshot.isVerified(resolver, this, relativePath)) {
+                // the first child must match its fingerprint as well
+                final List<MergedTreeSnapshot.Node> children = node.getChildren();
+                if (children.isEmpty() || currentSnapshot.isVerified(resolver, this,
+                        MergedTreeSnapshot.childPath(relativePath, children.get(0).getName()))) {
+                    return !children.isEmpty();
+                }
+            }
+            final String materialized = this.materializedPath;
+            if (materialized != null) {
+                final Resource target = this.getMaterializedTarget(resolver, materialized, relativePath);
+                if (target != null) {
+                    return target.hasChildren();
+                }
+            }
+            final ChildLookup lookup = new ChildLookup(this.getParentLayers(resolver, relativePath, parent), this.traverseHierarchie);
+            final Set<String> checked = new HashSet<>();
+            for (int index = lookup.getLayerCount() - 1; index >= 0; index--) {
+                for (final Resource child : lookup.getLayer(index).getChildren()) {
+                    if (checked.add(child.getName())) {
+                        final ResourceHolder holder = lookup.getHolder(child.getName());
+                        if (holder != null && !isHiddenResource(holder)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Get the resources picked for the parent. If the picker returns the layers held by a
+     * merged resource for the same path anyway, these are used without invoking the picker.
+     */
+    private List<Resource> getParentLayers(final ResourceResolver resolver, final String relativePath, final Resource parent) {
+        if (parent instanceof MergedResource && MergedTreeVisit.preservesLayers(this.picker)) {
+            return ((MergedResource) parent).getMergedResources();
+        }
+        return this.pickResources(resolver, relativePath, parent);
+    }
+
+    /**
+     * Get a direct child of the parent. Kept merges, the snapshot and the materialized tree are used like
+     * by {@link #getResource(ResourceResolver, String, Resource)}. Otherwise the layers of the
+     * parent are used and the child is hidden in the same way as by {@link #listChildren(Resource)}.
+     * @param parent The parent resource
+     * @param name The name of the child, must not contain a slash
+     * @return The merged child or {@code null}
+     */
+    Resource getChild(final Resource parent, final String name) {
+        final String relativePath = getRelativePath(parent.getPath());
+
+        if (relativePath != null) {
+            final ResourceResolver resolver = parent.getResourceResolver();
+            final String childPath = relativePath.length() == 0 ? name : relativePath + '/' + name;
+            Resource child = null;
+            final BoundedCache<String, MergePlan[]> frozen = this.plans;
+            final MergePlan[] kept = frozen == null ? null : this.getKeptResource(frozen, resolver, childPath);
+            if (kept != null) {
+                if (kept.length == 0) {
+                    return null;
+                }
+                child = this.createMergedResource(resolver, childPath, kept[0]);
+            }
+            final MergedTreeSnapshot currentSnapshot = this.snapshot;
+            if (child == null && currentSnapshot != null) {
+                final MergedTreeSnapshot.Node node = currentSnapshot.getNode(childPath);
+                child = node == null || !currentSnapshot.isVerified(resolver, this, childPath) ? null
+                        : this.createMergedResource(resolver, childPath, node);
+            }
+            final String materialized = this.materializedPath;
+            if (child == null && materialized != null) {
+                child = this.getMaterialized(resolver, materialized, childPath);
+                if (child == null && this.isMaterializedMissing(resolver, materialized, childPath)) {
+                    return null;
+                }
+            }
+            if (child == null) {
+                final ResourceHolder holder = new ChildLookup(this.getParentLayers(resolver, relativePath, parent),
+                        this.traverseHierarchie).getHolder(name);
+                child = holder == null ? null : this.createMergedResource(resolver, childPath, holder);
+            }
+            if (child != null) {
+                ((MergedResource) child).setParent(parent);
+            }
+            return child;
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the names of the children in their order. The same hiding and ordering rules
+     * as for {@link #listChildren(Resource)} are applied, but the properties are not merged.
+     * A frozen provider reads the names from the kept merge of the children.
+     * @param parent The parent resource
+     * @return The names or {@code null} if the parent is not provided by this provider
+     */
+    List<String> getChildNames(final Resource parent) {
+        final String relativePath = getRelativePath(parent.getPath());
+
+        if (relativePath != null) {
+            final BoundedCache<String, MergePlan[]> frozen = this.plans;
+            final MergePlan[] kept = frozen == null ? null : this.getKeptChildren(frozen, parent, relativePath);
+            if (kept != null) {
+                final List<String> names = new ArrayList<>(kept.length);
+                for (final MergePlan plan : kept) {
+                    names.add(plan.name);
+                }
+                return names;
+            }
+            final MergedTreeSnapshot currentSnapshot = this.snapshot;
+            final MergedTreeSnapshot.Node node = currentSnapshot == null ? null : currentSnapshot.getNode(relativePath);
+            if (node != null && currentSnapshot.isVerified(parent.getResourceResolver(), this, relativePath)) {
+                // the children must match their fingerprints for the resolver as well
+                final List<String> names = new ArrayList<>();
+                boolean verified = true;
+                for (final MergedTreeSnapshot.Node child : node.getChildren()) {
+                    if (!currentSnapshot.isVerified(parent.getResourceResolver(), this,
+                            MergedTreeSnapshot.childPath(relativePath, child.getName()))) {
+                        verified = false;
+                        break;
+                    }
+                    names.add(child.getName());
+                }
+                if (verified) {
+                    return names;
+                }
+            }
+            final String materialized = this.materializedPath;
+            if (materialized != null) {
+                final List<String> names = this.getMaterializedChildNames(parent.getResourceResolver(), materialized, relativePath);
+                if (names != null) {
+                    return names;
+                }
+            }
+            final ObservingTracer tracer = this.observe(relativePath);
+            final List<ResourceHolder> holders = this.orderChildren(parent.getResourceResolver(), relativePath, parent, tracer);
+            final List<String> names = new ArrayList<>();
+            for (final ResourceHolder holder : holders) {
+                if (!isHiddenResource(holder)) {
+                    names.add(holder.name);
+                }
+            }
+            if (tracer != null) {
+                tracer.setChildCount(holders.size());
+                tracer.report();
+            }
+            return names;
+        }
+
+        return null;
+    }
+
+    /**
+     * Merge the children by picking the parent resources and evaluating the hiding and ordering properties.
+     */
+    private List<Resource> mergeChildren(final ResourceResolver resolver, final String relativePath, final Resource parent) {
+        return this.mergeChildren(resolver, relativePath, parent, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Merge a window of the children. The order of all children is computed, but only the children
+     * within the window are merged.
+     */
+    private List<Resource> mergeChildren(final ResourceResolver resolver, final String relativePath, final Resource parent,
+            final int offset, final int limit) {
+        final ObservingTracer tracer = this.observe(relativePath);
+        final List<ResourceHolder> holders = this.orderChildren(resolver, relativePath, parent, tracer);
+        final long start = tracer == null ? 0 : System.nanoTime();
+        final List<Resource> children = new ArrayList<Resource>();
+        int skipped = 0;
+        for (final ResourceHolder holder : holders) {
+            if (children.size() >= limit) {
+                break;
+            }
+            if (skipped < offset) {
+                if (!isHiddenResource(holder)) {
+                    skipped++;
+                }
+                continue;
+            }
+            final Resource mergedResource = this.createMergedResource(resolver,
+                    (relativePath.length() == 0 ? holder.name : relativePath + '/' + holder.name), holder, tracer);
+            if (mergedResource != null) {
+                children.add(mergedResource);
+            }
+        }
+        if (tracer != null) {
+            tracer.timed("create", System.nanoTime() - start);
+            tracer.setChildCount(holders.size());
+            tracer.setMergedCount(children.size());
+            tracer.report();
+        }
+        return children;
+    }
+
+    /**
+     * Check whether the merged resource for the holder is hidden by {@code sling:hideResource}.
+     * This is the case if the resource of the top most layer hides itself.
+     */
+    private static boolean isHiddenResource(final ResourceHolder holder) {
+        final Resource top = holder.resources.get(holder.resources.size() - 1);
+        return top.getValueMap().get(MergedResourceConstants.PN_HIDE_RESOURCE, Boolean.FALSE);
+    }
+
+    /**
+     * Compute the holders of the children in their order by picking the parent resources
+     * and evaluating the hiding and ordering properties.
+     */
+    private List<ResourceHolder> orderChildren(final ResourceResolver resolver, final String relativePath, final Resource parent,
+            final MergeTracer tracer) {
+        // the holders from which the children are being constructed
+        final ChildOrdering<ResourceHolder> candidates = new ChildOrdering<>();
+
+        long start = tracer == null ? 0 : System.nanoTime();
+        final Iterator<Resource> resources = this.pickResources(resolver, relativePath, parent).iterator();
+        if (tracer != null) {
+            tracer.timed("pick", System.nanoTime() - start);
+            start = System.nanoTime();
+        }
+        long hideNanos = 0;
+
+        // start with the base resource
+        boolean isUnderlying = true;
+        while (resources.hasNext()) {
+            Resource parentResource = resources.next();
+            if (tracer != null) {
+                tracer.picked(parentResource.getPath(), !ResourceUtil.isNonExistingResource(parentResource));
+            }
+            final ResourceHidingHandler handler = !isUnderlying ? new ResourceHidingHandler(parentResource, this.traverseHierarchie) : null;
+            isUnderlying = false;
+
+            candidates.startLayer();
+            // remove the hidden child resources from the underlying resource
+            if (handler != null) {
+                final long hideStart = tracer == null ? 0 : System.nanoTime();
+                final String layerPath = parentResource.getPath();
+                candidates.removeIf(name -> handler.isHidden(name, false) && traceHidden(tracer, name, layerPath, handler, false));
+                if (tracer != null) {
+                    hideNanos += System.nanoTime() - hideStart;
+                }
+            }
+
+            // get children of current resource (might be overlaid resource)
+            for (final Resource child : parentResource.getChildren()) {
+                final String rsrcName = child.getName();
+                // check if this an overlaid resource (i.e. has the resource with the same name already be exposed through the underlying resource)
+                ResourceHolder holder = candidates.get(rsrcName);
+                // for new resources, i.e. no underlying resource found...
+                if (holder == null) {
+                    // remove the hidden child resources from the local resource
+                    if (handler != null) {
+                        final long hideStart = tracer == null ? 0 : System.nanoTime();
+                        final boolean hidden = handler.isHidden(rsrcName, true);
+                        if (tracer != null) {
+                            hideNanos += System.nanoTime() - hideStart;
+                        }
+                        if (hidden) {
+                            traceHidden(tracer, rsrcName, parentResource.getPath(), handler, true);
+                            continue; // skip this child
+                        }
+                    }
+                    holder = new ResourceHolder(rsrcName);
+                    candidates.add(rsrcName, holder);
+                }
+                // in all cases the holder should get the current child!
+                holder.resources.add(child);
+
+                // reorder because of explicit reordering property or because overlaid resource has a different order
+                final String orderBefore = child.getValueMap().get(MergedResourceConstants.PN_ORDER_BEFORE, String.class);
+                if (candidates.order(rsrcName, orderBefore) && tracer != null) {
+                    final boolean before = orderBefore != null && !orderBefore.equals(rsrcName) && candidates.get(orderBefore) != null;
+                    tracer.moved(rsrcName, child.getPath(), before ? orderBefore : null);
+                }
+            }
+        }
+        if (tracer != null) {
+            tracer.timed("hide", hideNanos);
+            tracer.timed("order", System.nanoTime() - start - hideNanos);
+        }
+        return candidates.values();
+    }
+
+    /**
+     * Set the observers which are informed about every merge.
+     * @param observers The observers, might be empty
+     */
+    void setObservers(final MergeObserver[] observers) {
+        this.observers = observers;
+    }
+
+    /**
+     * @return A tracer collecting the data for the observers or {@code null} if there is no observer
+     */
+    private ObservingTracer observe(final String relativePath) {
+        final MergeObserver[] current = this.observers;
+        return current.length == 0 ? null : new ObservingTracer(current, this.mergeRootPath, relativePath);
+    }
+
+    /**
+     * Pass a hidden child to the tracer.
+     * @return always {@code true}
+     */
+    private static boolean traceHidden(final MergeTracer tracer, final String name, final String layerPath,
+            final ResourceHidingHandler handler, final boolean isLocalResource) {
+        if (tracer != null) {
+            tracer.hidden(name, layerPath, handler.getHidingProperty(name, isLocalResource));
+        }
+        return true;
+    }
+
+    /**
+     * Explain how the merged resource at the path and its children are built. The resource
+     * is merged without using the snapshot or the results of concurrent merges.
+     * @param resolver The resource resolver
+     * @param path The path of the merged resource
+     * @return The explanation or {@code null} if the path is not below the merge root
+     */
+    MergeExplanation explain(final ResourceResolver resolver, final String path) {
+        final String relativePath = getRelativePath(path);
+        if (relativePath == null) {
+            return null;
+        }
+        final MergeExplanation explanation = new MergeExplanation(path);
+        final Resource rsrc = this.mergeResource(resolver, path, relativePath, null, explanation);
+        if (rsrc instanceof MergedResource) {
+            final MergedResource merged = (MergedResource) rsrc;
+            final List<String> layerPaths = new ArrayList<>();
+            final List<ValueMap> valueMaps = new ArrayList<>();
+            for (final Resource layer : merged.getMergedResources()) {
+                layerPaths.add(layer.getPath());
+                valueMaps.add(layer.getValueMap());
+            }
+            explanation.setMergedLayers(layerPaths);
+
+            // replay the merge of the properties to get the hidden properties
+            explanation.setScope(MergeExplanation.SCOPE_PROPERTIES);
+            long start = System.nanoTime();
+            MergedValueMap.merge(valueMaps, explanation);
+            explanation.timed("merge", System.nanoTime() - start);
+
+            explanation.setScope(MergeExplanation.SCOPE_CHILDREN);
+            final List<String> names = new ArrayList<>();
+            final List<ResourceHolder> holders = this.orderChildren(resolver, relativePath, rsrc, explanation);
+            start = System.nanoTime();
+            for (final ResourceHolder holder : holders) {
+                final String childPath = relativePath.length() == 0 ? holder.name : relativePath + '/' + holder.name;
+                if (this.createMergedResource(resolver, childPath, holder, explanation) != null) {
+                    names.add(holder.name);
+                }
+            }
+            explanation.timed("create", System.nanoTime() - start);
+            explanation.setChildren(names);
+        }
+        return explanation;
     }
 
 }
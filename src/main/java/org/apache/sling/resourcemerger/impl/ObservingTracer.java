@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import org.apache.sling.resourcemerger.spi.MergeObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the counts and durations of a single merge and reports them
+ * to the {@link MergeObserver}s once the merge is done.
+ */
+final class ObservingTracer implements MergeTracer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ObservingTracer.class);
+
+    private final MergeObserver[] observers;
+
+    private final String mergeRoot;
+
+    private final String relativePath;
+
+    private int pickedCount;
+
+    private int hiddenCount;
+
+    private int movedCount;
+
+    private int childCount = -1;
+
+    private int mergedCount;
+
+    private long pickNanos;
+
+    private long hideNanos;
+
+    private long orderNanos;
+
+    private long createNanos;
+
+    ObservingTracer(final MergeObserver[] observers, final String mergeRoot, final String relativePath) {
+        this.observers = observers;
+        this.mergeRoot = mergeRoot;
+        this.relativePath = relativePath;
+    }
+
+    @Override
+    public void picked(final String path, final boolean exists) {
+        this.pickedCount++;
+    }
+
+    @Override
+    public void hidden(final String name, final String layerPath, final String rule) {
+        this.hiddenCount++;
+    }
+
+    @Override
+    public void moved(final String name, final String layerPath, final String orderBefore) {
+        this.movedCount++;
+    }
+
+    @Override
+    public void propertyHidden(final String name, final int layerIndex, final boolean local) {
+        // hidden properties are not observed
+    }
+
+    @Override
+    public void timed(final String phase, final long nanos) {
+        switch (phase) {
+            case "pick":
+                this.pickNanos += nanos;
+                break;
+            case "hide":
+                this.hideNanos += nanos;
+                break;
+            case "order":
+                this.orderNanos += nanos;
+                break;
+            default:
+                this.createNanos += nanos;
+        }
+    }
+
+    /**
+     * @param count The number of ordered children
+     */
+    void setChildCount(final int count) {
+        this.childCount = count;
+    }
+
+    /**
+     * @param count The number of created merged resources
+     */
+    void setMergedCount(final int count) {
+        this.mergedCount = count;
+    }
+
+    /**
+     * Report the collected data to the observers.
+     */
+    void report() {
+        for (final MergeObserver observer : this.observers) {
+            try {
+                observer.picked(this.mergeRoot, this.relativePath, this.pickedCount, this.pickNanos);
+                observer.hidden(this.mergeRoot, this.relativePath, this.hiddenCount, this.hideNanos);
+                if (this.childCount != -1) {
+                    observer.ordered(this.mergeRoot, this.relativePath, this.childCount, this.movedCount, this.orderNanos);
+                }
+                observer.merged(this.mergeRoot, this.relativePath, this.mergedCount, this.createNanos);
+            } catch (final RuntimeException re) {
+                LOGGER.warn("Merge observer " + observer + " failed", re);
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl.picker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.resourcemerger.spi.MergedResourcePicker2;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+/**
+ * The <code>ResourceTypeAndSearchPathBasedResourcePicker</code> combines the override and the overlay approach
+ * in a single pass. The relative path is resolved against the search paths like by the
+ * {@link SearchPathBasedResourcePicker}, and the resource type hierarchy is followed like by the
+ * {@link ResourceTypeHierarchyBasedResourcePicker}, but each step of the hierarchy is itself overlaid:
+ * the super type is taken from the top most search path defining it. The picked resources are the
+ * hierarchy steps, starting with the top most super type, each with one resource per search path,
+ * starting with the last search path. Each path is looked up once per pick, so the lookups are shared
+ * between the search paths and the hierarchy steps, and the provider evaluates the hiding for all
+ * picked resources in one pass.
+ */
+@Component(name="org.apache.sling.resourcemerger.picker.combined", configurationPolicy = ConfigurationPolicy.REQUIRE,
+    property = { MergedResourcePicker2.TRAVERSE_PARENT + ":Boolean=true"})
+@Designate(ocd=ResourceTypeAndSearchPathBasedResourcePicker.Configuration.class)
+public class ResourceTypeAndSearchPathBasedResourcePicker implements MergedResourcePicker2 {
+
+    public static final String DEFAULT_ROOT = "/mnt/merged";
+
+    @ObjectClassDefinition(
+            id = "org.apache.sling.resourcemerger.picker.combined",
+            name = "Apache Sling Resource Merger - Resource Type Hierarchy And Search Path Based Resource Picker",
+            description = "This resource picker delivers merged resources based on the resource type hierarchy and the search paths (override and overlay approach).")
+    @interface Configuration {
+        @AttributeDefinition(name = "Root", description = "The mount point of merged resources.")
+        String merge_root() default ResourceTypeAndSearchPathBasedResourcePicker.DEFAULT_ROOT;
+        @AttributeDefinition(name = "Read Only", description = "Specifies if the resources are read-only or can be modified.")
+        boolean merge_readOnly() default true;
+        @AttributeDefinition(name = "Snapshot File", description = "Optional file in which a snapshot of the merged resources is kept to speed up restarts. "
+                + "Relative paths are resolved against the bundle data area. Only used for read-only merged resources.")
+        String merge_snapshotFile() default "";
+        @AttributeDefinition(name = "Warm-up", description = "Merged subtrees which are merged after activation to warm up caches. "
+                + "Each entry has the form 'path:depth' with the path being relative to the mount point.")
+        String[] merge_warmup() default {};
+        @AttributeDefinition(name = "Materialize Path", description = "Optional repository path into which the merged resources are written "
+                + "to serve reads with a single lookup. Only used for read-only merged resources.")
+        String merge_materializePath() default "";
+        @AttributeDefinition(name = "Frozen", description = "Whether the merged resources are computed once and kept until they are refreshed, "
+                + "for deployments with immutable resources. Only used for read-only merged resources.")
+        boolean merge_frozen() default false;
+    }
+
+    @Override
+    public List<Resource> pickResources(final ResourceResolver resolver, final String relativePath, final Resource relatedResource) {
+        final Lookup lookup = new Lookup(resolver);
+        final List<List<Resource>> steps = new ArrayList<>();
+        // each hierarchy step is only picked once to avoid inheritance loops
+        final Set<String> picked = new HashSet<>();
+
+        String currentPath = relativePath;
+        while (currentPath != null && picked.add(currentPath)) {
+            final List<Resource> step = new ArrayList<>(lookup.searchPaths.length);
+            for (int i = lookup.searchPaths.length - 1; i >= 0; i--) {
+                final String fullPath = lookup.searchPaths[i] + currentPath;
+                final Resource resource = lookup.get(fullPath);
+                step.add(resource != null ? resource : new NonExistingResource(resolver, fullPath));
+            }
+            steps.add(step);
+            currentPath = getSuperTypePath(lookup, currentPath);
+        }
+
+        final List<Resource> resources = new ArrayList<>();
+        for (int i = steps.size() - 1; i >= 0; i--) {
+            resources.addAll(steps.get(i));
+        }
+        return resources;
+    }
+
+    /**
+     * Find the inheritance root of the path, which is the path itself or the closest ancestor
+     * having a super type in one of the search paths, and apply the super type.
+     * @return The path of the next hierarchy step relative to the search paths or {@code null}
+     */
+    private static String getSuperTypePath(final Lookup lookup, final String path) {
+        String rootPath = path;
+        final StringBuilder pathRelativeToInheritanceRoot = new StringBuilder();
+        while (!rootPath.isEmpty()) {
+            final String superType = lookup.getSuperType(rootPath);
+            if (superType != null) {
+                final String superTypePath = lookup.toRelativePath(superType);
+                return superTypePath == null ? null : superTypePath + pathRelativeToInheritanceRoot;
+            }
+            final int pos = rootPath.lastIndexOf('/');
+            pathRelativeToInheritanceRoot.insert(0, rootPath.substring(pos + 1)).insert(0, '/');
+            rootPath = pos == -1 ? "" : rootPath.substring(0, pos);
+        }
+        return null;
+    }
+
+    @Activate
+    @Modified
+    protected void activate(final Configuration config) {
+        // Added an empty activate method to populate the component properties
+        // from the component property types methods with defaults
+        // See - SLING-11773
+    }
+
+    /**
+     * Looks up each path at most once during a single pick.
+     */
+    private static final class Lookup {
+
+        private final ResourceResolver resolver;
+
+        private final String[] searchPaths;
+
+        private final Map<String, Resource> resources = new HashMap<>();
+
+        Lookup(final ResourceResolver resolver) {
+            this.resolver = resolver;
+            this.searchPaths = resolver.getSearchPath().clone();
+            for (int i = 0; i < this.searchPaths.length; i++) {
+                if (!this.searchPaths[i].endsWith("/")) {
+                    this.searchPaths[i] = this.searchPaths[i].concat("/");
+                }
+            }
+        }
+
+        Resource get(final String path) {
+            if (this.resources.containsKey(path)) {
+                return this.resources.get(path);
+            }
+            final Resource resource = this.resolver.getResource(path);
+            this.resources.put(path, resource);
+            return resource;
+        }
+
+        /**
+         * @return The super type defined by the top most search path for the relative path or {@code null}
+         */
+        String getSuperType(final String relativePath) {
+            for (final String searchPath : this.searchPaths) {
+                final Resource resource = this.get(searchPath + relativePath);
+                final String superType = resource == null ? null : resource.getResourceSuperType();
+                if (superType != null) {
+                    return superType;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return The resource type relative to the search paths or {@code null} if it is absolute
+         *         and outside of the search paths
+         */
+        String toRelativePath(final String resourceType) {
+            if (!resourceType.startsWith("/")) {
+                return resourceType;
+            }
+            for (final String searchPath : this.searchPaths) {
+                if (resourceType.startsWith(searchPath)) {
+                    return resourceType.substring(searchPath.length());
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -31,6 +31,7 @@ import org.apache.sling.resourcemerger.spi.MergedResourcePicker2;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
@@ -51,6 +52,18 @@ public class ResourceTypeHierarchyBasedResourcePicker implements MergedResourceP
         String merge_root() default ResourceTypeHierarchyBasedResourcePicker.DEFAULT_ROOT;
         @AttributeDefinition(name = "Read Only", description = "Specifies if the resources are read-only or can be modified.")
         boolean merge_readOnly() default true;
+        @AttributeDefinition(name = "Snapshot File", description = "Optional file in which a snapshot of the merged resources is kept to speed up restarts. "
+                + "Relative paths are resolved against the bundle data area. Only used for read-only merged resources.")
+        String merge_snapshotFile() default "";
+        @AttributeDefinition(name = "Warm-up", description = "Merged subtrees which are merged after activation to warm up caches. "
+                + "Each entry has the form 'path:depth' with the path being relative to the mount point.")
+        String[] merge_warmup() default {};
+        @AttributeDefinition(name = "Materialize Path", description = "Optional repository path into which the merged resources are written "
+                + "to serve reads with a single lookup. Only used for read-only merged resources.")
+        String merge_materializePath() default "";
+        @AttributeDefinition(name = "Frozen", description = "Whether the merged resources are computed once and kept until they are refreshed, "
+                + "for deployments with immutable resources. Only used for read-only merged resources.")
+        boolean merge_frozen() default false;
     }
 
     public List<Resource> pickResources(ResourceResolver resolver, String relativePath, Resource relatedResource) {
@@ -101,6 +114,7 @@ public class ResourceTypeHierarchyBasedResourcePicker implements MergedResourceP
     }
 
     @Activate
+    @Modified
     protected void activate(final Configuration config) {
         // Added an empty activate method to populate the component properties
         // from the component property types methods with defaults
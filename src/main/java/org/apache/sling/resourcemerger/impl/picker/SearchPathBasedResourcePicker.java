@@ -28,18 +28,21 @@ import org.apache.sling.resourcemerger.api.ResourceMergerService;
 import org.apache.sling.resourcemerger.impl.MergedResource;
 import org.apache.sling.resourcemerger.impl.MergedResourceConstants;
 import org.apache.sling.resourcemerger.spi.MergedResourcePicker2;
+import org.apache.sling.resourcemerger.spi.MergedResourcePicker3;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 
-@Component(name="org.apache.sling.resourcemerger.impl.MergedResourceProviderFactory")
+@Component(name="org.apache.sling.resourcemerger.impl.MergedResourceProviderFactory",
+    property = { MergedResourcePicker2.DETERMINISTIC + ":Boolean=true"})
 @Designate(ocd=SearchPathBasedResourcePicker.Configuration.class)
 /**
  * The <code>SearchPathBasedResourcePicker</code> delivers merged resources based on the resource resolver's search path.
  */
-public class SearchPathBasedResourcePicker implements MergedResourcePicker2, ResourceMergerService {
+public class SearchPathBasedResourcePicker implements MergedResourcePicker2, MergedResourcePicker3, ResourceMergerService {
 
     public static final String DEFAULT_ROOT = "/mnt/overlay";
 
@@ -52,6 +55,18 @@ public class SearchPathBasedResourcePicker implements MergedResourcePicker2, Res
         String merge_root() default SearchPathBasedResourcePicker.DEFAULT_ROOT;
         @AttributeDefinition(name = "Read Only", description = "Specifies if the resources are read-only or can be modified.")
         boolean merge_readOnly() default true;
+        @AttributeDefinition(name = "Snapshot File", description = "Optional file in which a snapshot of the merged resources is kept to speed up restarts. "
+                + "Relative paths are resolved against the bundle data area. Only used for read-only merged resources.")
+        String merge_snapshotFile() default "";
+        @AttributeDefinition(name = "Warm-up", description = "Merged subtrees which are merged after activation to warm up caches. "
+                + "Each entry has the form 'path:depth' with the path being relative to the mount point.")
+        String[] merge_warmup() default {};
+        @AttributeDefinition(name = "Materialize Path", description = "Optional repository path into which the merged resources are written "
+                + "to serve reads with a single lookup. Only used for read-only merged resources.")
+        String merge_materializePath() default "";
+        @AttributeDefinition(name = "Frozen", description = "Whether the merged resources are computed once and kept until they are refreshed, "
+                + "for deployments with immutable resources. Only used for read-only merged resources.")
+        boolean merge_frozen() default false;
     }
 
     private String mergeRootPath;
@@ -59,62 +74,80 @@ public class SearchPathBasedResourcePicker implements MergedResourcePicker2, Res
     @Override
     public List<Resource> pickResources(final ResourceResolver resolver, final String relativePath,
                                         final Resource relatedResource) {
+        final List<Resource> resources = new ArrayList<>();
+        this.pickLayers(resolver, relativePath, relatedResource, new LayerCollector() {
+
+            @Override
+            public void layer(final Resource resource) {
+                resources.add(resource);
+            }
+
+            @Override
+            public void layer(final String path, final boolean exists) {
+                resources.add(new NonExistingResource(resolver, path));
+            }
+        });
+        return resources;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Missing layers are passed by path.
+     */
+    @Override
+    public void pickLayers(final ResourceResolver resolver, final String relativePath, final Resource relatedResource,
+                           final LayerCollector collector) {
         List<Resource> relatedMappedResources = null;
         if (relatedResource instanceof MergedResource) {
             relatedMappedResources = ((MergedResource) relatedResource).getMergedResources();
 
             // Check if the path is the same
             if (relatedResource.getPath().equals(mergeRootPath + '/' + relativePath)) {
-                return relatedMappedResources;
+                for (final Resource resource : relatedMappedResources) {
+                    collector.layer(resource);
+                }
+                return;
             }
         }
 
-        final List<Resource> resources = new ArrayList<>();
         final String[] searchPaths = resolver.getSearchPath();
+        int baseIndex = 0;
         for (int i = searchPaths.length - 1; i >= 0; i--) {
             final String basePath = searchPaths[i];
             final String fullPath = basePath + relativePath;
 
-            int baseIndex = resources.size();
             Resource baseResource = null;
             if (relatedMappedResources != null && relatedMappedResources.size() > baseIndex) {
                 baseResource = relatedMappedResources.get(baseIndex);
             }
-
-            Resource resource = (baseResource != null) ? getFromBaseResource(resolver, baseResource, fullPath) : null;
-            if (resource == null) {
-                resource = resolver.getResource(fullPath);
-                if (resource == null) {
-                    resource = new NonExistingResource(resolver, fullPath);
+            baseIndex++;
+
+            Resource resource = null;
+            boolean resolved = false;
+            if (baseResource != null) {
+                final String baseResourcePath = baseResource.getPath();
+                // Check if the path is a child of the base resource
+                if (fullPath.length() > baseResourcePath.length() + 1 && fullPath.startsWith(baseResourcePath)
+                        && fullPath.charAt(baseResourcePath.length()) == '/') {
+                    resource = baseResource.getChild(fullPath.substring(baseResourcePath.length() + 1));
+                    resolved = true;
                 }
+                // Check if the path is a direct parent of the base resource
+                else if (baseResourcePath.startsWith(fullPath) && baseResourcePath.lastIndexOf('/') == fullPath.length()) {
+                    resource = baseResource.getParent();
+                    resolved = true;
+                }
+                // The two resources are not related enough, retrieval cannot be optimised
+            }
+            if (!resolved) {
+                resource = resolver.getResource(fullPath);
+            }
+            if (resource != null) {
+                collector.layer(resource);
+            } else {
+                collector.layer(fullPath, false);
             }
-            resources.add(resource);
-        }
-        return resources;
-    }
-
-    /**
-     * @return <code>null</code> if it did not try to resolve the resource. {@link NonExistingResource} if it could not
-     * find the resource.
-     */
-    private Resource getFromBaseResource(final ResourceResolver resolver, final Resource baseResource,
-                                         final String path) {
-        final Resource resource;
-        final String baseResourcePath = baseResource.getPath();
-        // Check if the path is a child of the base resource
-        if (path.startsWith(baseResourcePath + '/')) {
-            String relPath = path.substring(baseResourcePath.length() + 1);
-            resource = baseResource.getChild(relPath);
-        }
-        // Check if the path is a direct parent of the base resource
-        else if (baseResourcePath.startsWith(path) && baseResourcePath.lastIndexOf('/') == path.length()) {
-            resource = baseResource.getParent();
-        }
-        // The two resources are not related enough, retrieval cannot be optimised
-        else {
-            return null;
         }
-        return (resource != null) ? resource : new NonExistingResource(resolver, path);
     }
 
     /**
@@ -178,6 +211,7 @@ public class SearchPathBasedResourcePicker implements MergedResourcePicker2, Res
     }
 
     @Activate
+    @Modified
     protected void configure(final Configuration configuration) {
         mergeRootPath = configuration.merge_root();
     }
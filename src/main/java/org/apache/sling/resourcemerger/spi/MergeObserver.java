@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.spi;
+
+import org.jetbrains.annotations.NotNull;
+import org.osgi.annotation.versioning.ConsumerType;
+
+/**
+ * Service interface which can be implemented to observe the merging of resources, for
+ * example to collect metrics. All registered observers are called by every merging
+ * resource provider with the duration and the number of resources involved in each
+ * phase of a merge. Merges served from a snapshot or from a concurrent merge of the
+ * same resource are not reported.
+ * <p>
+ * The observers are called synchronously while resources are resolved, so they must
+ * return quickly and must not access the resource tree. If no observer is registered,
+ * no data is collected.
+ *
+ * @since 1.3
+ */
+@ConsumerType
+public interface MergeObserver {
+
+    /**
+     * The resources have been picked for a merged resource or for the parent of merged children.
+     * @param mergeRoot the merge root of the provider
+     * @param relativePath the path relative to the merge root
+     * @param resourceCount the number of picked resources, including non existing resources
+     * @param nanos the duration in nanoseconds
+     */
+    default void picked(@NotNull String mergeRoot, @NotNull String relativePath, int resourceCount, long nanos) {
+        // nothing to do
+    }
+
+    /**
+     * The hiding properties have been evaluated.
+     * @param mergeRoot the merge root of the provider
+     * @param relativePath the path relative to the merge root
+     * @param hiddenCount the number of hidden resources
+     * @param nanos the duration in nanoseconds
+     */
+    default void hidden(@NotNull String mergeRoot, @NotNull String relativePath, int hiddenCount, long nanos) {
+        // nothing to do
+    }
+
+    /**
+     * The children of a merged resource have been ordered.
+     * @param mergeRoot the merge root of the provider
+     * @param relativePath the path of the parent relative to the merge root
+     * @param childCount the number of children, including the ones hidden by themselves
+     * @param movedCount the number of children which have been moved
+     * @param nanos the duration in nanoseconds
+     */
+    default void ordered(@NotNull String mergeRoot, @NotNull String relativePath, int childCount, int movedCount, long nanos) {
+        // nothing to do
+    }
+
+    /**
+     * The merged resources have been created.
+     * @param mergeRoot the merge root of the provider
+     * @param relativePath the path of the merged resource or of the parent of the merged children relative to the merge root
+     * @param resourceCount the number of created merged resources
+     * @param nanos the duration in nanoseconds
+     */
+    default void merged(@NotNull String mergeRoot, @NotNull String relativePath, int resourceCount, long nanos) {
+        // nothing to do
+    }
+}
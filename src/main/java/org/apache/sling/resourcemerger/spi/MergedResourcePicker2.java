@@ -59,6 +59,76 @@ public interface MergedResourcePicker2 {
      */
     String TRAVERSE_PARENT = "merge.traverseParent";
 
+    /**
+     * Service property name specifying a file in which a snapshot of the merged
+     * tree is kept to speed up lookups after a restart. Relative paths are resolved
+     * against the data area of the resource merger bundle. The snapshot is only used
+     * for read-only merged resources. A merged resource is only served from the
+     * snapshot once the resources picked with the requesting resource resolver
+     * match those the snapshot was written from. The snapshot is written with the
+     * service user mapped to the subservice {@code reader} of the resource merger
+     * bundle. If not specified, no snapshot is used. The value of this property
+     * must be of type String.
+     * @since 1.3
+     */
+    String SNAPSHOT_FILE = "merge.snapshotFile";
+
+    /**
+     * Service property name listing the merged subtrees which are merged once
+     * after the provider has been registered, to warm up the caches of the
+     * underlying resource providers. Each entry has the form {@code path:depth},
+     * the path being relative to the merge root and the depth specifying how many
+     * levels of children are merged as well. If the depth is omitted, only the
+     * resource itself and its direct children are merged. The subtrees are merged
+     * with the service user mapped to the subservice {@code reader} of the resource
+     * merger bundle. If not specified, no warm-up is done. The value of this property
+     * must be of type String or String[].
+     * @since 1.3
+     */
+    String WARMUP = "merge.warmup";
+
+    /**
+     * Service property name specifying a repository path into which the merged
+     * tree is written, e.g. {@code /var/resourcemerger/overlay}. Once written and
+     * verified against the live merge, merged resources are read from there with a
+     * single lookup. A written resource is only served to a resource resolver whose
+     * picked resources match the ones it was written from, so resolvers which can't read
+     * all picked resources get the live merge. After changes of the picked resources
+     * only the affected subtrees are written again, in the meantime they are merged live.
+     * Readers need read access to the path.
+     * The tree is written with the service user mapped to the subservice
+     * {@code materializer} of the resource merger bundle, which needs write access
+     * to the path. Only used for read-only merged resources. If not specified,
+     * nothing is written.
+     * The value of this property must be of type String.
+     * @since 1.3
+     */
+    String MATERIALIZE_PATH = "merge.materializePath";
+
+    /**
+     * Service property name specifying whether the picked resources are considered
+     * immutable, e.g. in production deployments. If {@code true}, each merge is computed
+     * once and kept for the lifetime of the registration, changes of the picked resources
+     * are not observed. The kept merges are discarded by refreshing the merged resources
+     * through the Resource Merger web console plugin after a deployment.
+     * Only used for read-only merged resources. Default is {@code false}.
+     * The value of this property must be of type Boolean.
+     * @since 1.3
+     */
+    String FROZEN = "merge.frozen";
+
+    /**
+     * Service property name specifying whether the paths of the picked resources only depend
+     * on the relative path and the search paths of the resource resolver, but neither on the
+     * content nor on the user. If {@code true}, the paths are computed once and shared between
+     * all resource resolvers with the same search paths, only the resources are resolved again
+     * for each resolver. Only picks without a related resource are kept, as a picker may derive
+     * the resources from the related resource. Default is {@code false}.
+     * The value of this property must be of type Boolean.
+     * @since 1.3
+     */
+    String DETERMINISTIC = "merge.deterministic";
+
     /**
      * Method invoked by the MergingResourceProvider to identify the resources to be merged for a given
      * relative path. The resources returned may be either resources returned from the ResourceResolver
@@ -67,7 +137,10 @@ public interface MergedResourcePicker2 {
      *
      * @param resolver the ResourceResolver
      * @param relativePath the path relative to the merge root
-     * @param relatedResource an optional resource which is related to the given path (always the parent resource or {@code null})
+     * @param relatedResource an optional resource which is related to the given path or {@code null}: its parent, the
+     *        resource at the path itself (e.g. when looking up its children) or one of its children (when resolving the
+     *        parent of a resource). It might be a merged resource or not, pickers must compare its path to the given path
+     *        before deriving the layers from it
      * @return a List of Resource objects
      */
     @NotNull List<@NotNull Resource> pickResources(@NotNull ResourceResolver resolver, @NotNull String relativePath, Resource relatedResource);
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.spi;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.jetbrains.annotations.NotNull;
+import org.osgi.annotation.versioning.ConsumerType;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Service interface which can be implemented to define an algorithm used to pick
+ * resources to be merged, like {@link MergedResourcePicker2}. Instead of returning a list
+ * of resources including objects for the missing layers, the layers are passed to a
+ * collector, either as resolved resources or as paths together with their existence.
+ * Missing layers do not require a resource object, and layers which are given by path
+ * are only resolved if they are merged.
+ * <p>
+ * The same service properties as for {@link MergedResourcePicker2} are supported, starting
+ * with {@link MergedResourcePicker2#MERGE_ROOT}. A service implementing both interfaces
+ * and registered as {@link MergedResourcePicker2} is used through this interface.
+ *
+ * @since 1.3
+ */
+@ConsumerType
+public interface MergedResourcePicker3 {
+
+    /**
+     * Receives the layers picked for a merged resource, starting with the underlying layer.
+     */
+    @ProviderType
+    interface LayerCollector {
+
+        /**
+         * Add a layer which has already been resolved.
+         * @param resource the resource of the layer, might be a non existing resource
+         */
+        void layer(@NotNull Resource resource);
+
+        /**
+         * Add a layer by its path.
+         * @param path the absolute path of the resource of the layer
+         * @param exists whether the resource exists
+         */
+        void layer(@NotNull String path, boolean exists);
+    }
+
+    /**
+     * Method invoked by the MergingResourceProvider to identify the resources to be merged for a given
+     * relative path. Adding no layer will cause the resource to not exist for consumers.
+     *
+     * @param resolver the ResourceResolver
+     * @param relativePath the path relative to the merge root
+     * @param relatedResource an optional resource which is related to the given path or {@code null}: its parent, the
+     *        resource at the path itself (e.g. when looking up its children) or one of its children (when resolving the
+     *        parent of a resource). It might be a merged resource or not, pickers must compare its path to the given path
+     *        before deriving the layers from it
+     * @param collector the collector receiving the layers
+     */
+    void pickLayers(@NotNull ResourceResolver resolver, @NotNull String relativePath, Resource relatedResource,
+            @NotNull LayerCollector collector);
+}
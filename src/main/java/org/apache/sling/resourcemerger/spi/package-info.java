@@ -20,7 +20,7 @@
 /**
  * Provides a service to merge multiple physical resources into a single one
  */
-@Version("1.2.1")
+@Version("1.3.0")
 package org.apache.sling.resourcemerger.spi;
 
 import org.osgi.annotation.versioning.Version;
@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ChildOrderingTest {
+
+    /** A child of a layer with its optional orderBefore value. */
+    private static final class Child {
+        final String name;
+        final String orderBefore;
+
+        Child(final String name, final String orderBefore) {
+            this.name = name;
+            this.orderBefore = orderBefore;
+        }
+    }
+
+    /** The children of a layer and the names hidden by the layer. */
+    private static final class Layer {
+        final List<Child> children = new ArrayList<>();
+        final Set<String> hiddenUnderlying = new HashSet<>();
+        final Set<String> hiddenLocal = new HashSet<>();
+    }
+
+    private static List<String> order(final List<Layer> layers) {
+        final ChildOrdering<String> candidates = new ChildOrdering<>();
+        boolean isUnderlying = true;
+        for (final Layer layer : layers) {
+            final boolean hiding = !isUnderlying;
+            isUnderlying = false;
+            candidates.startLayer();
+            if (hiding) {
+                candidates.removeIf(layer.hiddenUnderlying::contains);
+            }
+            for (final Child child : layer.children) {
+                if (candidates.get(child.name) == null) {
+                    if (hiding && layer.hiddenLocal.contains(child.name)) {
+                        continue;
+                    }
+                    candidates.add(child.name, child.name);
+                }
+                candidates.order(child.name, child.orderBefore);
+            }
+        }
+        return candidates.values();
+    }
+
+    /**
+     * The ordering as it was implemented in MergingResourceProvider#listChildren
+     * before it was moved to {@link ChildOrdering}.
+     * @return The order or {@code null} if the implementation failed
+     */
+    private static List<String> legacyOrder(final List<Layer> layers) {
+        try {
+            return legacyOrderUnchecked(layers);
+        } catch (final IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static List<String> legacyOrderUnchecked(final List<Layer> layers) {
+        final List<String> candidates = new ArrayList<>();
+        boolean isUnderlying = true;
+        for (final Layer layer : layers) {
+            final boolean hiding = !isUnderlying;
+            isUnderlying = false;
+            if (hiding) {
+                final Iterator<String> iter = candidates.iterator();
+                while (iter.hasNext()) {
+                    if (layer.hiddenUnderlying.contains(iter.next())) {
+                        iter.remove();
+                    }
+                }
+            }
+            int previousChildPositionInCandidateList = -1;
+            for (final Child child : layer.children) {
+                final String rsrcName = child.name;
+                String holder = null;
+                int childPositionInCandidateList = -1;
+                for (int index = 0; index < candidates.size(); index++) {
+                    if (candidates.get(index).equals(rsrcName)) {
+                        holder = candidates.get(index);
+                        childPositionInCandidateList = index;
+                        break;
+                    }
+                }
+                if (holder == null) {
+                    if (hiding && layer.hiddenLocal.contains(rsrcName)) {
+                        continue;
+                    }
+                    holder = rsrcName;
+                    if (previousChildPositionInCandidateList != -1) {
+                        candidates.add(previousChildPositionInCandidateList + 1, holder);
+                        previousChildPositionInCandidateList++;
+                    } else {
+                        candidates.add(holder);
+                        previousChildPositionInCandidateList = candidates.size() - 1;
+                    }
+                }
+                int orderBeforeIndex = -1;
+                final String orderBefore = child.orderBefore;
+                if (orderBefore != null && !orderBefore.equals(rsrcName)) {
+                    int index = 0;
+                    while (index < candidates.size()) {
+                        if (candidates.get(index).equals(orderBefore)) {
+                            orderBeforeIndex = index;
+                            break;
+                        }
+                        index++;
+                    }
+                }
+                if (orderBeforeIndex > -1) {
+                    candidates.add(orderBeforeIndex, holder);
+                    if (childPositionInCandidateList == -1) {
+                        candidates.remove(candidates.size() - 1);
+                    } else {
+                        if (childPositionInCandidateList > orderBeforeIndex) {
+                            childPositionInCandidateList++;
+                        }
+                        candidates.remove(childPositionInCandidateList);
+                    }
+                } else {
+                    if (childPositionInCandidateList != -1 && previousChildPositionInCandidateList != -1) {
+                        candidates.remove(childPositionInCandidateList);
+                        if (childPositionInCandidateList < previousChildPositionInCandidateList) {
+                            previousChildPositionInCandidateList--;
+                        }
+                        if (previousChildPositionInCandidateList + 1 > candidates.size()) {
+                            candidates.add(holder);
+                        } else {
+                            candidates.add(previousChildPositionInCandidateList + 1, holder);
+                        }
+                        previousChildPositionInCandidateList++;
+                    }
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static Layer layer(final String... children) {
+        final Layer layer = new Layer();
+        for (final String child : children) {
+            final int pos = child.indexOf('<');
+            layer.children.add(pos == -1 ? new Child(child, null) : new Child(child.substring(0, pos), child.substring(pos + 1)));
+        }
+        return layer;
+    }
+
+    @Test public void testOrdering() {
+        final Layer apps = layer("c", "x<b", "a");
+        apps.hiddenUnderlying.add("d");
+        final List<Layer> layers = Arrays.asList(layer("a", "b", "c", "d"), apps);
+        // a and b keep their position, c is moved to the end once x has been added
+        assertEquals(Arrays.asList("x", "b", "c", "a"), legacyOrder(layers));
+        assertEquals(legacyOrder(layers), order(layers));
+    }
+
+    @Test public void testKnownChildrenBeforeNewChildKeepPosition() {
+        final List<Layer> layers = Arrays.asList(layer("a", "b", "c"), layer("c", "b", "n", "a"));
+        assertEquals(Arrays.asList("b", "c", "n", "a"), legacyOrder(layers));
+        assertEquals(legacyOrder(layers), order(layers));
+    }
+
+    @Test public void testNewChildAfterMovingLastChild() {
+        // the legacy implementation failed with an IndexOutOfBoundsException for this case
+        final List<Layer> layers = Arrays.asList(layer("a", "b"), layer("x<a", "b", "y"));
+        assertEquals(null, legacyOrder(layers));
+        assertEquals(Arrays.asList("x", "a", "b", "y"), order(layers));
+    }
+
+    @Test public void testRandomizedCorpus() {
+        final Random random = new Random(4711);
+        int compared = 0;
+        for (int run = 0; run < 5000; run++) {
+            final int names = 1 + random.nextInt(12);
+            final List<Layer> layers = new ArrayList<>();
+            final int layerCount = 1 + random.nextInt(4);
+            for (int l = 0; l < layerCount; l++) {
+                final Layer layer = new Layer();
+                final Set<String> childNames = new LinkedHashSet<>();
+                final int childCount = random.nextInt(names + 1);
+                for (int c = 0; c < childCount; c++) {
+                    childNames.add("n" + random.nextInt(names));
+                }
+                for (final String name : childNames) {
+                    final String orderBefore = random.nextInt(4) == 0 ? "n" + random.nextInt(names) : null;
+                    layer.children.add(new Child(name, orderBefore));
+                }
+                for (int i = 0; i < names; i++) {
+                    if (random.nextInt(8) == 0) {
+                        layer.hiddenUnderlying.add("n" + i);
+                    }
+                    if (random.nextInt(8) == 0) {
+                        layer.hiddenLocal.add("n" + i);
+                    }
+                }
+                layers.add(layer);
+            }
+            final List<String> expected = legacyOrder(layers);
+            if (expected != null) {
+                assertEquals("Run " + run, expected, order(layers));
+                compared++;
+            }
+        }
+        assertTrue(compared > 4500);
+    }
+}
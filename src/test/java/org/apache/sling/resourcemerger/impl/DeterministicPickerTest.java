@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.resourcemerger.impl.SearchPathFixture.CountingPicker;
+import org.apache.sling.resourcemerger.impl.picker.SearchPathBasedResourcePicker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class DeterministicPickerTest {
+
+    private SearchPathFixture fixture;
+
+    @Before public void setup() throws Exception {
+        this.fixture = new SearchPathFixture();
+    }
+
+    @After public void teardown() {
+        this.fixture.close();
+    }
+
+    @Test public void testDeterministicPicker() throws Exception {
+        final CountingPicker counting = this.fixture.countingPicker();
+        final MergingResourceProvider deterministicProvider = SearchPathFixture.readOnlyProvider(counting);
+        deterministicProvider.setDeterministic(true);
+        final MergingResourceProvider liveProvider = SearchPathFixture.readOnlyProvider(new SearchPathBasedResourcePicker());
+
+        // the picked paths are shared between resolvers, the resources are resolved by each resolver
+        final ResourceResolver otherResolver = this.fixture.newResolver();
+        for (final String path : new String[] {"/merged/a/1", "/merged/a/Y", "/merged/b/c", "/merged/missing"}) {
+            final Resource expected = liveProvider.getResource(this.fixture.resolver, path, null);
+            for (final ResourceResolver resolver : new ResourceResolver[] {this.fixture.resolver, otherResolver}) {
+                final Resource rsrc = deterministicProvider.getResource(resolver, path, null);
+                if (expected == null) {
+                    assertNull(path, rsrc);
+                } else {
+                    assertSame(resolver, rsrc.getResourceResolver());
+                    assertArrayEquals(path, (String[]) expected.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES),
+                            (String[]) rsrc.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES));
+                    assertEquals(path, new HashMap<>(expected.getValueMap()), new HashMap<>(rsrc.getValueMap()));
+                }
+            }
+        }
+        assertEquals(4, counting.picks.get());
+
+        // the picks depend on the search paths
+        final ResourceResolver libsOnly = Mockito.spy(otherResolver);
+        Mockito.doReturn(new String[] {"/libs/"}).when(libsOnly).getSearchPath();
+        assertEquals(Arrays.asList("/libs/a/1"), Arrays.asList((String[]) deterministicProvider.getResource(libsOnly, "/merged/a/1", null)
+                .getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES)));
+        assertEquals(5, counting.picks.get());
+
+        // picks for the children of a merged resource reuse its layers and are not kept
+        final Resource a = deterministicProvider.getResource(this.fixture.resolver, "/merged/a", null);
+        assertEquals(SearchPathFixture.names(liveProvider.listChildren(liveProvider.getResource(this.fixture.resolver, "/merged/a", null))),
+                SearchPathFixture.names(deterministicProvider.listChildren(a)));
+        deterministicProvider.listChildren(a);
+        assertEquals(8, counting.picks.get());
+
+        // a new picker discards the kept picks
+        deterministicProvider.reconfigure(counting, false);
+        assertTrue(deterministicProvider.isDeterministic());
+        deterministicProvider.getResource(this.fixture.resolver, "/merged/a/1", null);
+        assertEquals(9, counting.picks.get());
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.resourcemerger.api.ResourceMergerUtil;
+import org.apache.sling.resourcemerger.impl.SearchPathFixture.CountingPicker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrozenMergeTest {
+
+    private SearchPathFixture fixture;
+
+    @Before public void setup() throws Exception {
+        this.fixture = new SearchPathFixture();
+    }
+
+    @After public void teardown() {
+        this.fixture.close();
+    }
+
+    @Test public void testFrozen() throws Exception {
+        final ResourceResolver resolver = this.fixture.resolver;
+        final CountingPicker picker = this.fixture.countingPicker();
+        final MergingResourceProvider frozen = SearchPathFixture.readOnlyProvider(picker);
+        frozen.setFrozen(true);
+        assertTrue(frozen.isFrozen());
+
+        final Resource rsrc = frozen.getResource(resolver, "/merged/a/1", null);
+        final List<String> children = SearchPathFixture.names(frozen.listChildren(frozen.getResource(resolver, "/merged/a", null)));
+        assertNull(frozen.getResource(resolver, "/merged/a/missing", null));
+        final int picked = picker.picks.get();
+
+        // merges are kept, the properties are shared
+        final MergedResource kept = (MergedResource) frozen.getResource(resolver, "/merged/a/1", null);
+        assertSame(((MergedResource) rsrc).getMergedProperties(), kept.getMergedProperties());
+        assertEquals(children, SearchPathFixture.names(frozen.listChildren(frozen.getResource(resolver, "/merged/a", null))));
+        assertEquals(children.subList(1, 3), SearchPathFixture.names(
+                frozen.listChildren(frozen.getResource(resolver, "/merged/a", null), 1, 2).iterator()));
+        assertNull(frozen.getResource(resolver, "/merged/a/missing", null));
+        assertEquals(picked, picker.picks.get());
+
+        // changes are only seen after a refresh
+        resolver.getResource("/apps/a/1").adaptTo(ModifiableValueMap.class).put("a", "changed");
+        resolver.create(resolver.getResource("/libs/a"), "missing", null);
+        resolver.commit();
+        assertEquals("1", frozen.getResource(resolver, "/merged/a/1", null).getValueMap().get("a"));
+        assertNull(frozen.getResource(resolver, "/merged/a/missing", null));
+
+        frozen.refresh();
+        assertEquals("changed", frozen.getResource(resolver, "/merged/a/1", null).getValueMap().get("a"));
+        assertNotNull(frozen.getResource(resolver, "/merged/a/missing", null));
+        assertTrue(SearchPathFixture.names(frozen.listChildren(frozen.getResource(resolver, "/merged/a", null))).contains("missing"));
+        assertTrue(picker.picks.get() > picked);
+
+        // only read-only providers can be frozen
+        this.fixture.provider.setFrozen(true);
+        assertFalse(this.fixture.provider.isFrozen());
+    }
+
+    /**
+     * Create a frozen provider and its merged resource at /merged/a.
+     */
+    private Resource getFrozen(final CountingPicker picker) {
+        final MergingResourceProvider frozen = SearchPathFixture.readOnlyProvider(picker);
+        frozen.setFrozen(true);
+        return frozen.getResource(this.fixture.resolver, "/merged/a", null);
+    }
+
+    /**
+     * Change the layers in a way the frozen provider does not see until it is refreshed.
+     */
+    private void changeLayers() throws Exception {
+        this.fixture.resolver.getResource("/apps/a/1").adaptTo(ModifiableValueMap.class).put("a", "changed");
+        this.fixture.resolver.create(this.fixture.resolver.getResource("/libs/a"), "missing", null);
+        this.fixture.resolver.getResource("/apps/b/c/d/e").adaptTo(ModifiableValueMap.class).put(MergedResourceConstants.PN_HIDE_CHILDREN, "f");
+        this.fixture.resolver.commit();
+    }
+
+    @Test public void testFrozenChild() throws Exception {
+        final CountingPicker picker = this.fixture.countingPicker();
+        final Resource a = getFrozen(picker);
+        assertEquals("1", a.getChild("1").getValueMap().get("a"));
+        assertNull(a.getChild("missing"));
+        assertNull(a.getChild("Z"));
+        final int picked = picker.picks.get();
+
+        changeLayers();
+        final Resource child = a.getChild("1");
+        assertSame(a, child.getParent());
+        assertEquals("1", child.getValueMap().get("a"));
+        assertNull(a.getChild("missing"));
+        assertNull(a.getChild("Z"));
+        assertEquals(picked, picker.picks.get());
+    }
+
+    @Test public void testFrozenHasChildren() throws Exception {
+        final CountingPicker picker = this.fixture.countingPicker();
+        final Resource a = getFrozen(picker);
+        final MergingResourceProvider frozen = ((MergedResource) a).getProvider();
+        final Resource e = frozen.getResource(this.fixture.resolver, "/merged/b/c/d/e", null);
+        assertTrue(a.hasChildren());
+        assertTrue(e.hasChildren());
+        final int picked = picker.picks.get();
+
+        changeLayers();
+        assertTrue(a.hasChildren());
+        assertTrue(e.hasChildren());
+        assertEquals(picked, picker.picks.get());
+
+        frozen.refresh();
+        assertFalse(frozen.getResource(this.fixture.resolver, "/merged/b/c/d/e", null).hasChildren());
+    }
+
+    @Test public void testFrozenProperty() throws Exception {
+        final CountingPicker picker = this.fixture.countingPicker();
+        final Resource a = getFrozen(picker);
+        assertEquals("1", a.getValueMap().get("1/a"));
+        assertEquals("x", a.getValueMap().get("4/b"));
+        assertNull(a.getValueMap().get("missing/a"));
+        final int picked = picker.picks.get();
+
+        changeLayers();
+        assertEquals("1", a.getValueMap().get("1/a"));
+        assertEquals("x", a.getValueMap().get("4/b"));
+        assertNull(a.getValueMap().get("4/a"));
+        assertNull(a.getValueMap().get("missing/a"));
+        assertEquals(picked, picker.picks.get());
+    }
+
+    @Test public void testFrozenChildNames() throws Exception {
+        final CountingPicker picker = this.fixture.countingPicker();
+        final Resource a = getFrozen(picker);
+        final List<String> names = ResourceMergerUtil.getChildNames(a);
+        assertEquals(Arrays.asList("1", "2", "3", "4", "Y", "X"), names);
+        final int picked = picker.picks.get();
+
+        changeLayers();
+        assertEquals(names, ResourceMergerUtil.getChildNames(a));
+        assertEquals(names.size(), ResourceMergerUtil.getChildCount(a));
+        assertEquals(picked, picker.picks.get());
+    }
+
+    @Test public void testRefreshDuringFrozenMerge() throws Exception {
+        final CountingPicker picker = this.fixture.blockingPicker(2);
+        final MergingResourceProvider frozen = SearchPathFixture.readOnlyProvider(picker);
+        frozen.setFrozen(true);
+        final ResourceResolver otherResolver = this.fixture.newResolver();
+        final ResourceResolver thirdResolver = this.fixture.newResolver();
+
+        this.fixture.submit(() -> frozen.getResource(this.fixture.resolver, "/merged/a/1", null));
+        this.fixture.submit(() -> frozen.getResource(otherResolver, "/merged/a/1", null));
+        assertTrue(picker.picking.await(10, TimeUnit.SECONDS));
+        frozen.refresh();
+        final Future<Resource> third = this.fixture.submit(() -> frozen.getResource(thirdResolver, "/merged/a/1", null));
+        try {
+            third.get(200, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException expected) {
+            // waiting for the second merge
+        }
+        assertEquals(2, picker.picks.get());
+        picker.release();
+
+        // the merge started before the refresh is not shared, the waiting merge picks again
+        assertEquals("/merged/a/1", third.get(10, TimeUnit.SECONDS).getPath());
+        assertEquals(3, picker.picks.get());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.testing.resourceresolver.MockHelper;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures the bytes allocated by the merge operations and fails if an operation
+ * allocates more than its budget. The budgets include the allocations of the mock
+ * resource resolver and leave room for differences between JVMs, they catch
+ * regressions like copying all children or properties once more per call.
+ * The tests are skipped if the JVM does not support measuring allocations per thread.
+ */
+public class MergeAllocationTest {
+
+    private static final int WARMUP = 2000;
+
+    private static final int ITERATIONS = 2000;
+
+    /** Budget per {@code getResource} of a resource merged from two layers. */
+    private static final long GET_RESOURCE_BUDGET = 6 * 1024;
+
+    /** Budget per {@code listChildren} of a resource with ten merged children. */
+    private static final long LIST_CHILDREN_BUDGET = 64 * 1024;
+
+    /** Budget per {@code MergedValueMap} merged from two layers with ten properties each. */
+    private static final long VALUE_MAP_BUDGET = 3 * 1024;
+
+    private com.sun.management.ThreadMXBean threadBean;
+
+    private ResourceResolver resolver;
+
+    private MergingResourceProvider provider;
+
+    @Before
+    public void setup() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        this.threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(this.threadBean.isThreadAllocatedMemorySupported());
+        this.threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        this.resolver = new MockResourceResolverFactory().getResourceResolver(null);
+        final MockHelper helper = MockHelper.create(this.resolver);
+        helper.resource("/apps").resource("base").resource("/apps/overlay");
+        for (final String layer : new String[] {"/apps/base", "/apps/overlay"}) {
+            helper.resource(layer + "/a");
+            for (int i = 0; i < 10; i++) {
+                helper.resource(layer + "/a/child" + i).p("p", layer).p("i", i);
+            }
+        }
+        helper.commit();
+
+        final Resource base = this.resolver.getResource("/apps/base");
+        final Resource overlay = this.resolver.getResource("/apps/overlay");
+        // the same picker as in CommonMergedResourceProviderTest
+        this.provider = new MergingResourceProvider("/merged", (resolver, relativePath, relatedResource) -> {
+            if (relativePath.isEmpty()) {
+                return Arrays.asList(base, overlay);
+            }
+            final List<Resource> resources = new ArrayList<>(2);
+            for (final Resource layer : new Resource[] {base, overlay}) {
+                final Resource rsrc = layer.getChild(relativePath);
+                resources.add(rsrc != null ? rsrc : new NonExistingResource(resolver, layer.getPath() + "/" + relativePath));
+            }
+            return resources;
+        }, true, false);
+    }
+
+    private long measure(final Runnable operation) {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run();
+        }
+        final long threadId = Thread.currentThread().getId();
+        final long start = this.threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.run();
+        }
+        return (this.threadBean.getThreadAllocatedBytes(threadId) - start) / ITERATIONS;
+    }
+
+    private static void assertBudget(final String operation, final long budget, final long allocated) {
+        assertTrue(operation + " allocated " + allocated + " bytes, budget is " + budget, allocated <= budget);
+    }
+
+    @Test
+    public void testGetResource() {
+        assertNotNull(this.provider.getResource(this.resolver, "/merged/a/child1", null));
+        assertBudget("getResource", GET_RESOURCE_BUDGET,
+                measure(() -> this.provider.getResource(this.resolver, "/merged/a/child1", null)));
+    }
+
+    @Test
+    public void testListChildren() {
+        final Resource parent = this.provider.getResource(this.resolver, "/merged/a", null);
+        assertNotNull(parent);
+        assertBudget("listChildren", LIST_CHILDREN_BUDGET, measure(() -> {
+            final Iterator<Resource> children = this.provider.listChildren(parent);
+            while (children.hasNext()) {
+                children.next();
+            }
+        }));
+    }
+
+    @Test
+    public void testMergedValueMap() {
+        final List<ValueMap> valueMaps = new ArrayList<>();
+        for (final String layer : new String[] {"/apps/base/a/child1", "/apps/overlay/a/child1"}) {
+            final ValueMap properties = new ValueMapDecorator(new HashMap<>(this.resolver.getResource(layer).getValueMap()));
+            for (int i = 0; i < 8; i++) {
+                properties.put("prop" + i, layer);
+            }
+            valueMaps.add(properties);
+        }
+        assertBudget("MergedValueMap", VALUE_MAP_BUDGET, measure(() -> new MergedValueMap(valueMaps)));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.resourcemerger.impl.SearchPathFixture.CountingPicker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MergeCoalescingTest {
+
+    private SearchPathFixture fixture;
+
+    @Before public void setup() throws Exception {
+        this.fixture = new SearchPathFixture();
+    }
+
+    @After public void teardown() {
+        this.fixture.close();
+    }
+
+    @Test public void testConcurrentMergesAreCoalesced() throws Exception {
+        final CountingPicker picker = this.fixture.blockingPicker(1);
+        final MergingResourceProvider blockingProvider = SearchPathFixture.readOnlyProvider(picker);
+        final ResourceResolver otherResolver = this.fixture.newResolver();
+        final ResourceResolver libsResolver = this.fixture.newResolver("/libs/");
+
+        final Future<List<String>> first = this.fixture.submit(() -> SearchPathFixture.names(
+                blockingProvider.listChildren(blockingProvider.getResource(this.fixture.resolver, "/merged/a", null))));
+        assertTrue(picker.picking.await(10, TimeUnit.SECONDS));
+        // the second merge waits for the first one, a resolver with other search paths merges itself
+        final Future<Resource> second = this.fixture.submit(() -> blockingProvider.getResource(otherResolver, "/merged/a", null));
+        this.fixture.submit(() -> blockingProvider.getResource(libsResolver, "/merged/a", null));
+        try {
+            second.get(200, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException expected) {
+            // waiting for the first merge
+        }
+        assertEquals(2, picker.picks.get());
+        picker.release();
+
+        final Resource rsrc = second.get(10, TimeUnit.SECONDS);
+        assertEquals(otherResolver, rsrc.getResourceResolver());
+        assertEquals("/merged/a", rsrc.getPath());
+        assertEquals(Arrays.asList("1", "2", "3", "4", "Y", "X"), first.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test public void testWaitingForConcurrentMergeIsBounded() throws Exception {
+        final CountingPicker picker = this.fixture.blockingPicker(3);
+        final MergingResourceProvider blockingProvider = SearchPathFixture.readOnlyProvider(picker);
+        final ResourceResolver otherResolver = this.fixture.newResolver();
+        final ResourceResolver thirdResolver = this.fixture.newResolver();
+
+        this.fixture.submit(() -> blockingProvider.getResource(this.fixture.resolver, "/merged/a", null));
+        this.fixture.submit(() -> blockingProvider.getResource(otherResolver, "/merged/a", null));
+        final Future<Resource> third = this.fixture.submit(() -> blockingProvider.getResource(thirdResolver, "/merged/a", null));
+        // the other merges stop waiting for the stuck merge and merge themselves
+        assertTrue(picker.picking.await(10, TimeUnit.SECONDS));
+        assertEquals(3, picker.picks.get());
+        picker.release();
+        assertEquals("/merged/a", third.get(10, TimeUnit.SECONDS).getPath());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.apache.sling.spi.resource.provider.ResourceContext;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MergeExplanationTest {
+
+    private SearchPathFixture fixture;
+
+    @Before public void setup() throws Exception {
+        this.fixture = new SearchPathFixture();
+    }
+
+    @Test public void testExplain() throws Exception {
+        final CRUDMergingResourceProvider provider = this.fixture.provider;
+        this.fixture.hide("/apps/a/2");
+        final MergeExplanation explanation = provider.explain(this.fixture.resolver, "/merged/a");
+        assertEquals(Arrays.asList("/libs/a", "/apps/a"), explanation.getMergedLayers());
+        assertEquals(SearchPathFixture.names(provider.listChildren(this.fixture.ctx,
+                provider.getResource(this.fixture.ctx, "/merged/a", ResourceContext.EMPTY_CONTEXT, null))), explanation.getChildren());
+        assertTrue(hasDecision(explanation, "children", "hide", "Z", "/apps/a", "/apps/a/" + MergedResourceConstants.PN_HIDE_CHILDREN));
+        assertTrue(hasDecision(explanation, "children", "hide", "2", "/apps/a/2", "/apps/a/2/" + MergedResourceConstants.PN_HIDE_RESOURCE));
+        assertTrue(explanation.getTimings().containsKey("resource.pick"));
+        assertTrue(explanation.getTimings().containsKey("children.order"));
+
+        final MergeExplanation properties = provider.explain(this.fixture.resolver, "/merged/a/3");
+        for (final String name : new String[] {"a", "b", "c"}) {
+            assertTrue(name, hasDecision(properties, "properties", "hide", name, "/apps/a/3", "/apps/a/3/" + MergedResourceConstants.PN_HIDE_PROPERTIES));
+        }
+
+        final StringWriter json = new StringWriter();
+        final MergeExplanation missing = provider.explain(this.fixture.resolver, "/merged/missing");
+        missing.setUser("reader", true);
+        missing.writeJson(json);
+        assertTrue(json.toString(), json.toString().startsWith("{\"path\":\"/merged/missing\",\"exists\":false,"));
+        assertTrue(json.toString(), json.toString().endsWith(",\"user\":\"reader\",\"serviceUser\":true}"));
+        assertNull(provider.explain(this.fixture.resolver, "/other"));
+    }
+
+    private static boolean hasDecision(final MergeExplanation explanation, final String... expected) {
+        for (final String[] decision : explanation.getDecisions()) {
+            if (Arrays.equals(expected, decision)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.resourcemerger.impl.picker.SearchPathBasedResourcePicker;
+import org.apache.sling.testing.resourceresolver.MockHelper;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactoryOptions;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Load harness driving the read-only and the CRUD provider from an increasing number
+ * of threads, each using its own resource resolver, over a synthetic {@code /libs}
+ * and {@code /apps} tree. For every thread count the throughput and the 50th and
+ * 99th percentile latency are reported together with the scaling compared to a
+ * single thread.
+ * <p>
+ * The harness only runs if the system property {@value #PROPERTY} is set, its value
+ * is the number of seconds each thread count is measured (e.g.
+ * {@code mvn test -Dtest=MergeLoadTest -Dresourcemerger.load=10}).
+ */
+public class MergeLoadTest {
+
+    static final String PROPERTY = "resourcemerger.load";
+
+    private static final int CHILDREN = 20;
+
+    private static final int GRANDCHILDREN = 20;
+
+    private static final int PROPERTIES = 5;
+
+    private long durationMillis;
+
+    private ResourceResolverFactory factory;
+
+    @Before
+    public void setup() throws Exception {
+        final String duration = System.getProperty(PROPERTY);
+        Assume.assumeTrue("Set -D" + PROPERTY + "=<seconds> to run the load harness", duration != null);
+        this.durationMillis = TimeUnit.SECONDS.toMillis(duration.isEmpty() ? 2 : Long.parseLong(duration));
+
+        final MockResourceResolverFactoryOptions options = new MockResourceResolverFactoryOptions();
+        options.setSearchPaths(new String[] {"/apps/", "/libs/"});
+        this.factory = new MockResourceResolverFactory(options);
+        try (final ResourceResolver resolver = this.factory.getResourceResolver(null)) {
+            final MockHelper helper = MockHelper.create(resolver);
+            helper.resource("/apps").resource("tree").resource("/libs").resource("tree");
+            for (int i = 0; i < CHILDREN; i++) {
+                helper.resource("/libs/tree/c" + i);
+                if (i % 3 == 0) {
+                    helper.resource("/apps/tree/c" + i);
+                }
+                for (int j = 0; j < GRANDCHILDREN; j++) {
+                    final MockHelper libs = helper.resource("/libs/tree/c" + i + "/g" + j);
+                    for (int p = 0; p < PROPERTIES; p++) {
+                        libs.p("p" + p, "libs" + p);
+                    }
+                    if (i % 3 == 0 && j % 2 == 0) {
+                        helper.resource("/apps/tree/c" + i + "/g" + j).p("p0", "apps")
+                            .p(MergedResourceConstants.PN_HIDE_PROPERTIES, "p1");
+                    }
+                }
+            }
+            helper.commit();
+        }
+    }
+
+    @Test
+    public void testReadOnlyProvider() throws Exception {
+        run("read-only", new MergingResourceProvider("/merged", new SearchPathBasedResourcePicker(), true, false));
+    }
+
+    @Test
+    public void testCRUDProvider() throws Exception {
+        run("CRUD", new CRUDMergingResourceProvider("/merged", new SearchPathBasedResourcePicker(), false));
+    }
+
+    private static int[] getThreadCounts() {
+        final TreeSet<Integer> counts = new TreeSet<>(Arrays.asList(1, 2, 4, 8, 16));
+        counts.add(Math.max(16, Runtime.getRuntime().availableProcessors()));
+        final int[] result = new int[counts.size()];
+        int index = 0;
+        for (final Integer count : counts) {
+            result[index++] = count;
+        }
+        return result;
+    }
+
+    private void run(final String name, final MergingResourceProvider provider) throws Exception {
+        System.out.println(String.format("%s provider, %d available processors", name, Runtime.getRuntime().availableProcessors()));
+        System.out.println(String.format("%8s %14s %10s %10s %8s", "threads", "ops/s", "p50 us", "p99 us", "scaling"));
+        // warm up
+        measure(provider, 1, Math.min(this.durationMillis, 1000));
+        double single = 0;
+        for (final int threads : getThreadCounts()) {
+            final long[] latencies = measure(provider, threads, this.durationMillis);
+            final double throughput = latencies.length * 1000d / this.durationMillis;
+            if (threads == 1) {
+                single = throughput;
+            }
+            Arrays.sort(latencies);
+            System.out.println(String.format("%8d %14.0f %10.1f %10.1f %8.2f", threads, throughput,
+                    percentile(latencies, 50) / 1000d, percentile(latencies, 99) / 1000d, throughput / single));
+        }
+    }
+
+    private static long percentile(final long[] sorted, final int percentile) {
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    /**
+     * Run the operations from the given number of threads.
+     * @return The latencies of all operations in nanoseconds
+     */
+    private long[] measure(final MergingResourceProvider provider, final int threads, final long millis) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<long[]>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final long seed = t;
+                results.add(executor.submit(() -> {
+                    try (final ResourceResolver resolver = this.factory.getResourceResolver(null)) {
+                        start.await();
+                        return work(provider, resolver, new Random(seed), millis);
+                    }
+                }));
+            }
+            start.countDown();
+            final List<long[]> latencies = new ArrayList<>();
+            int count = 0;
+            for (final Future<long[]> result : results) {
+                final long[] values = result.get();
+                latencies.add(values);
+                count += values.length;
+            }
+            final long[] all = new long[count];
+            int pos = 0;
+            for (final long[] values : latencies) {
+                System.arraycopy(values, 0, all, pos, values.length);
+                pos += values.length;
+            }
+            return all;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Alternately read a merged grandchild and list the children of a merged child.
+     */
+    private static long[] work(final MergingResourceProvider provider, final ResourceResolver resolver,
+            final Random random, final long millis) {
+        long[] latencies = new long[1024];
+        int count = 0;
+        final long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            final int child = random.nextInt(CHILDREN);
+            final long start = System.nanoTime();
+            if ((count & 1) == 0) {
+                final Resource rsrc = provider.getResource(resolver, "/merged/tree/c" + child + "/g" + random.nextInt(GRANDCHILDREN), null);
+                rsrc.getValueMap().get("p0");
+            } else {
+                final Iterator<Resource> children = provider.listChildren(provider.getResource(resolver, "/merged/tree/c" + child, null));
+                while (children.hasNext()) {
+                    children.next();
+                }
+            }
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = System.nanoTime() - start;
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.resourcemerger.spi.MergeObserver;
+import org.apache.sling.spi.resource.provider.ResourceContext;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MergeObserverTest {
+
+    private SearchPathFixture fixture;
+
+    @Before public void setup() throws Exception {
+        this.fixture = new SearchPathFixture();
+    }
+
+    @Test public void testObserver() {
+        final CRUDMergingResourceProvider provider = this.fixture.provider;
+        final List<String> events = new ArrayList<>();
+        final MergeObserver observer = new MergeObserver() {
+            @Override
+            public void picked(final String mergeRoot, final String relativePath, final int resourceCount, final long nanos) {
+                events.add("picked " + mergeRoot + " " + relativePath + " " + resourceCount);
+            }
+
+            @Override
+            public void hidden(final String mergeRoot, final String relativePath, final int hiddenCount, final long nanos) {
+                events.add("hidden " + relativePath + " " + hiddenCount);
+            }
+
+            @Override
+            public void ordered(final String mergeRoot, final String relativePath, final int childCount, final int movedCount, final long nanos) {
+                events.add("ordered " + relativePath + " " + childCount + " " + movedCount);
+            }
+
+            @Override
+            public void merged(final String mergeRoot, final String relativePath, final int resourceCount, final long nanos) {
+                events.add("merged " + relativePath + " " + resourceCount);
+            }
+        };
+        provider.setObservers(new MergeObserver[] {observer});
+        final Resource rsrc = provider.getResource(this.fixture.ctx, "/merged/a", ResourceContext.EMPTY_CONTEXT, null);
+        assertEquals(Arrays.asList("picked /merged a 2", "hidden a 0", "merged a 1"), events);
+
+        events.clear();
+        final List<String> names = SearchPathFixture.names(provider.listChildren(this.fixture.ctx, rsrc));
+        // Z is hidden by /apps/a
+        assertEquals(Arrays.asList("picked /merged a 2", "hidden a 1", "ordered a " + names.size() + " 0", "merged a " + names.size()), events);
+
+        events.clear();
+        provider.setObservers(new MergeObserver[0]);
+        provider.getResource(this.fixture.ctx, "/merged/a/1", ResourceContext.EMPTY_CONTEXT, null);
+        assertTrue(events.isEmpty());
+    }
+}
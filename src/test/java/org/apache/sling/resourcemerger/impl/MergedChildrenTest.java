@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceWrapper;
+import org.apache.sling.resourcemerger.api.ResourceMergerUtil;
+import org.apache.sling.resourcemerger.impl.picker.SearchPathBasedResourcePicker;
+import org.apache.sling.spi.resource.provider.ResourceContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class MergedChildrenTest {
+
+    private SearchPathFixture fixture;
+
+    @Before public void setup() throws Exception {
+        this.fixture = new SearchPathFixture();
+    }
+
+    private Resource getResource(final String path) {
+        return this.fixture.provider.getResource(this.fixture.ctx, path, ResourceContext.EMPTY_CONTEXT, null);
+    }
+
+    private List<Resource> listChildren(final Resource rsrc) {
+        return SearchPathFixture.toList(this.fixture.provider.listChildren(this.fixture.ctx, rsrc));
+    }
+
+    @Test public void testPagedChildren() throws Exception {
+        this.fixture.hide("/apps/a/2");
+
+        final Resource rsrc = getResource("/merged/a");
+        final List<String> all = SearchPathFixture.names(listChildren(rsrc).iterator());
+        assertEquals(Arrays.asList("1", "3", "4", "Y", "X"), all);
+        for (int offset = 0; offset <= all.size() + 1; offset++) {
+            for (int limit = 0; limit <= all.size() + 1; limit++) {
+                final List<String> expected = all.subList(Math.min(offset, all.size()), Math.min(offset + limit, all.size()));
+                assertEquals(offset + "/" + limit, expected, SearchPathFixture.names(ResourceMergerUtil.listChildren(rsrc, offset, limit)));
+            }
+        }
+    }
+
+    @Test public void testWrappedResourceChildren() {
+        final Resource rsrc = getResource("/merged/a");
+        // a decorator hiding a child
+        final Resource wrapped = new ResourceWrapper(rsrc) {
+
+            @Override
+            public Iterator<Resource> listChildren() {
+                final List<Resource> children = MergedChildrenTest.this.listChildren(rsrc);
+                children.removeIf(child -> "1".equals(child.getName()));
+                return children.iterator();
+            }
+
+            @Override
+            public Iterable<Resource> getChildren() {
+                return this::listChildren;
+            }
+        };
+        assertEquals(Arrays.asList("2", "3", "4", "Y", "X"), ResourceMergerUtil.getChildNames(wrapped));
+        assertEquals(Arrays.asList("3", "4"), SearchPathFixture.names(ResourceMergerUtil.listChildren(wrapped, 1, 2)));
+        final List<String> visited = new ArrayList<>();
+        ResourceMergerUtil.visit(wrapped, node -> visited.add(node.getName()) && node.getDepth() == 0);
+        assertEquals(Arrays.asList("a", "2", "3", "4", "Y", "X"), visited);
+    }
+
+    @Test public void testChildNames() throws Exception {
+        this.fixture.hide("/apps/a/2");
+
+        final Resource rsrc = getResource("/merged/a");
+        final List<String> all = SearchPathFixture.names(listChildren(rsrc).iterator());
+        assertEquals(all, ResourceMergerUtil.getChildNames(rsrc));
+        assertEquals(all.size(), ResourceMergerUtil.getChildCount(rsrc));
+
+        // other resources are iterated
+        assertEquals(Arrays.asList("1", "2", "3", "4", "Y", "Z"), ResourceMergerUtil.getChildNames(this.fixture.resolver.getResource("/libs/a")));
+        assertEquals(0, ResourceMergerUtil.getChildCount(this.fixture.resolver.getResource("/libs/a/1")));
+    }
+
+    @Test public void testHasChildren() throws Exception {
+        this.fixture.resolver.getResource("/apps/b/c/d/e").adaptTo(ModifiableValueMap.class).put(MergedResourceConstants.PN_HIDE_CHILDREN, "f");
+        this.fixture.hide("/apps/a/2");
+
+        assertFalse(getResource("/merged/b/c/d/e").hasChildren());
+        assertHasChildren(getResource("/merged"));
+    }
+
+    @Test public void testParentLayersReused() {
+        final SearchPathBasedResourcePicker picker = Mockito.spy(new SearchPathBasedResourcePicker());
+        final MergingResourceProvider readOnlyProvider = SearchPathFixture.readOnlyProvider(picker);
+        final Resource rsrc = readOnlyProvider.getResource(this.fixture.resolver, "/merged/a", null);
+        Mockito.clearInvocations(picker);
+
+        // the picker would return the layers held by the parent
+        assertTrue(rsrc.hasChildren());
+        assertEquals("/merged/a/1", rsrc.getChild("1").getPath());
+        assertNull(rsrc.getChild("Z"));
+        Mockito.verifyNoInteractions(picker);
+    }
+
+    @Test public void testGetChild() throws Exception {
+        this.fixture.hide("/apps/a/2");
+
+        final Resource rsrc = getResource("/merged/a");
+        for (final Resource child : listChildren(rsrc)) {
+            final Resource direct = rsrc.getChild(child.getName());
+            assertEquals(child.getPath(), direct.getPath());
+            assertEquals(child.getValueMap(), direct.getValueMap());
+            assertEquals(Arrays.asList((String[]) child.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES)),
+                    Arrays.asList((String[]) direct.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES)));
+        }
+        // hidden by the parent, hidden by itself and not existing
+        assertNull(rsrc.getChild("Z"));
+        assertNull(rsrc.getChild("2"));
+        assertNull(rsrc.getChild("missing"));
+    }
+
+    @Test public void testRememberedParent() {
+        final Resource rsrc = getResource("/merged/a");
+        for (final Resource child : listChildren(rsrc)) {
+            assertSame(rsrc, child.getParent());
+            assertSame(rsrc, this.fixture.provider.getParent(this.fixture.ctx, child));
+        }
+        assertSame(rsrc, rsrc.getChild("1").getParent());
+        assertSame(rsrc, ResourceMergerUtil.listChildren(rsrc, 1, 1).next().getParent());
+
+        // resources which have not been reached from their parent merge the parent again
+        final Resource direct = getResource("/merged/a/1");
+        assertEquals("/merged/a", this.fixture.provider.getParent(this.fixture.ctx, direct).getPath());
+    }
+
+    private void assertHasChildren(final Resource rsrc) {
+        final List<Resource> children = listChildren(rsrc);
+        assertEquals(rsrc.getPath(), !children.isEmpty(), rsrc.hasChildren());
+        for (final Resource child : children) {
+            assertHasChildren(child);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.spi.resource.provider.ResourceContext;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MergedDeepReadTest {
+
+    private SearchPathFixture fixture;
+
+    @Before public void setup() throws Exception {
+        this.fixture = new SearchPathFixture();
+    }
+
+    @Test public void testDeepRead() throws Exception {
+        final CRUDMergingResourceProvider provider = this.fixture.provider;
+        this.fixture.hide("/apps/a/2");
+        final Resource rsrc = provider.getResource(this.fixture.ctx, "/merged/a", ResourceContext.EMPTY_CONTEXT, null);
+        final ValueMap properties = rsrc.getValueMap();
+        for (final String child : new String[] {"1", "2", "3", "4", "X", "Y", "Z", "missing"}) {
+            final Resource merged = provider.getResource(this.fixture.ctx, "/merged/a/" + child, ResourceContext.EMPTY_CONTEXT, null);
+            for (final String name : new String[] {"a", "b", "c", "d", "e", ResourceResolver.PROPERTY_RESOURCE_TYPE,
+                    MergedResourceConstants.PN_HIDE_PROPERTIES}) {
+                final Object expected = merged == null ? null : merged.getValueMap().get(name);
+                assertEquals(child + "/" + name, expected, properties.get(child + "/" + name));
+                assertEquals(child + "/" + name, expected != null, properties.containsKey(child + "/" + name));
+            }
+        }
+        assertEquals(Integer.valueOf(1), properties.get("1/a", Integer.class));
+        assertEquals("x", properties.get("4/b", "default"));
+        assertEquals("default", properties.get("4/a", "default"));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.apache.sling.resourcemerger.impl.picker.SearchPathBasedResourcePicker;
+import org.apache.sling.spi.resource.provider.ObservationReporter;
+import org.apache.sling.spi.resource.provider.ObserverConfiguration;
+import org.apache.sling.spi.resource.provider.ProviderContext;
+import org.apache.sling.testing.resourceresolver.MockHelper;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactoryOptions;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+public class MergedPathIndexTest {
+
+    private static List<String> describe(final List<ResourceChange> changes) {
+        final List<String> result = new ArrayList<>();
+        for (final ResourceChange change : changes) {
+            result.add(change.getType() + " " + change.getPath());
+        }
+        return result;
+    }
+
+    @Test public void testTranslate() {
+        final MergedPathIndex index = new MergedPathIndex("/merged", 10);
+        index.add(new String[] {"/libs/a", "/apps/a"}, "/merged/a");
+        index.add(new String[] {"/libs/a/b"}, "/merged/a/b");
+        index.add(new String[] {"/libs/a/b"}, "/override/x/b");
+        index.add(new String[] {"/apps/a/d"}, "/merged/a/d");
+
+        assertEquals(new HashSet<>(Arrays.asList("CHANGED /merged/a/b", "CHANGED /override/x/b")),
+                new HashSet<>(describe(index.translate(Collections.singletonList(new ResourceChange(ChangeType.CHANGED, "/libs/a/b", false, null, null, null))))));
+        // other layers might provide the child as well
+        assertEquals(Arrays.asList("CHANGED /merged/a/c"),
+                describe(index.translate(Collections.singletonList(new ResourceChange(ChangeType.ADDED, "/apps/a/c", false, null, null, null)))));
+        assertEquals(Arrays.asList("CHANGED /merged/a/b"),
+                describe(index.translate(Collections.singletonList(new ResourceChange(ChangeType.ADDED, "/apps/a/b", false, null, null, null)))));
+        assertTrue(index.translate(Collections.singletonList(new ResourceChange(ChangeType.CHANGED, "/content/a", false, null, null, null))).isEmpty());
+
+        // removed layer paths and their descendants are dropped from the index
+        assertEquals(Arrays.asList("CHANGED /merged/a"),
+                describe(index.translate(Collections.singletonList(new ResourceChange(ChangeType.REMOVED, "/apps/a", false, null, null, null)))));
+        assertTrue(index.getMergedPaths("/apps/a").isEmpty());
+        assertTrue(index.getMergedPaths("/apps/a/d").isEmpty());
+        assertEquals(1, index.getMergedPaths("/libs/a").size());
+    }
+
+    @Test public void testLimit() {
+        final MergedPathIndex index = new MergedPathIndex("/merged", 2);
+        index.add(new String[] {"/libs/a", "/apps/a"}, "/merged/a");
+        index.add(new String[] {"/libs/b", "/apps/b"}, "/merged/b");
+        index.add(new String[] {"/libs/a"}, "/other/a");
+        assertEquals(2, index.size());
+        // the least recently used layer paths are evicted
+        assertTrue(index.getMergedPaths("/libs/b").isEmpty());
+        assertEquals(1, index.getMergedPaths("/apps/b").size());
+        assertEquals(Collections.singleton("/other/a"), index.getMergedPaths("/libs/a"));
+
+        // changes of evicted resources are reported as change of the merge root
+        assertEquals(Arrays.asList("CHANGED /merged"),
+                describe(index.translate(Collections.singletonList(new ResourceChange(ChangeType.CHANGED, "/libs/b", false, null, null, null)))));
+        assertEquals(Arrays.asList("CHANGED /merged/b"),
+                describe(index.translate(Collections.singletonList(new ResourceChange(ChangeType.CHANGED, "/apps/b", false, null, null, null)))));
+    }
+
+    @Test public void testObservationCallback() {
+        final MergingResourceProvider provider = new MergingResourceProvider("/merged", new SearchPathBasedResourcePicker(), true, false);
+        final AtomicInteger calls = new AtomicInteger();
+        provider.setObservationCallback(calls::incrementAndGet);
+        final ObservationReporter reporter = Mockito.mock(ObservationReporter.class);
+        final ProviderContext providerContext = Mockito.mock(ProviderContext.class);
+        Mockito.when(providerContext.getObservationReporter()).thenReturn(reporter);
+        provider.start(providerContext);
+        assertEquals(1, calls.get());
+        assertFalse(provider.isObserved(false));
+
+        final ObserverConfiguration config = Mockito.mock(ObserverConfiguration.class);
+        Mockito.when(reporter.getObserverConfigurations()).thenReturn(Collections.singletonList(config));
+        provider.update(ProviderContext.EXCLUDED_PATHS_CHANGED);
+        assertEquals(1, calls.get());
+        provider.update(ProviderContext.OBSERVATION_LISTENER_CHANGED);
+        assertEquals(2, calls.get());
+        assertTrue(provider.isObserved(false));
+        assertFalse(provider.isObserved(true));
+        Mockito.when(config.includeExternal()).thenReturn(true);
+        assertTrue(provider.isObserved(true));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void testProviderReportsMergedChanges() throws Exception {
+        final MockResourceResolverFactoryOptions options = new MockResourceResolverFactoryOptions();
+        options.setSearchPaths(new String[] {"/apps/", "/libs/"});
+        final ResourceResolver resolver = new MockResourceResolverFactory(options).getResourceResolver(null);
+        MockHelper.create(resolver).resource("/apps")
+                                     .resource("a")
+                                       .resource("1")
+                                   .resource("/libs")
+                                     .resource("a")
+                                       .resource("1")
+                                       .resource("2")
+                                   .commit();
+
+        final MergingResourceProvider provider = new MergingResourceProvider("/merged", new SearchPathBasedResourcePicker(), true, false);
+        final ObservationReporter reporter = Mockito.mock(ObservationReporter.class);
+        final ProviderContext providerContext = Mockito.mock(ProviderContext.class);
+        Mockito.when(providerContext.getObservationReporter()).thenReturn(reporter);
+        provider.start(providerContext);
+
+        // only requested merged resources are known
+        provider.listChildren(provider.getResource(resolver, "/merged/a", null));
+
+        provider.onChange(Arrays.asList(new ResourceChange(ChangeType.CHANGED, "/apps/a/1", false, null, null, null),
+                new ResourceChange(ChangeType.ADDED, "/apps/a/3", true, null, null, null),
+                new ResourceChange(ChangeType.CHANGED, "/content/x", false, null, null, null)));
+
+        final ArgumentCaptor<Iterable<ResourceChange>> captor = ArgumentCaptor.forClass(Iterable.class);
+        Mockito.verify(reporter).reportChanges(captor.capture(), Mockito.eq(false));
+        final List<ResourceChange> reported = new ArrayList<>();
+        captor.getValue().forEach(reported::add);
+        assertEquals(Arrays.asList("CHANGED /merged/a/1", "CHANGED /merged/a/3"), describe(reported));
+        assertTrue(reported.get(1).isExternal());
+
+        // nothing is reported for unrelated changes
+        provider.onChange(Collections.singletonList(new ResourceChange(ChangeType.CHANGED, "/content/x", false, null, null, null)));
+        Mockito.verify(reporter, Mockito.never()).reportChanges(Mockito.any(), Mockito.eq(true));
+        Mockito.verify(reporter).reportChanges(Mockito.any(), Mockito.eq(false));
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.QuerySyntaxException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.resourcemerger.impl.picker.SearchPathBasedResourcePicker;
+import org.apache.sling.spi.resource.provider.ResolveContext;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class MergedQueryTest {
+
+    private SearchPathFixture fixture;
+
+    @Before public void setup() throws Exception {
+        this.fixture = new SearchPathFixture();
+    }
+
+    @Test public void testQuery() throws Exception {
+        this.fixture.resolver.getResource("/libs/a/Z").adaptTo(ModifiableValueMap.class).put("b", "3");
+        this.fixture.resolver.commit();
+        // the index of the underlying provider is simulated by traversing below the queried path
+        final ResourceResolver spy = Mockito.spy(this.fixture.resolver);
+        Mockito.doAnswer(invocation -> {
+            final MergedQuery query = MergedQuery.parse(invocation.getArgument(0), invocation.getArgument(1), "/");
+            final List<Resource> hits = new ArrayList<>();
+            for (final Resource child : spy.getResource("/" + query.relativePath).getChildren()) {
+                collectMatching(child, query, hits);
+            }
+            return hits.iterator();
+        }).when(spy).findResources(Mockito.anyString(), Mockito.anyString());
+
+        final MergingResourceProvider queryProvider = SearchPathFixture.readOnlyProvider(new SearchPathBasedResourcePicker());
+        final ResolveContext<Void> spyCtx = new BasicResolveContext<>(spy);
+        final Iterator<Resource> result = queryProvider.getQueryLanguageProvider().findResources(spyCtx,
+                "/jcr:root/merged//*[@b]", "xpath");
+        final List<String> paths = new ArrayList<>();
+        while (result.hasNext()) {
+            final Resource rsrc = result.next();
+            assertTrue(rsrc instanceof MergedResource);
+            paths.add(rsrc.getPath());
+        }
+        // hidden resources are dropped, hits in both layers are returned once
+        Collections.sort(paths);
+        assertEquals(Arrays.asList("/merged/a/1", "/merged/a/3", "/merged/a/4", "/merged/mvmTest"), paths);
+        Mockito.verify(spy).findResources("/jcr:root/libs//*[@b]", "xpath");
+        Mockito.verify(spy).findResources("/jcr:root/apps//*[@b]", "xpath");
+
+        // the properties are merged, the first layer is queried lazily
+        final ValueMap row = queryProvider.getQueryLanguageProvider().queryResources(spyCtx,
+                "/jcr:root/merged/a//*[@b]", "xpath").next();
+        assertEquals("/merged/a/3", row.get(MergedQueryLanguageProvider.PATH_COLUMN));
+        assertEquals("x", row.get("b"));
+        assertFalse(row.containsKey("a"));
+
+        // queries for other paths are not run against the layers
+        assertFalse(queryProvider.getQueryLanguageProvider().findResources(spyCtx,
+                "/jcr:root/mergedOther//*[@b]", "xpath").hasNext());
+        Mockito.verify(spy, Mockito.times(3)).findResources(Mockito.anyString(), Mockito.anyString());
+
+        // the condition is checked against the merged properties: /libs/a/3 and /libs/a/4 match, but apps hides their property
+        assertEquals(Arrays.asList("/merged/a/1"), SearchPathFixture.paths(queryProvider.getQueryLanguageProvider().findResources(spyCtx,
+                "/jcr:root/merged/a//*[@a = '1']", "xpath")));
+        // the properties of a merged resource come from different layers, the layers are queried for the first operand
+        assertEquals(Arrays.asList("/merged/a/1"), SearchPathFixture.paths(queryProvider.getQueryLanguageProvider().findResources(spyCtx,
+                "SELECT * FROM [nt:base] AS s WHERE ISDESCENDANTNODE(s, '/merged/a') AND s.[c] = '2' AND s.[b] = '2'", "JCR-SQL2")));
+        Mockito.verify(spy).findResources("SELECT * FROM [nt:base] AS s WHERE ISDESCENDANTNODE(s, '/libs/a') AND s.[c] = '2'", "JCR-SQL2");
+        // the results of all layers are ordered by the merged properties
+        assertEquals(Arrays.asList("/merged/a/1", "/merged/a/3", "/merged/a/4"), SearchPathFixture.paths(
+                queryProvider.getQueryLanguageProvider().findResources(spyCtx, "/jcr:root/merged/a//*[@b] order by @b", "xpath")));
+
+        // the repository root is not queried as a layer
+        final MergingResourceProvider rootProvider = SearchPathFixture.readOnlyProvider((resolver, relativePath, relatedResource) ->
+                Collections.singletonList(new NonExistingResource(resolver, "/" + relativePath)));
+        assertFalse(rootProvider.getQueryLanguageProvider().findResources(spyCtx, "/jcr:root/merged//*[@b]", "xpath").hasNext());
+        Mockito.verify(spy, Mockito.never()).findResources(Mockito.eq("/jcr:root//*[@b]"), Mockito.anyString());
+    }
+
+    @Test public void testParseQuery() {
+        // only the scope is rewritten, not the literals
+        assertEquals("/jcr:root/apps/a//*[@path = '/merged/x']",
+                MergedQuery.parse("/jcr:root/merged/a//*[@path = '/merged/x']", "xpath", "/merged").toLayerQuery("/apps/a"));
+        assertEquals("/jcr:root/apps/element(*, nt:unstructured)[(@a = 1 or jcr:like(@b, 'x%'))]",
+                MergedQuery.parse("/jcr:root/merged/element(*, nt:unstructured)[@a = 1 or jcr:like(@b, 'x%')]", "xpath", "/merged")
+                        .toLayerQuery("/apps"));
+        assertEquals("SELECT * FROM [nt:base] AS s WHERE ISCHILDNODE(s, '/apps') AND s.[a] IS NOT NULL",
+                MergedQuery.parse("select * from [nt:base] where ischildnode('/merged') and [a] is not null and [b] <> 'it''s'",
+                        "JCR-SQL2", "/merged").toLayerQuery("/apps"));
+
+        // queries for other paths are not meant for the merged resources
+        assertNull(MergedQuery.parse("/jcr:root/mergedX//*", "xpath", "/merged"));
+        assertNull(MergedQuery.parse("SELECT * FROM [nt:base] AS s WHERE ISDESCENDANTNODE(s, '/apps')", "JCR-SQL2", "/merged"));
+
+        // unsupported queries for the merged resources are rejected
+        for (final String query : new String[] {"/jcr:root/merged//*[not(@a)]", "/jcr:root/merged//*[@a = '1'"}) {
+            try {
+                MergedQuery.parse(query, "xpath", "/merged");
+                Assert.fail(query);
+            } catch (final QuerySyntaxException expected) {
+                // expected
+            }
+        }
+        try {
+            MergedQuery.parse("SELECT * FROM [nt:base] AS s WHERE ISDESCENDANTNODE(s, '/merged') AND s.[a] = 1 OR s.[b] = 2", "JCR-SQL2", "/merged");
+            Assert.fail();
+        } catch (final QuerySyntaxException expected) {
+            // expected
+        }
+    }
+
+    private static void collectMatching(final Resource rsrc, final MergedQuery query, final List<Resource> hits) {
+        if (query.matches(rsrc.getValueMap())) {
+            hits.add(rsrc);
+        }
+        for (final Resource child : rsrc.getChildren()) {
+            collectMatching(child, query, hits);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.resourcemerger.impl.picker.SearchPathBasedResourcePicker;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class MergedResourcePicker3AdapterTest {
+
+    private SearchPathFixture fixture;
+
+    @Before public void setup() throws Exception {
+        this.fixture = new SearchPathFixture();
+    }
+
+    @Test public void testLayerCollector() throws Exception {
+        final ResourceResolver resolver = this.fixture.resolver;
+        this.fixture.hide("/apps/a/2");
+        final MergingResourceProvider listProvider = SearchPathFixture.readOnlyProvider(new SearchPathBasedResourcePicker());
+        final MergingResourceProvider layerProvider = new MergingResourceProvider("/merged",
+                new MergedResourcePicker3Adapter(new SearchPathBasedResourcePicker()), true, false);
+        for (final String path : new String[] {"", "/a", "/a/1", "/a/2", "/a/3", "/a/4", "/a/X", "/a/Y", "/a/Z", "/a/Y/a",
+                "/a/missing", "/b", "/b/c", "/b/c/d", "/deleteTest", "/mvmTest", "/missing"}) {
+            final Resource expected = listProvider.getResource(resolver, "/merged" + path, null);
+            final Resource rsrc = layerProvider.getResource(resolver, "/merged" + path, null);
+            if (expected == null) {
+                assertNull(path, rsrc);
+            } else {
+                assertEquals(path, Arrays.asList((String[]) expected.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES)),
+                        Arrays.asList((String[]) rsrc.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES)));
+                assertEquals(path, new HashMap<>(expected.getValueMap()), new HashMap<>(rsrc.getValueMap()));
+                assertEquals(path, SearchPathFixture.names(listProvider.listChildren(expected)),
+                        SearchPathFixture.names(layerProvider.listChildren(rsrc)));
+            }
+        }
+
+        // missing layers do not need a lookup as long as no layer below exists
+        final ResourceResolver spy = Mockito.spy(resolver);
+        final MergingResourceProvider missingProvider = new MergingResourceProvider("/merged", new MergedResourcePicker3Adapter(
+                (pickResolver, relativePath, relatedResource, collector) -> {
+                    collector.layer("/libs/" + relativePath, false);
+                    collector.layer("/apps/" + relativePath, false);
+                }), true, false);
+        assertNull(missingProvider.getResource(spy, "/merged/x/y", null));
+        Mockito.verify(spy, Mockito.never()).getResource(Mockito.anyString());
+    }
+}
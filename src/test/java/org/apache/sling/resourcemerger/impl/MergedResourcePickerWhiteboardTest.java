@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sling.resourcemerger.spi.MergedResourcePicker2;
+import org.apache.sling.spi.resource.provider.ResourceProvider;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+
+public class MergedResourcePickerWhiteboardTest {
+
+    private final List<ServiceRegistration<?>> providerRegistrations = new ArrayList<>();
+
+    private MergedResourcePickerWhiteboard whiteboard;
+
+    @Before
+    public void setup() {
+        final BundleContext bundleContext = Mockito.mock(BundleContext.class);
+        Mockito.when(bundleContext.registerService(Mockito.anyString(), Mockito.any(), Mockito.<Dictionary<String, ?>>any())).thenAnswer(invocation -> {
+            final ServiceRegistration<?> registration = Mockito.mock(ServiceRegistration.class);
+            if (ResourceProvider.class.getName().equals(invocation.getArgument(0))) {
+                this.providerRegistrations.add(registration);
+            }
+            return registration;
+        });
+        this.whiteboard = new MergedResourcePickerWhiteboard(bundleContext);
+    }
+
+    private static Map<String, Object> properties(final long serviceId, final Object... keyValues) {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put(Constants.SERVICE_ID, serviceId);
+        properties.put(MergedResourcePicker2.MERGE_ROOT, "/merged");
+        for (int i = 0; i < keyValues.length; i += 2) {
+            properties.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return properties;
+    }
+
+    private static MergedResourcePicker2 picker() {
+        return (resolver, relativePath, relatedResource) -> Collections.emptyList();
+    }
+
+    @Test
+    public void testReconfigureInPlace() {
+        final MergedResourcePicker2 picker = picker();
+        this.whiteboard.bindMergedResourcePicker2(picker, properties(1));
+        final MergingResourceProvider provider = this.whiteboard.getProvider("/merged/a");
+        assertFalse(provider.traverseHierarchie);
+
+        // changed properties and a new picker instance are applied to the registered provider
+        final MergedResourcePicker2 other = picker();
+        this.whiteboard.updatedMergedResourcePicker2(other, properties(1, MergedResourcePicker2.TRAVERSE_PARENT, true,
+                MergedResourcePicker2.FROZEN, true, MergedResourcePicker2.DETERMINISTIC, true));
+        assertSame(provider, this.whiteboard.getProvider("/merged/a"));
+        assertSame(other, provider.picker);
+        assertTrue(provider.traverseHierarchie);
+        assertTrue(provider.isFrozen());
+        assertTrue(provider.isDeterministic());
+        assertEquals(1, this.providerRegistrations.size());
+
+        // the read-only flag requires a new provider
+        this.whiteboard.updatedMergedResourcePicker2(other, properties(1, MergedResourcePicker2.READ_ONLY, false));
+        assertNotSame(provider, this.whiteboard.getProvider("/merged/a"));
+        assertTrue(this.whiteboard.getProvider("/merged/a") instanceof CRUDMergingResourceProvider);
+        assertEquals(2, this.providerRegistrations.size());
+        Mockito.verify(this.providerRegistrations.get(0)).unregister();
+    }
+
+    @Test
+    public void testReplacePicker() {
+        final MergedResourcePicker2 picker = picker();
+        this.whiteboard.bindMergedResourcePicker2(picker, properties(1));
+        final MergingResourceProvider provider = this.whiteboard.getProvider("/merged");
+
+        // the first registered picker for the same root keeps the provider
+        final MergedResourcePicker2 replacement = picker();
+        this.whiteboard.bindMergedResourcePicker2(replacement, properties(2));
+        assertSame(provider, this.whiteboard.getProvider("/merged"));
+        assertSame(picker, provider.picker);
+
+        // the replacement takes over once the first picker is gone
+        this.whiteboard.unbindMergedResourcePicker2(properties(1));
+        assertSame(replacement, provider.picker);
+        assertEquals(1, this.providerRegistrations.size());
+        Mockito.verify(this.providerRegistrations.get(0), Mockito.never()).unregister();
+
+        this.whiteboard.unbindMergedResourcePicker2(properties(2));
+        assertNull(this.whiteboard.getProvider("/merged"));
+        Mockito.verify(this.providerRegistrations.get(0)).unregister();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.resourcemerger.impl.picker.ResourceTypeAndSearchPathBasedResourcePicker;
+import org.apache.sling.testing.resourceresolver.MockHelper;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactoryOptions;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class MergedResourceProviderForCombinedPickerTest {
+
+    private static final String SUPER_TYPE = "sling:resourceSuperType";
+
+    private ResourceResolver resolver;
+
+    private MergingResourceProvider provider;
+
+    /*
+     * /libs/base has the children a and b, /apps/base hides b and adds c
+     * /libs/comp has the super type base, /apps/comp adds d
+     * /libs/other has the super type base, /apps/other changes it to comp
+     * /apps/loop has the super type of itself
+     */
+    @Before
+    public void setup() throws Exception {
+        final MockResourceResolverFactoryOptions options = new MockResourceResolverFactoryOptions();
+        options.setSearchPaths(new String[] {"/apps/", "/libs/"});
+        this.resolver = new MockResourceResolverFactory(options).getResourceResolver(null);
+        MockHelper.create(this.resolver)
+                    .resource("/libs")
+                    .resource("base")
+                    .resource("a").p("x", "libs-base")
+                    .resource(".b")
+                    .resource("/libs/comp").p(SUPER_TYPE, "base")
+                    .resource("a").p("y", "libs-comp")
+                    .resource("/libs/other").p(SUPER_TYPE, "base")
+                    .resource("/apps")
+                    .resource("base").p(MergedResourceConstants.PN_HIDE_CHILDREN, new String[] {"b"})
+                    .resource("c")
+                    .resource("/apps/comp")
+                    .resource("d")
+                    .resource("/apps/other").p(SUPER_TYPE, "/apps/comp")
+                    .resource("/apps/loop").p(SUPER_TYPE, "loop")
+                    .commit();
+
+        this.provider = new MergingResourceProvider("/merged", new ResourceTypeAndSearchPathBasedResourcePicker(), true, true);
+    }
+
+    private static List<String> paths(final List<Resource> resources) {
+        final List<String> paths = new ArrayList<>();
+        for (final Resource rsrc : resources) {
+            paths.add(rsrc.getPath());
+        }
+        return paths;
+    }
+
+    private static List<String> names(final Iterator<Resource> iter) {
+        final List<String> names = new ArrayList<>();
+        iter.forEachRemaining(child -> names.add(child.getName()));
+        return names;
+    }
+
+    @Test
+    public void testPickedResources() {
+        final ResourceTypeAndSearchPathBasedResourcePicker picker = new ResourceTypeAndSearchPathBasedResourcePicker();
+        assertEquals(Arrays.asList("/libs/base/a", "/apps/base/a", "/libs/comp/a", "/apps/comp/a"),
+                paths(picker.pickResources(this.resolver, "comp/a", null)));
+        // the overlay changes the super type
+        assertEquals(Arrays.asList("/libs/base", "/apps/base", "/libs/comp", "/apps/comp", "/libs/other", "/apps/other"),
+                paths(picker.pickResources(this.resolver, "other", null)));
+        // inheritance loops are detected
+        assertEquals(Arrays.asList("/libs/loop", "/apps/loop"), paths(picker.pickResources(this.resolver, "loop", null)));
+    }
+
+    @Test
+    public void testEachPathIsLookedUpOnce() {
+        final ResourceResolver spy = Mockito.spy(this.resolver);
+        new ResourceTypeAndSearchPathBasedResourcePicker().pickResources(spy, "other/a", null);
+        for (final String path : new String[] {"/apps/other/a", "/libs/other/a", "/apps/other", "/libs/other",
+                "/apps/comp/a", "/libs/comp/a", "/apps/comp", "/libs/comp", "/apps/base/a", "/libs/base/a", "/apps/base", "/libs/base"}) {
+            Mockito.verify(spy, Mockito.atMost(1)).getResource(path);
+        }
+    }
+
+    @Test
+    public void testMergedChildren() {
+        final Resource rsrc = this.provider.getResource(this.resolver, "/merged/comp", null);
+        assertNotNull(rsrc);
+        assertEquals(Arrays.asList("a", "c", "d"), names(this.provider.listChildren(rsrc)));
+        assertNull(this.provider.getResource(this.resolver, "/merged/comp/b", null));
+
+        final ValueMap properties = this.provider.getResource(this.resolver, "/merged/comp/a", null).getValueMap();
+        assertEquals("libs-base", properties.get("x"));
+        assertEquals("libs-comp", properties.get("y"));
+    }
+}
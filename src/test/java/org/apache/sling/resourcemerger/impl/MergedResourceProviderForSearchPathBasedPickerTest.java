@@ -33,16 +33,12 @@ import org.apache.sling.api.resource.ModifiableValueMap;
 import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.hamcrest.ResourceMatchers;
-import org.apache.sling.resourcemerger.impl.picker.SearchPathBasedResourcePicker;
 import org.apache.sling.spi.resource.provider.ResolveContext;
 import org.apache.sling.spi.resource.provider.ResourceContext;
 import org.apache.sling.testing.resourceresolver.MockHelper;
-import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
-import org.apache.sling.testing.resourceresolver.MockResourceResolverFactoryOptions;
 import org.hamcrest.Matchers;
 import org.junit.Assert;
 import org.junit.Before;
@@ -56,42 +52,10 @@ public class MergedResourceProviderForSearchPathBasedPickerTest {
     private ResolveContext<Void> ctx;
 
     @Before public void setup() throws Exception {
-        final MockResourceResolverFactoryOptions options = new MockResourceResolverFactoryOptions();
-        options.setSearchPaths(new String[] {"/apps/", "/libs/"});
-        final ResourceResolverFactory factory = new MockResourceResolverFactory(options);
-        this.resolver = factory.getResourceResolver(null);
-        MockHelper.create(this.resolver).resource("/apps")
-                                          .resource("a").p(MergedResourceConstants.PN_HIDE_CHILDREN, new String[] {"Z", "x", "y"})
-                                            .resource("1").p("a", "1").p("b", "2")
-                                            .resource(".2").p(ResourceResolver.PROPERTY_RESOURCE_TYPE, "apps")
-                                            .resource(".3").p("e", "2")
-                                                           .p(MergedResourceConstants.PN_HIDE_PROPERTIES, "*")
-                                                           .p("b", "x")
-                                                           .p("d", "1")
-                                            .resource(".4").p("e", "2")
-                                                           .p(MergedResourceConstants.PN_HIDE_PROPERTIES, new String[] {"a", "c"})
-                                                           .p("b", "x")
-                                                           .p("d", "1")
-                                            .resource(".X")
-                                          .resource("/apps/b").resource("c").resource("d").resource("e").resource("f")
-                                        .resource("/libs")
-                                          .resource("deleteTest")
-                                          .resource(".mvmTest").p("a", "1").p("b", "2")
-                                          .resource(".a")
-                                            .resource("1").p("a", "5").p("c", "2")
-                                            .resource(".2").p(ResourceResolver.PROPERTY_RESOURCE_TYPE, "libs")
-                                            .resource(".3").p("a", "1").p("b", "2").p("c", "3")
-                                            .resource(".4").p("a", "1").p("b", "2").p("c", "3")
-                                            .resource(".Y")
-                                            .resource(".Z")
-                                          .resource("/libs/a/Y/a")
-                                          .resource("/libs/a/Y/b")
-                                          .resource("/libs/a/Y/c")
-                                          .resource("/libs/b").resource("c").resource("d").resource("e").resource("f")
-                                        .commit();
-
-        this.provider = new CRUDMergingResourceProvider("/merged", new SearchPathBasedResourcePicker(), false);
-        this.ctx = new BasicResolveContext(resolver);
+        final SearchPathFixture fixture = new SearchPathFixture();
+        this.resolver = fixture.resolver;
+        this.provider = fixture.provider;
+        this.ctx = fixture.ctx;
     }
 
     @Test public void testHideChildren() {
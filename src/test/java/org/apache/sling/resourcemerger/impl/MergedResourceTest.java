@@ -18,13 +18,20 @@
  */
 package org.apache.sling.resourcemerger.impl;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -157,4 +164,33 @@ public class MergedResourceTest {
 
         assertTrue(mr.toString().contains("/innerResourcePath"));
     }
+
+    @Test public void testConvertedValuesAreCached() throws Exception {
+        final Map<String, Object> props1 = new HashMap<>();
+        props1.put("flag", "true");
+        props1.put("list", new String[] {"a", "b"});
+        final Map<String, Object> props2 = new HashMap<>();
+        props2.put("count", "5");
+        final MergedValueMap vm = new MergedValueMap(Arrays.asList(new ValueMapDecorator(props1), new ValueMapDecorator(props2)));
+
+        assertEquals(Boolean.TRUE, vm.get("flag", Boolean.class));
+        assertEquals(Boolean.TRUE, vm.get("flag", false));
+        final Long count = vm.get("count", Long.class);
+        assertEquals(Long.valueOf(5), count);
+        assertSame(count, vm.get("count", Long.class));
+        assertNull(vm.get("count", Calendar.class));
+        assertNull(vm.get("missing", String.class));
+
+        // arrays are copied as they are mutable
+        final String[] list = vm.get("list", String[].class);
+        list[0] = "x";
+        assertArrayEquals(new String[] {"a", "b"}, vm.get("list", String[].class));
+
+        try {
+            vm.put("flag", "false");
+            fail("Merged value map must be immutable");
+        } catch (final UnsupportedOperationException expected) {
+            // expected
+        }
+    }
 }
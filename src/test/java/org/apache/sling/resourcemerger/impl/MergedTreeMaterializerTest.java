@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.apache.sling.resourcemerger.impl.picker.SearchPathBasedResourcePicker;
+import org.apache.sling.resourcemerger.spi.MergedResourcePicker2;
+import org.apache.sling.testing.resourceresolver.MockHelper;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactoryOptions;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MergedTreeMaterializerTest {
+
+    private static final String TARGET = "/var/resourcemerger/merged";
+
+    private ResourceResolver resolver;
+
+    private LayerPicker picker;
+
+    private MergingResourceProvider provider;
+
+    private MergedTreeMaterializer materializer;
+
+    @Before public void setup() throws Exception {
+        this.resolver = new MockResourceResolverFactory().getResourceResolver(null);
+        MockHelper.create(this.resolver).resource("/apps")
+                                          .resource("a").p(MergedResourceConstants.PN_HIDE_CHILDREN, "2")
+                                            .resource("1").p("a", "apps").p(MergedResourceConstants.PN_HIDE_PROPERTIES, "b")
+                                            .resource(".3").p(MergedResourceConstants.PN_ORDER_BEFORE, "1")
+                                        .resource("/libs")
+                                          .resource("a").p("jcr:primaryType", "sling:Folder").p(ResourceResolver.PROPERTY_RESOURCE_TYPE, "type")
+                                            .resource("1").p("a", "libs").p("b", "libs").p("c", new String[] {"x", "y"})
+                                            .resource(".2")
+                                        .commit();
+        this.picker = new LayerPicker();
+        this.provider = new MergingResourceProvider("/merged", this.picker, true, false);
+        this.materializer = new MergedTreeMaterializer(this.provider, TARGET);
+    }
+
+    /**
+     * Picks the resources below /libs and /apps, including the merge root itself.
+     */
+    private static final class LayerPicker implements MergedResourcePicker2 {
+
+        /** Whether the resources below /apps are picked as if they can't be read. */
+        boolean appsUnreadable;
+
+        int picks;
+
+        @Override
+        public List<Resource> pickResources(final ResourceResolver resolver, final String relativePath, final Resource relatedResource) {
+            this.picks++;
+            final List<Resource> resources = new ArrayList<>();
+            for (final String root : new String[] {"/libs", "/apps"}) {
+                final String path = relativePath.isEmpty() ? root : root + "/" + relativePath;
+                final Resource rsrc = this.appsUnreadable && root.equals("/apps") ? null : resolver.getResource(path);
+                resources.add(rsrc != null ? rsrc : new NonExistingResource(resolver, path));
+            }
+            return resources;
+        }
+    }
+
+    private static List<Resource> toList(final Iterator<Resource> iter) {
+        final List<Resource> result = new ArrayList<>();
+        iter.forEachRemaining(result::add);
+        return result;
+    }
+
+    private static List<String> paths(final List<Resource> resources) {
+        final List<String> result = new ArrayList<>();
+        resources.forEach(rsrc -> result.add(rsrc.getPath()));
+        return result;
+    }
+
+    private void assertSameTree(final Resource expected, final Resource actual) {
+        assertEquals(expected.getPath(), actual.getPath());
+        assertEquals(expected.getResourceType(), actual.getResourceType());
+        assertEquals(expected.getResourceSuperType(), actual.getResourceSuperType());
+        assertEquals(expected.getValueMap().keySet(), actual.getValueMap().keySet());
+        for (final String key : expected.getValueMap().keySet()) {
+            assertTrue(key, Objects.deepEquals(expected.getValueMap().get(key), actual.getValueMap().get(key)));
+        }
+        assertArrayEquals((String[]) expected.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES),
+                (String[]) actual.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES));
+        final List<Resource> expectedChildren = toList(this.provider.listChildren(expected));
+        final List<Resource> actualChildren = toList(this.provider.listChildren(actual));
+        assertEquals(expectedChildren.size(), actualChildren.size());
+        for (int i = 0; i < expectedChildren.size(); i++) {
+            assertSameTree(expectedChildren.get(i), actualChildren.get(i));
+        }
+    }
+
+    @Test public void testMaterialize() throws Exception {
+        final Resource live = this.provider.getResource(this.resolver, "/merged/a", null);
+        // root, a, 1 and 3
+        assertEquals(4, this.materializer.write(this.resolver));
+        assertEquals(Collections.emptyList(), this.materializer.verify(this.resolver));
+        assertTrue(this.provider.setMaterialized(this.materializer, this.provider.getChangeCount()));
+
+        // the properties are read from the materialized tree
+        final ModifiableValueMap target = this.resolver.getResource(TARGET + "/a").adaptTo(ModifiableValueMap.class);
+        target.put("marker", "materialized");
+        this.resolver.commit();
+        assertEquals("materialized", this.provider.getResource(this.resolver, "/merged/a", null).getValueMap().get("marker"));
+        target.remove("marker");
+        this.resolver.commit();
+        final MergedResource materialized = (MergedResource) this.provider.getResource(this.resolver, "/merged/a", null);
+        // the layer resources are exposed, not the materialized resource
+        assertEquals(Arrays.asList("/libs/a", "/apps/a"), paths(materialized.getMergedResources()));
+        assertEquals("sling:Folder", materialized.getValueMap().get("jcr:primaryType"));
+        assertSameTree(live, materialized);
+        assertNull(this.provider.getResource(this.resolver, "/merged/a/2", null));
+        // relative properties are read from the materialized tree as well
+        this.resolver.getResource(TARGET + "/a/1").adaptTo(ModifiableValueMap.class).put("c", "materialized");
+        this.resolver.commit();
+        assertEquals("materialized", materialized.getValueMap().get("1/c"));
+        // the fingerprints are not exposed
+        assertTrue(!materialized.getValueMap().containsKey(MergedTreeMaterializer.PN_FINGERPRINT));
+
+        // changed resources are merged live until their subtree has been written again
+        this.resolver.getResource("/apps/a/1").adaptTo(ModifiableValueMap.class).put("a", "changed");
+        this.resolver.commit();
+        final List<ResourceChange> changes = Collections.singletonList(new ResourceChange(ChangeType.CHANGED, "/apps/a/1", false, null, null, null));
+        this.provider.onChange(changes);
+        this.materializer.changed(changes);
+        assertEquals(TARGET, this.provider.getMaterializedPath());
+        final Resource changed = this.provider.getResource(this.resolver, "/merged/a/1", null);
+        assertEquals("changed", changed.getValueMap().get("a"));
+        assertArrayEquals(new String[] {"x", "y"}, changed.getValueMap().get("c", String[].class));
+        assertArrayEquals(new String[] {"x", "y"}, this.provider.getResource(this.resolver, "/merged/a", null).getValueMap().get("1/c", String[].class));
+
+        // the picker does not preserve layers, so the whole tree is updated
+        assertEquals(Collections.singletonList(""), this.materializer.update(this.resolver));
+        assertEquals(Collections.emptyList(), this.materializer.verify(this.resolver));
+        assertEquals(Collections.emptyList(), this.materializer.update(this.resolver));
+        this.provider.materializedUpdated();
+        this.resolver.getResource(TARGET + "/a/1").adaptTo(ModifiableValueMap.class).put("marker", "materialized");
+        this.resolver.commit();
+        assertEquals("materialized", this.provider.getResource(this.resolver, "/merged/a/1", null).getValueMap().get("marker"));
+        assertEquals("changed", this.provider.getResource(this.resolver, "/merged/a/1", null).getValueMap().get("a"));
+    }
+
+    @Test public void testChildWindows() throws Exception {
+        this.materializer.write(this.resolver);
+        assertTrue(this.provider.setMaterialized(this.materializer, this.provider.getChangeCount()));
+        this.resolver.getResource(TARGET + "/a/1").adaptTo(ModifiableValueMap.class).put("marker", "materialized");
+        this.resolver.commit();
+
+        final Resource a = this.provider.getResource(this.resolver, "/merged/a", null);
+        final List<Resource> all = toList(this.provider.listChildren(a));
+        assertEquals(Arrays.asList("/merged/a/3", "/merged/a/1"), paths(all));
+        // windows and names are served from the materialized tree as well
+        assertEquals(Collections.singletonList("/merged/a/3"), paths(this.provider.listChildren(a, 0, 1)));
+        assertEquals("materialized", this.provider.listChildren(a, 1, 1).get(0).getValueMap().get("marker"));
+        assertEquals(Arrays.asList("3", "1"), this.provider.getChildNames(a));
+        final int picks = this.picker.picks;
+        assertEquals(Arrays.asList("3", "1"), this.provider.getChildNames(a));
+        assertEquals(picks, this.picker.picks);
+    }
+
+    @Test public void testUnreadableLayer() throws Exception {
+        this.materializer.write(this.resolver);
+        assertTrue(this.provider.setMaterialized(this.materializer, this.provider.getChangeCount()));
+        this.resolver.getResource(TARGET + "/a").adaptTo(ModifiableValueMap.class).put("marker", "materialized");
+        this.resolver.commit();
+
+        // a resolver which can't read a picked resource gets the live merge of the resources it can read
+        this.picker.appsUnreadable = true;
+        final MergedResource rsrc = (MergedResource) this.provider.getResource(this.resolver, "/merged/a", null);
+        assertEquals(Collections.singletonList("/libs/a"), paths(rsrc.getMergedResources()));
+        assertNull(rsrc.getValueMap().get("marker"));
+        final MergedResource child = (MergedResource) this.provider.getResource(this.resolver, "/merged/a/1", null);
+        assertEquals(Collections.singletonList("/libs/a/1"), paths(child.getMergedResources()));
+        assertEquals("libs", child.getValueMap().get("a"));
+    }
+
+    @Test public void testSearchPathBasedPicker() throws Exception {
+        final MockResourceResolverFactoryOptions options = new MockResourceResolverFactoryOptions();
+        options.setSearchPaths(new String[] {"/apps/", "/libs/"});
+        final ResourceResolver resolver = new MockResourceResolverFactory(options).getResourceResolver(null);
+        MockHelper.create(resolver).resource("/apps")
+                                     .resource("a").p(MergedResourceConstants.PN_HIDE_CHILDREN, "2")
+                                       .resource("1").p("a", "apps")
+                                   .resource("/libs")
+                                     .resource("a")
+                                       .resource("1").p("jcr:primaryType", "sling:Folder").p("a", "libs")
+                                       .resource(".2")
+                                   .commit();
+        final SearchPathBasedResourcePicker picker = new SearchPathBasedResourcePicker();
+        final MergingResourceProvider provider = new MergingResourceProvider("/merged", picker, true, false);
+        final MergedTreeMaterializer materializer = new MergedTreeMaterializer(provider, TARGET);
+        materializer.write(resolver);
+        assertEquals(Collections.emptyList(), materializer.verify(resolver));
+        assertTrue(provider.setMaterialized(materializer, provider.getChangeCount()));
+
+        final MergedResource parent = (MergedResource) provider.getResource(resolver, "/merged/a", null);
+        assertEquals(Arrays.asList("/libs/a", "/apps/a"), paths(parent.getMergedResources()));
+        // the picker resolves the children from the layers of the materialized parent
+        assertEquals(Arrays.asList("/libs/a/1", "/apps/a/1"), paths(picker.pickResources(resolver, "a/1", parent)));
+
+        final MergedResource child = (MergedResource) parent.getChild("1");
+        assertEquals(Arrays.asList("/libs/a/1", "/apps/a/1"), paths(child.getMergedResources()));
+        assertEquals("sling:Folder", child.getValueMap().get("jcr:primaryType"));
+        assertEquals("apps", child.getValueMap().get("a"));
+        for (final String name : child.getValueMap().keySet()) {
+            assertTrue(name, !name.startsWith("sling:merged"));
+        }
+        assertNull(parent.getChild("2"));
+        assertTrue(parent.hasChildren());
+        assertTrue(!child.hasChildren());
+
+        // only the subtree of the parent of the changed resource is written again
+        resolver.getResource("/apps/a/1").adaptTo(ModifiableValueMap.class).put("a", "changed");
+        resolver.commit();
+        materializer.changed(Collections.singletonList(new ResourceChange(ChangeType.CHANGED, "/apps/a/1", false, null, null, null)));
+        assertEquals(Collections.singletonList("a"), materializer.update(resolver));
+        assertEquals("changed", resolver.getResource(TARGET + "/a/1").getValueMap().get("a"));
+        assertEquals(Collections.emptyList(), materializer.verify(resolver));
+    }
+
+    @Test public void testVerify() throws Exception {
+        this.materializer.write(this.resolver);
+        this.resolver.getResource(TARGET + "/a/1").adaptTo(ModifiableValueMap.class).put("a", "changed");
+        this.resolver.commit();
+        assertEquals(Collections.singletonList("/merged/a/1"), this.materializer.verify(this.resolver));
+
+        // writing again replaces the tree
+        this.materializer.write(this.resolver);
+        assertEquals(Collections.emptyList(), this.materializer.verify(this.resolver));
+    }
+
+    @Test public void testConcurrentChange() throws Exception {
+        final long changeCount = this.provider.getChangeCount();
+        this.materializer.write(this.resolver);
+        this.provider.onChange(Collections.singletonList(new ResourceChange(ChangeType.ADDED, "/apps/a/4", false, null, null, null)));
+        assertTrue(!this.provider.setMaterialized(this.materializer, changeCount));
+        assertNull(this.provider.getMaterializedPath());
+    }
+}
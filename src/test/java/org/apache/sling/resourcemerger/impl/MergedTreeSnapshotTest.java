@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.apache.sling.resourcemerger.spi.MergedResourcePicker2;
+import org.apache.sling.testing.resourceresolver.MockHelper;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MergedTreeSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ResourceResolver resolver;
+
+    private MergingResourceProvider provider;
+
+    @Before public void setup() throws Exception {
+        final ResourceResolverFactory factory = new MockResourceResolverFactory();
+        this.resolver = factory.getResourceResolver(null);
+        MockHelper.create(this.resolver).resource("/apps")
+                                          .resource("a").p(MergedResourceConstants.PN_HIDE_CHILDREN, new String[] {"Z"})
+                                            .resource("1").p("a", "1").p("flag", true).p("count", 5L)
+                                            .resource(".2").p(MergedResourceConstants.PN_ORDER_BEFORE, "1")
+                                            .resource(".X")
+                                        .resource("/libs")
+                                          .resource("a")
+                                            .resource("1").p("a", "5").p("c", new String[] {"x", "y"})
+                                            .resource(".2")
+                                            .resource(".Y").p("y", "1")
+                                            .resource(".Z")
+                                          .resource("/libs/a/Y/c")
+                                        .commit();
+        this.provider = new MergingResourceProvider("/merged", new LayerPicker(), true, false);
+    }
+
+    /**
+     * Picks the resources below /libs and /apps, including the merge root itself.
+     */
+    private static final class LayerPicker implements MergedResourcePicker2 {
+
+        @Override
+        public List<Resource> pickResources(final ResourceResolver resolver, final String relativePath, final Resource relatedResource) {
+            final List<Resource> resources = new ArrayList<>();
+            for (final String root : new String[] {"/libs", "/apps"}) {
+                final String path = relativePath.isEmpty() ? root : root + "/" + relativePath;
+                final Resource rsrc = resolver.getResource(path);
+                resources.add(rsrc != null ? rsrc : new NonExistingResource(resolver, path));
+            }
+            return resources;
+        }
+    }
+
+    private MergedTreeSnapshot writeSnapshot() throws Exception {
+        return MergedTreeSnapshot.write(this.resolver, this.provider, new File(this.folder.getRoot(), "snapshot.bin"));
+    }
+
+    private void assertSameTree(final Resource expected, final Resource actual) {
+        assertEquals(expected.getPath(), actual.getPath());
+        assertEquals(expected.getResourceType(), actual.getResourceType());
+        assertEquals(expected.getValueMap().keySet(), actual.getValueMap().keySet());
+        for (final String key : expected.getValueMap().keySet()) {
+            assertTrue(key, Objects.deepEquals(expected.getValueMap().get(key), actual.getValueMap().get(key)));
+        }
+        assertArrayEquals((String[]) expected.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES),
+                (String[]) actual.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES));
+        final Iterator<Resource> expectedChildren = this.provider.listChildren(expected);
+        final Iterator<Resource> actualChildren = this.provider.listChildren(actual);
+        while (expectedChildren.hasNext()) {
+            assertTrue(actualChildren.hasNext());
+            assertSameTree(expectedChildren.next(), actualChildren.next());
+        }
+        assertFalse(actualChildren.hasNext());
+    }
+
+    @Test public void testSnapshotMatchesLiveMerge() throws Exception {
+        final List<Resource> live = new ArrayList<>();
+        live.add(this.provider.getResource(this.resolver, "/merged", null));
+        live.add(this.provider.getResource(this.resolver, "/merged/a", null));
+
+        final MergedTreeSnapshot snapshot = writeSnapshot();
+        assertEquals(7, snapshot.getNodeCount());
+        assertTrue(this.provider.setSnapshot(snapshot, this.provider.getChangeCount()));
+
+        assertSameTree(live.get(0), this.provider.getResource(this.resolver, "/merged", null));
+        assertSameTree(live.get(1), this.provider.getResource(this.resolver, "/merged/a", null));
+        assertNull(this.provider.getResource(this.resolver, "/merged/a/Z", null));
+
+        final Resource y = this.provider.getResource(this.resolver, "/merged/a/Y", null);
+        assertNotNull(y);
+        assertEquals("1", y.getValueMap().get("y"));
+        final Resource one = this.provider.getResource(this.resolver, "/merged/a/1", null);
+        assertEquals(Boolean.TRUE, one.getValueMap().get("flag"));
+        assertEquals(Long.valueOf(5), one.getValueMap().get("count"));
+        assertArrayEquals(new String[] {"x", "y"}, one.getValueMap().get("c", String[].class));
+    }
+
+    @Test public void testReopen() throws Exception {
+        writeSnapshot();
+        final MergedTreeSnapshot snapshot = MergedTreeSnapshot.open(new File(this.folder.getRoot(), "snapshot.bin"));
+        assertTrue(snapshot.isValid(this.resolver, this.provider));
+        assertEquals(Collections.singletonList("a"), names(snapshot.getNode("")));
+        assertEquals(Arrays.asList("2", "1", "Y", "X"), names(snapshot.getNode("a")));
+        assertArrayEquals(new String[] {"/libs", "/apps"}, snapshot.getNode("").getPickedPaths());
+        assertNull(snapshot.getNode("a/Z"));
+    }
+
+    private static List<String> names(final MergedTreeSnapshot.Node node) {
+        final List<String> names = new ArrayList<>();
+        for (final MergedTreeSnapshot.Node child : node.getChildren()) {
+            names.add(child.getName());
+        }
+        return names;
+    }
+
+    @Test public void testFingerprint() throws Exception {
+        final MergedTreeSnapshot snapshot = writeSnapshot();
+        assertTrue(snapshot.isValid(this.resolver, this.provider));
+
+        // other properties are not part of the fingerprints, their changes are observed
+        final Resource rsrc = this.resolver.getResource("/libs/a/Y");
+        rsrc.adaptTo(ModifiableValueMap.class).put("y", "2");
+        this.resolver.commit();
+        assertArrayEquals(snapshot.getNode("a/Y").getFingerprint(),
+                FingerprintVerifier.fingerprint("a/Y", this.provider.pickResources(this.resolver, "a/Y", null)));
+
+        rsrc.adaptTo(ModifiableValueMap.class).put(MergedResourceConstants.PN_HIDE_PROPERTIES, "y");
+        this.resolver.commit();
+
+        // only the merge root is validated upfront
+        assertTrue(snapshot.isValid(this.resolver, this.provider));
+        assertTrue(snapshot.isVerified(this.resolver, this.provider, "a/1"));
+        assertFalse(snapshot.isVerified(this.resolver, this.provider, "a/Y"));
+        assertFalse(snapshot.isVerified(this.resolver, this.provider, "a/Y/c"));
+        assertFalse(snapshot.isVerified(this.resolver, this.provider, "a/Z"));
+
+        this.resolver.getResource("/apps").adaptTo(ModifiableValueMap.class).put(MergedResourceConstants.PN_HIDE_CHILDREN, "x");
+        this.resolver.commit();
+        assertFalse(snapshot.isValid(this.resolver, this.provider));
+    }
+
+    @Test public void testOutdatedNodesMergedLive() throws Exception {
+        final MergedTreeSnapshot snapshot = writeSnapshot();
+        assertTrue(this.provider.setSnapshot(snapshot, this.provider.getChangeCount()));
+
+        // the change is not reported, so the snapshot is kept
+        this.resolver.getResource("/apps/a/1").adaptTo(ModifiableValueMap.class).put("a", "2");
+        this.resolver.getResource("/apps/a").adaptTo(ModifiableValueMap.class).put(MergedResourceConstants.PN_HIDE_CHILDREN, "Y");
+        this.resolver.commit();
+        assertSame(snapshot, this.provider.getSnapshot());
+
+        assertEquals("2", this.provider.getResource(this.resolver, "/merged/a/1", null).getValueMap().get("a"));
+        assertNull(this.provider.getResource(this.resolver, "/merged/a/Y", null));
+        final Resource a = this.provider.getResource(this.resolver, "/merged/a", null);
+        assertArrayEquals(new String[] {"2", "1", "Z", "X"}, this.provider.getChildNames(a).toArray());
+    }
+
+    @Test public void testChildLookups() throws Exception {
+        final AtomicInteger picks = new AtomicInteger();
+        final LayerPicker picker = new LayerPicker();
+        this.provider = new MergingResourceProvider("/merged", (resolver, relativePath, relatedResource) -> {
+            picks.incrementAndGet();
+            return picker.pickResources(resolver, relativePath, relatedResource);
+        }, true, false);
+        assertTrue(this.provider.setSnapshot(writeSnapshot(), this.provider.getChangeCount()));
+
+        final Resource a = this.provider.getResource(this.resolver, "/merged/a", null);
+        final Resource one = this.provider.getResource(this.resolver, "/merged/a/1", null);
+        assertTrue(a.hasChildren());
+        assertFalse(one.hasChildren());
+
+        // once the fingerprints are verified, the snapshot answers without picking
+        final int picked = picks.get();
+        assertTrue(a.hasChildren());
+        assertFalse(one.hasChildren());
+        assertEquals("/merged/a/1", a.getChild("1").getPath());
+        assertEquals(picked, picks.get());
+        assertEquals("1", a.getChild("Y").getValueMap().get("y"));
+        final int verified = picks.get();
+        assertEquals("1", a.getChild("Y").getValueMap().get("y"));
+        assertEquals(verified, picks.get());
+    }
+
+    @Test public void testChanges() throws Exception {
+        final MergedTreeSnapshot snapshot = writeSnapshot();
+        assertTrue(snapshot.isAffectedBy("/libs/a/Y"));
+        assertTrue(snapshot.isAffectedBy("/apps/a/Y"));
+        assertTrue(snapshot.isAffectedBy("/apps/a/Y/new"));
+        assertFalse(snapshot.isAffectedBy("/apps/a/Y/new/deeper"));
+        assertFalse(snapshot.isAffectedBy("/content/a"));
+
+        final long changeCount = this.provider.getChangeCount();
+        assertTrue(this.provider.setSnapshot(snapshot, changeCount));
+        this.provider.onChange(Collections.singletonList(new ResourceChange(ChangeType.CHANGED, "/content/a", false, null, null, null)));
+        assertSame(snapshot, this.provider.getSnapshot());
+        this.provider.onChange(Collections.singletonList(new ResourceChange(ChangeType.ADDED, "/apps/a/Y", false, null, null, null)));
+        assertNull(this.provider.getSnapshot());
+
+        // changes since validation prevent installing the snapshot
+        assertFalse(this.provider.setSnapshot(snapshot, changeCount));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.resourcemerger.api.MergedResourceVisitor;
+import org.apache.sling.resourcemerger.api.ResourceMergerUtil;
+import org.apache.sling.resourcemerger.impl.picker.SearchPathBasedResourcePicker;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MergedTreeVisitTest {
+
+    private SearchPathFixture fixture;
+
+    @Before public void setup() throws Exception {
+        this.fixture = new SearchPathFixture();
+    }
+
+    @Test public void testVisit() throws Exception {
+        this.fixture.resolver.getResource("/apps/b/c/d").adaptTo(ModifiableValueMap.class).put(MergedResourceConstants.PN_HIDE_CHILDREN, "*");
+        this.fixture.resolver.getResource("/apps/a/1").adaptTo(ModifiableValueMap.class).put(MergedResourceConstants.PN_ORDER_BEFORE, "2");
+        this.fixture.resolver.commit();
+        final SearchPathBasedResourcePicker picker = new SearchPathBasedResourcePicker();
+        for (final boolean traverse : new boolean[] {false, true}) {
+            for (final MergingResourceProvider visitProvider : new MergingResourceProvider[] {
+                    new MergingResourceProvider("/merged", picker, true, traverse),
+                    new MergingResourceProvider("/merged", new MergedResourcePicker3Adapter(picker), true, traverse),
+                    new MergingResourceProvider("/merged", picker::pickResources, true, traverse)}) {
+                final Resource root = visitProvider.getResource(this.fixture.resolver, "/merged", null);
+                final List<String> expected = new ArrayList<>();
+                describe(visitProvider, root, 0, expected);
+                final List<String> visited = new ArrayList<>();
+                ResourceMergerUtil.visit(root, new MergedResourceVisitor() {
+
+                    @Override
+                    public boolean visit(final MergedResourceVisitor.Node node) {
+                        visited.add(node.getDepth() + " " + node.getPath() + " " + node.getLayerPaths() + " " + new TreeMap<>(node.getValueMap()));
+                        return true;
+                    }
+                });
+                assertEquals(expected, visited);
+            }
+        }
+
+        // children are skipped and the nodes are left in depth-first order
+        final List<String> events = new ArrayList<>();
+        ResourceMergerUtil.visit(this.fixture.provider.getResource(this.fixture.resolver, "/merged/b", null), new MergedResourceVisitor() {
+
+            @Override
+            public boolean visit(final MergedResourceVisitor.Node node) {
+                events.add("+" + node.getName());
+                return node.getDepth() < 2;
+            }
+
+            @Override
+            public void leave(final MergedResourceVisitor.Node node) {
+                events.add("-" + node.getName());
+            }
+        });
+        assertEquals(Arrays.asList("+b", "+c", "+d", "-d", "-c", "-b"), events);
+
+        // the resources of the nodes are the same as the listed children
+        ResourceMergerUtil.visit(this.fixture.provider.getResource(this.fixture.resolver, "/merged/a", null), new MergedResourceVisitor() {
+
+            @Override
+            public boolean visit(final MergedResourceVisitor.Node node) {
+                assertTrue(node.getResource() instanceof CRUDMergedResource);
+                assertEquals(node.getPath(), node.getResource().getPath());
+                return true;
+            }
+        });
+    }
+
+    private static void describe(final MergingResourceProvider visitProvider, final Resource rsrc, final int depth, final List<String> result) {
+        result.add(depth + " " + rsrc.getPath() + " "
+                + Arrays.asList((String[]) rsrc.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES)) + " "
+                + new TreeMap<>(((MergedResource) rsrc).getMergedProperties()));
+        final Iterator<Resource> children = visitProvider.listChildren(rsrc);
+        while (children.hasNext()) {
+            describe(visitProvider, children.next(), depth + 1, result);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.resourcemerger.impl.picker.SearchPathBasedResourcePicker;
+import org.apache.sling.testing.resourceresolver.MockHelper;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactoryOptions;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MergedTreeWarmupTest {
+
+    private MockResourceResolverFactory factory;
+
+    private MergingResourceProvider provider;
+
+    @Before public void setup() throws Exception {
+        final MockResourceResolverFactoryOptions options = new MockResourceResolverFactoryOptions();
+        options.setSearchPaths(new String[] {"/apps/", "/libs/"});
+        this.factory = new MockResourceResolverFactory(options);
+        final ResourceResolver resolver = this.factory.getResourceResolver(null);
+        MockHelper.create(resolver).resource("/apps")
+                                     .resource("a")
+                                       .resource("1")
+                                         .resource("x")
+                                       .resource("/apps/a/2")
+                                   .resource("/libs")
+                                     .resource("a")
+                                       .resource("1")
+                                         .resource("y")
+                                           .resource("z")
+                                     .resource("/libs/b")
+                                       .resource("1")
+                                   .commit();
+        resolver.close();
+        this.provider = new MergingResourceProvider("/merged", new SearchPathBasedResourcePicker(), true, false);
+    }
+
+    @Test public void testParse() {
+        final List<MergedTreeWarmup.Subtree> subtrees = MergedTreeWarmup.parse("/merged",
+                new String[] {"a:2", "/b/", "", "c:x", "d : 0", ":3", "x/cq:dialog", "x/cq:dialog:4", "e:99999999999"});
+        assertEquals(7, subtrees.size());
+        assertEquals("/merged/a", subtrees.get(0).path);
+        assertEquals(2, subtrees.get(0).depth);
+        assertEquals("/merged/b", subtrees.get(1).path);
+        assertEquals(MergedTreeWarmup.DEFAULT_DEPTH, subtrees.get(1).depth);
+        // a name with a namespace prefix
+        assertEquals("/merged/c:x", subtrees.get(2).path);
+        assertEquals(MergedTreeWarmup.DEFAULT_DEPTH, subtrees.get(2).depth);
+        assertEquals("/merged/d", subtrees.get(3).path);
+        assertEquals(0, subtrees.get(3).depth);
+        assertEquals("/merged", subtrees.get(4).path);
+        assertEquals(3, subtrees.get(4).depth);
+        assertEquals("/merged/x/cq:dialog", subtrees.get(5).path);
+        assertEquals(MergedTreeWarmup.DEFAULT_DEPTH, subtrees.get(5).depth);
+        assertEquals("/merged/x/cq:dialog", subtrees.get(6).path);
+        assertEquals(4, subtrees.get(6).depth);
+    }
+
+    @Test public void testRun() {
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            // a, 1, 2, x, y for a:2 and b, 1 for b
+            assertEquals(7, new MergedTreeWarmup(this.provider, new String[] {"a:2", "b"}).run(this.factory, pool));
+            // the whole tree below a
+            assertEquals(6, new MergedTreeWarmup(this.provider, new String[] {"a:10"}).run(this.factory, pool));
+            // missing subtrees are ignored
+            assertEquals(0, new MergedTreeWarmup(this.provider, new String[] {"missing:3"}).run(this.factory, pool));
+        } finally {
+            pool.shutdown();
+        }
+        assertTrue(new MergedTreeWarmup(this.provider, null).isEmpty());
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.resourcemerger.api.ResourceMergerUtil;
+import org.apache.sling.resourcemerger.impl.picker.SearchPathBasedResourcePicker;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PassThroughMergeTest {
+
+    private SearchPathFixture fixture;
+
+    @Before public void setup() throws Exception {
+        this.fixture = new SearchPathFixture();
+    }
+
+    @Test public void testPassThrough() throws Exception {
+        final ResourceResolver resolver = this.fixture.resolver;
+        resolver.getResource("/libs/deleteTest").adaptTo(ModifiableValueMap.class).put(MergedResourceConstants.PN_ORDER_BEFORE, "a");
+        resolver.commit();
+        final MergingResourceProvider readOnlyProvider = SearchPathFixture.readOnlyProvider(new SearchPathBasedResourcePicker());
+
+        // a single layer without hiding or ordering properties is not merged
+        final MergedResource single = (MergedResource) readOnlyProvider.getResource(resolver, "/merged/mvmTest", null);
+        assertTrue(single.isPassThrough());
+        assertTrue(ResourceMergerUtil.isMergedResource(single));
+        assertArrayEquals(new String[] {"/libs/mvmTest"}, (String[]) single.getResourceMetadata().get(MergedResourceConstants.METADATA_RESOURCES));
+        assertEquals(new HashMap<>(resolver.getResource("/libs/mvmTest").getValueMap()), new HashMap<>(single.getValueMap()));
+        assertTrue(single.getMergedProperties() instanceof MergedValueMap);
+        // the properties are converted like merged properties
+        assertEquals(Long.valueOf(1), single.getValueMap().get("a", Long.class));
+        assertArrayEquals(new String[] {"1"}, single.getValueMap().get("a", String[].class));
+        assertEquals(new HashMap<>(single.getValueMap()), new HashMap<>(single.getMergedProperties()));
+        assertTrue(((MergedResource) readOnlyProvider.getChild(readOnlyProvider.getResource(resolver, "/merged", null), "mvmTest"))
+                .isPassThrough());
+
+        // hiding and ordering properties are removed by merging
+        final MergedResource ordered = (MergedResource) readOnlyProvider.getResource(resolver, "/merged/deleteTest", null);
+        assertFalse(ordered.isPassThrough());
+        assertFalse(ordered.getValueMap().containsKey(MergedResourceConstants.PN_ORDER_BEFORE));
+        assertFalse(((MergedResource) readOnlyProvider.getResource(resolver, "/merged/a/1", null)).isPassThrough());
+
+        // modifiable merged resources are always merged
+        assertFalse(((MergedResource) this.fixture.provider.getResource(resolver, "/merged/mvmTest", null)).isPassThrough());
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.resourcemerger.impl.picker.SearchPathBasedResourcePicker;
+import org.apache.sling.resourcemerger.spi.MergedResourcePicker2;
+import org.apache.sling.spi.resource.provider.ResolveContext;
+import org.apache.sling.testing.resourceresolver.MockHelper;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactoryOptions;
+
+/**
+ * The layers below {@code /apps} and {@code /libs} merged at {@code /merged} by the
+ * tests for the search path based picker. Resolvers, pickers and threads created by
+ * the fixture are released by {@link #close()}.
+ */
+final class SearchPathFixture {
+
+    final ResourceResolverFactory factory;
+
+    final ResourceResolver resolver;
+
+    final CRUDMergingResourceProvider provider;
+
+    final ResolveContext<Void> ctx;
+
+    private final List<ResourceResolver> resolvers = new ArrayList<>();
+
+    private final List<CountingPicker> pickers = new ArrayList<>();
+
+    private ExecutorService executor;
+
+    SearchPathFixture() throws LoginException, PersistenceException {
+        final MockResourceResolverFactoryOptions options = new MockResourceResolverFactoryOptions();
+        options.setSearchPaths(new String[] {"/apps/", "/libs/"});
+        this.factory = new MockResourceResolverFactory(options);
+        this.resolver = this.factory.getResourceResolver(null);
+        MockHelper.create(this.resolver).resource("/apps")
+                                          .resource("a").p(MergedResourceConstants.PN_HIDE_CHILDREN, new String[] {"Z", "x", "y"})
+                                            .resource("1").p("a", "1").p("b", "2")
+                                            .resource(".2").p(ResourceResolver.PROPERTY_RESOURCE_TYPE, "apps")
+                                            .resource(".3").p("e", "2")
+                                                           .p(MergedResourceConstants.PN_HIDE_PROPERTIES, "*")
+                                                           .p("b", "x")
+                                                           .p("d", "1")
+                                            .resource(".4").p("e", "2")
+                                                           .p(MergedResourceConstants.PN_HIDE_PROPERTIES, new String[] {"a", "c"})
+                                                           .p("b", "x")
+                                                           .p("d", "1")
+                                            .resource(".X")
+                                          .resource("/apps/b").resource("c").resource("d").resource("e").resource("f")
+                                        .resource("/libs")
+                                          .resource("deleteTest")
+                                          .resource(".mvmTest").p("a", "1").p("b", "2")
+                                          .resource(".a")
+                                            .resource("1").p("a", "5").p("c", "2")
+                                            .resource(".2").p(ResourceResolver.PROPERTY_RESOURCE_TYPE, "libs")
+                                            .resource(".3").p("a", "1").p("b", "2").p("c", "3")
+                                            .resource(".4").p("a", "1").p("b", "2").p("c", "3")
+                                            .resource(".Y")
+                                            .resource(".Z")
+                                          .resource("/libs/a/Y/a")
+                                          .resource("/libs/a/Y/b")
+                                          .resource("/libs/a/Y/c")
+                                          .resource("/libs/b").resource("c").resource("d").resource("e").resource("f")
+                                        .commit();
+
+        this.provider = new CRUDMergingResourceProvider("/merged", new SearchPathBasedResourcePicker(), false);
+        this.ctx = new BasicResolveContext<>(this.resolver);
+    }
+
+    /**
+     * @return A read-only provider for {@code /merged} using the picker
+     */
+    static MergingResourceProvider readOnlyProvider(final MergedResourcePicker2 picker) {
+        return new MergingResourceProvider("/merged", picker, true, false);
+    }
+
+    /**
+     * Hide a resource of a layer by setting {@code sling:hideResource}.
+     */
+    void hide(final String path) throws PersistenceException {
+        this.resolver.getResource(path).adaptTo(ModifiableValueMap.class).put(MergedResourceConstants.PN_HIDE_RESOURCE, true);
+        this.resolver.commit();
+    }
+
+    /**
+     * @return Another resolver for the same layers
+     */
+    ResourceResolver newResolver() throws LoginException {
+        final ResourceResolver other = this.factory.getResourceResolver(null);
+        this.resolvers.add(other);
+        return other;
+    }
+
+    /**
+     * @return A resolver for empty layers with the given search paths
+     */
+    ResourceResolver newResolver(final String... searchPaths) throws LoginException {
+        final MockResourceResolverFactoryOptions options = new MockResourceResolverFactoryOptions();
+        options.setSearchPaths(searchPaths);
+        final ResourceResolver other = new MockResourceResolverFactory(options).getResourceResolver(null);
+        this.resolvers.add(other);
+        return other;
+    }
+
+    /**
+     * @return A picker counting the picks of a {@link SearchPathBasedResourcePicker}
+     */
+    CountingPicker countingPicker() {
+        final CountingPicker picker = new CountingPicker(0);
+        picker.release();
+        return picker;
+    }
+
+    /**
+     * @param picking The number of picks to wait for with {@link CountingPicker#picking}
+     * @return A counting picker blocking every pick until it is released
+     */
+    CountingPicker blockingPicker(final int picking) {
+        final CountingPicker picker = new CountingPicker(picking);
+        this.pickers.add(picker);
+        return picker;
+    }
+
+    <T> Future<T> submit(final Callable<T> task) {
+        if (this.executor == null) {
+            this.executor = Executors.newFixedThreadPool(3);
+        }
+        return this.executor.submit(task);
+    }
+
+    void close() {
+        for (final CountingPicker picker : this.pickers) {
+            picker.release();
+        }
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+        for (final ResourceResolver other : this.resolvers) {
+            other.close();
+        }
+    }
+
+    static List<String> names(final Iterator<Resource> iter) {
+        final List<String> names = new ArrayList<>();
+        iter.forEachRemaining(child -> names.add(child.getName()));
+        return names;
+    }
+
+    static List<String> paths(final Iterator<Resource> iter) {
+        final List<String> paths = new ArrayList<>();
+        iter.forEachRemaining(rsrc -> paths.add(rsrc.getPath()));
+        return paths;
+    }
+
+    static List<Resource> toList(final Iterator<Resource> iter) {
+        final List<Resource> result = new ArrayList<>();
+        iter.forEachRemaining(result::add);
+        return result;
+    }
+
+    /**
+     * Picks like a {@link SearchPathBasedResourcePicker}, counting the picks and
+     * blocking them until {@link #release()} is called.
+     */
+    static final class CountingPicker implements MergedResourcePicker2 {
+
+        final AtomicInteger picks = new AtomicInteger();
+
+        /** Counted down by every pick. */
+        final CountDownLatch picking;
+
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        private final SearchPathBasedResourcePicker delegate = new SearchPathBasedResourcePicker();
+
+        private CountingPicker(final int picking) {
+            this.picking = new CountDownLatch(picking);
+        }
+
+        void release() {
+            this.released.countDown();
+        }
+
+        @Override
+        public List<Resource> pickResources(final ResourceResolver resolver, final String relativePath, final Resource relatedResource) {
+            this.picks.incrementAndGet();
+            this.picking.countDown();
+            try {
+                this.released.await();
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            return this.delegate.pickResources(resolver, relativePath, relatedResource);
+        }
+    }
+}